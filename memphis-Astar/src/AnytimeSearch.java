@@ -0,0 +1,277 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.function.Consumer;
+
+/**
+ * The AnytimeSearch class is an anytime mode (ARA*, anytime repairing A*) on top of the compact
+ * SearchAStar, for callers that need some route within a deadline more than the best one. It first runs
+ * A* with the heuristic inflated by a weight (2.5 by default), which settles far fewer states and gives a
+ * route at most weight times slower than the best. Then it lowers the weight step by step and repairs the
+ * search instead of starting over: the g-costs and parents of all reached states are kept, the states whose
+ * g-cost dropped after they were expanded are queued again, and every iteration only expands states that
+ * can still improve the route. It stops at the deadline or after the iteration with weight 1, whose route
+ * is the best.
+ *
+ * Every iteration hands its route to a listener together with a proven bound: the route takes at most
+ * bound times the best travel time. The bound is the smaller of the weight and the route's time over the
+ * least g + h of the states that are still queued. If the deadline cuts an iteration short, a route it
+ * already improved is handed over too, with the last bound scaled down by the time it saved (or an
+ * infinite bound when it was the first iteration).
+ * The heuristic (straight line, fast geometry or landmarks), the SearchSpace and the travel time profiles
+ * and departure time (see SearchAStar.setTravelTimeProfiles) are the given SearchAStar's, so the search must
+ * be one built on a CompactRoadNetwork and must not run another query at the same time. Profiles never make
+ * a road faster than its static time, so the heuristics and the bounds stay valid with them.
+ *
+ * Showing the routes as they improve on long queries:
+ * java AnytimeSearch [graph file] [deadline ms] [queries] [speeding]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class AnytimeSearch {
+  private final SearchAStar search;
+  private final CompactRoadNetwork graph;
+  private final SearchSpace space;
+  private double initialWeight = 2.5;
+  private double weightStep = 0.5;
+  // States queued for the next iteration: the frontier drained after an iteration, and the closed states
+  // whose g-cost dropped during it (listed once per iteration, checked with the iteration stamp)
+  private final int[] pending;
+  private final int[] inconsistent;
+  private final int[] listedIn;
+  private int pendingCount, inconsistentCount, iteration;
+  // Current query
+  private int end, goal;
+  private double weight;
+  private long deadline;
+  int expansions; // states expanded by the last query, over all iterations
+
+  /**
+   * A route found by one iteration.
+   *
+   * @param route The route as a Node chain
+   * @param weight The heuristic weight of the iteration
+   * @param bound The route takes at most bound times the best travel time, infinity if nothing is proven
+   * @param elapsedNanos The time since the query started
+   * @param expansions The states expanded so far
+   */
+  public record Result(Node route, double weight, double bound, long elapsedNanos, int expansions) {
+    public double travelSeconds() { return route.g_cost(); }
+  }
+
+
+  public static void main(String[] args) throws IOException {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    double deadlineMillis = args.length > 1 ? Double.parseDouble(args[1]) : 50;
+    int queries = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+    int speeding = args.length > 3 ? Integer.parseInt(args[3]) : 2;
+    CompactRoadNetwork graph = filename.endsWith(".bin") ? GraphFile.load(Path.of(filename))
+                               : Main.readCompactGraph(filename);
+    SearchAStar optimal = new SearchAStar(graph, new SearchSpace(graph.numLocations(), speeding), false);
+    AnytimeSearch anytime = new AnytimeSearch(new SearchAStar(graph, new SearchSpace(graph.numLocations(), speeding), false));
+
+    int[][] pairs = Benchmarks.querySet(graph, queries)[2]; // the long class
+    for (int round = 0; round < 2; round++) { // the first round warms up
+      for (int[] pair : pairs) {
+        long start = graph.id(pair[0]);
+        long end = graph.id(pair[1]);
+        long time = System.nanoTime();
+        Node best = optimal.search(start, end, speeding);
+        long optimalNanos = System.nanoTime() - time;
+        if (round == 0) {
+          anytime.search(start, end, speeding, (long) (deadlineMillis * 1e6), null);
+          continue;
+        }
+        System.out.printf("%d -> %d, speeding %d: A* %.3f s in %.2f ms (%d states)\n", start, end, speeding,
+                          best == null ? Double.NaN : best.g_cost(), optimalNanos / 1e6, optimal.totalNodeVisited);
+        anytime.search(start, end, speeding, (long) (deadlineMillis * 1e6), r ->
+            System.out.printf("  %7.2f ms  w=%.1f  %10.3f s  bound %.3f  actual %.4f  (%d states)\n",
+                              r.elapsedNanos() / 1e6, r.weight(), r.travelSeconds(), r.bound(),
+                              r.travelSeconds() / best.g_cost(), r.expansions()));
+      }
+    }
+  }
+
+
+  /**
+   * Sets up the anytime mode of a compact search.
+   *
+   * @param search A SearchAStar built on a CompactRoadNetwork, its heuristic settings are used
+   */
+  public AnytimeSearch(SearchAStar search) {
+    if (search.compact == null) throw new IllegalArgumentException("The anytime mode needs a compact search.");
+    this.search = search;
+    this.graph = search.compact;
+    this.space = search.space;
+    int capacity = space.g.length;
+    pending = new int[capacity];
+    inconsistent = new int[capacity];
+    listedIn = new int[capacity];
+  }
+
+
+  /**
+   * Sets the weight schedule.
+   *
+   * @param initial The heuristic weight of the first iteration, at least 1
+   * @param step How much the weight drops after every iteration, more than 0
+   */
+  public void setWeights(double initial, double step) {
+    if (initial < 1 || step <= 0) throw new IllegalArgumentException("The weight must start at 1 or more and drop.");
+    initialWeight = initial;
+    weightStep = step;
+  }
+
+
+  /**
+   * Runs one anytime query.
+   *
+   * @param start The original id of the starting location
+   * @param end The original id of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @param budgetNanos The time the query may take
+   * @param listener Gets every route as soon as it is found, may be null
+   * @return Result The last route found, null if the end can't be reached or no route was found in time
+   */
+  public Result search(long start, long end, int speeding, long budgetNanos, Consumer<Result> listener) {
+    long begin = System.nanoTime();
+    deadline = begin + budgetNanos;
+    if (speeding < 0 || speeding > space.maxSpeeding)
+      throw new IllegalArgumentException("Search space only allows speeding up to " + space.maxSpeeding + " times.");
+    int from = graph.indexOf(start);
+    this.end = graph.indexOf(end);
+    int states = speeding + 1;
+    // The search's heuristic and toNode read the query from these
+    search.endIndex = this.end;
+    search.states = states;
+    space.reset();
+    expansions = 0;
+    goal = -1;
+    pendingCount = inconsistentCount = 0;
+    nextIteration();
+
+    int startState = from * states + speeding;
+    space.reach(startState, 0.0, -1, -1);
+    weight = initialWeight;
+    if (from == this.end) {
+      goal = startState;
+    } else {
+      space.frontier.add(startState, weight * search.heuristic(from, speeding));
+    }
+
+    Result last = null;
+    while (true) {
+      if (!improvePath(states)) {
+        // Out of time in the middle of an iteration, a route it improved is still a better answer
+        if (last != null && space.g[goal] < last.travelSeconds()) {
+          double bound = last.bound() * space.g[goal] / last.travelSeconds();
+          last = publish(new Result(search.toNode(goal), weight, Math.max(1, bound), System.nanoTime() - begin,
+                                    expansions), listener);
+        } else if (last == null && goal >= 0) {
+          last = publish(new Result(search.toNode(goal), weight, Double.POSITIVE_INFINITY,
+                                    System.nanoTime() - begin, expansions), listener);
+        }
+        return last;
+      }
+      if (goal < 0) return null; // nothing left to expand, the end can't be reached
+
+      // The least g + h still queued bounds the best travel time from below
+      drainFrontier();
+      double lower = space.g[goal];
+      for (int i = 0; i < pendingCount; i++) {
+        lower = Math.min(lower, space.g[pending[i]] + heuristic(pending[i], states));
+      }
+      for (int i = 0; i < inconsistentCount; i++) {
+        lower = Math.min(lower, space.g[inconsistent[i]] + heuristic(inconsistent[i], states));
+      }
+      double bound = space.g[goal] <= lower ? 1 : Math.max(1, Math.min(weight, space.g[goal] / lower));
+      last = publish(new Result(search.toNode(goal), weight, bound, System.nanoTime() - begin, expansions), listener);
+      if (weight == 1 || bound == 1 || System.nanoTime() >= deadline) return last;
+
+      // Requeue the frontier and the inconsistent states under the lower weight and reopen everything
+      weight = Math.max(1, weight - weightStep);
+      IndexedMinHeap open = space.frontier;
+      for (int i = 0; i < pendingCount; i++) {
+        open.add(pending[i], space.g[pending[i]] + weight * heuristic(pending[i], states));
+      }
+      for (int i = 0; i < inconsistentCount; i++) {
+        open.add(inconsistent[i], space.g[inconsistent[i]] + weight * heuristic(inconsistent[i], states));
+      }
+      pendingCount = inconsistentCount = 0;
+      space.reopenAll();
+      nextIteration();
+    }
+  }
+
+
+  private Result publish(Result result, Consumer<Result> listener) {
+    if (listener != null) listener.accept(result);
+    return result;
+  }
+
+
+  /**
+   * Expands states in order of g + weight * h until none on the frontier can still improve the route.
+   * States at the end are never expanded, the best of them is kept as the goal.
+   *
+   * @return boolean false if the deadline passed first
+   */
+  private boolean improvePath(int states) {
+    IndexedMinHeap open = space.frontier;
+    double[] g = space.g;
+    TravelTimeProfiles profiles = search.profiles;
+    double departure = search.departure;
+    while (!open.isEmpty() && (goal < 0 || open.peekPriority() < g[goal])) {
+      if ((expansions & 255) == 0 && System.nanoTime() >= deadline) return false;
+      int state = open.remove();
+      space.close(state);
+      expansions++;
+      int from = state / states;
+      int spd = state - from * states;
+      double parentG = g[state];
+      for (int i = 0; i < (spd > 0 ? 2 : 1); i++) {
+        for (int road = graph.firstRoad(from), last = graph.endRoad(from); road < last; road++) {
+          int to = graph.target(road);
+          int childState = to * states + spd - i;
+          double roadTime = i == 0 ? graph.travelTime(road) : graph.speedingTime(road);
+          if (profiles != null) roadTime = profiles.travelTime(road, roadTime, departure + parentG);
+          double childG = parentG + roadTime;
+          if (childG >= g[childState]) continue;
+          space.reach(childState, childG, state, road);
+          if (to == end) {
+            if (goal < 0 || childG < g[goal]) goal = childState;
+          } else if (!space.isClosed(childState)) {
+            open.addOrDecrease(childState, childG + weight * search.heuristic(to, spd - i));
+          } else if (listedIn[childState] != iteration) {
+            listedIn[childState] = iteration;
+            inconsistent[inconsistentCount++] = childState;
+          }
+        }
+      }
+    }
+    return true;
+  }
+
+
+  private double heuristic(int state, int states) {
+    return search.heuristic(state / states, state % states);
+  }
+
+
+  // Moves the frontier into pending
+  private void drainFrontier() {
+    IndexedMinHeap open = space.frontier;
+    while (!open.isEmpty()) {
+      pending[pendingCount++] = open.remove();
+    }
+  }
+
+
+  private void nextIteration() {
+    if (++iteration == Integer.MAX_VALUE) {
+      Arrays.fill(listedIn, 0);
+      iteration = 1;
+    }
+  }
+}
@@ -0,0 +1,403 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * The ArcFlags class holds the preprocessing of arc-flag routing, a goal-directed speed-up to compare with
+ * the landmarks. The locations are split into cells by coordinates (a k-d split: the cell set is cut in
+ * two across its longer side at the median location, until there are as many cells as asked for), and
+ * every road gets one flag per cell, set when the road lies on some shortest route into that cell. The
+ * compact SearchAStar then skips every road whose flag for the cell of the end is clear.
+ *
+ * A route into a cell enters it through a boundary location, one with a road coming in from another cell,
+ * so a road is flagged for a cell when it lies on a shortest route to one of the cell's boundary locations,
+ * or when it stays inside the cell. The routes are over (location, speeds left) states: a route that enters
+ * the cell with j speeds left is a shortest route to (boundary, j). Speeds left only count down, so the
+ * shortest route from (v, k) to (b, j) is the shortest route from (v, k - j) to (b, 0). One backward
+ * search from (b, 0) over (location, speeds still to use) states, for 0 up to maxSpeeding speeds, gives
+ * them all, and a road is on some shortest route when its cost closes the gap between the two ends (within
+ * SLACK for rounding). The searches of each cell run in parallel. The flags hold for any query that speeds
+ * at most maxSpeeding times, other queries are searched without them.
+ *
+ * Preprocessing a binary graph once: java ArcFlags memphis-medium.bin [cells] [max speeding] [queries]
+ * writes memphis-medium.bin.arcflags next to the graph and compares the search with and without the flags.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class ArcFlags {
+  static final int MAGIC = 0x41524346; // "ARCF"
+  static final int VERSION = 2;
+  static final int HEADER_BYTES = 6 * Integer.BYTES + Long.BYTES;
+  static final double SLACK = 1e-6;
+
+  private final int cells;
+  private final int maxSpeeding;
+  private final int numRoads;
+  private final int[] cellOf; // cell of every location
+  private final long[] bits;  // bit road * cells + cell is the flag of the road for that cell
+  private final long fingerprint; // of the network the flags were computed on
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: java ArcFlags <binary graph> [cells] [max speeding] [queries]");
+      System.exit(1);
+    }
+    int cells = args.length > 1 ? Integer.parseInt(args[1]) : 32;
+    int speeding = args.length > 2 ? Integer.parseInt(args[2]) : 3;
+    int queries = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+    CompactRoadNetwork graph = GraphFile.load(Path.of(args[0]));
+    long time = System.nanoTime();
+    ArcFlags flags = compute(graph, cells, speeding);
+    time = System.nanoTime() - time;
+    Path file = Path.of(args[0] + ".arcflags");
+    flags.save(file);
+    System.out.printf("Flagged %d roads for %d cells (up to %d speeds) in %.1f ms, %.1f cells per road, wrote %s\n",
+                      graph.numRoads(), cells, speeding, time / 1e6, flags.flagCount() / (double) graph.numRoads(), file);
+
+    SearchAStar plain = new SearchAStar(graph, new SearchSpace(graph.numLocations(), speeding), false);
+    SearchAStar flagged = new SearchAStar(graph, new SearchSpace(graph.numLocations(), speeding), false);
+    flagged.setArcFlags(flags);
+    Random rand = new Random(372);
+    long plainVisited = 0, flaggedVisited = 0, plainNanos = 0, flaggedNanos = 0;
+    int mismatches = 0;
+    for (int q = 0; q < queries; q++) {
+      long start = graph.id(rand.nextInt(graph.numLocations()));
+      long end = graph.id(rand.nextInt(graph.numLocations()));
+      int k = rand.nextInt(speeding + 1);
+      time = System.nanoTime();
+      Node expected = plain.search(start, end, k);
+      plainNanos += System.nanoTime() - time;
+      plainVisited += plain.totalNodeVisited;
+      time = System.nanoTime();
+      Node route = flagged.search(start, end, k);
+      flaggedNanos += System.nanoTime() - time;
+      flaggedVisited += flagged.totalNodeVisited;
+      double a = expected == null ? -1 : expected.g_cost();
+      double b = route == null ? -1 : route.g_cost();
+      if (Math.abs(a - b) > 1e-6) mismatches++;
+    }
+    System.out.printf("%d queries: A* %d states in %.1f ms, with arc flags %d states in %.1f ms (%.1fx fewer states)\n",
+                      queries, plainVisited, plainNanos / 1e6, flaggedVisited, flaggedNanos / 1e6,
+                      plainVisited / (double) Math.max(1, flaggedVisited));
+    System.out.println(mismatches == 0 ? "Every travel time matches A*" : mismatches + " travel times differ from A*!");
+  }
+
+
+  ArcFlags(long fingerprint, int cells, int maxSpeeding, int numRoads, int[] cellOf, long[] bits) {
+    this.fingerprint = fingerprint;
+    this.cells = cells;
+    this.maxSpeeding = maxSpeeding;
+    this.numRoads = numRoads;
+    this.cellOf = cellOf;
+    this.bits = bits;
+  }
+
+
+  /**
+   * Partitions the network and flags every road.
+   *
+   * @param graph The network
+   * @param cells The number of cells
+   * @param maxSpeeding The most speeds a query may use for the flags to hold
+   * @return ArcFlags The cells and flags
+   */
+  public static ArcFlags compute(CompactRoadNetwork graph, int cells, int maxSpeeding) {
+    int n = graph.numLocations();
+    int m = graph.numRoads();
+    if (cells < 1 || cells > n) throw new IllegalArgumentException("Can't split " + n + " locations into " + cells + " cells.");
+    int[] cellOf = partition(graph, cells);
+    long[] bits = new long[(int) (((long) m * cells + 63) >>> 6)];
+
+    // Roads inside a cell are flagged for it, and roads between cells mark their end as a boundary location
+    boolean[] boundary = new boolean[n];
+    int[] boundaries = new int[cells];
+    for (int u = 0; u < n; u++) {
+      for (int road = graph.firstRoad(u), last = graph.endRoad(u); road < last; road++) {
+        int v = graph.target(road);
+        if (cellOf[u] == cellOf[v]) {
+          set(bits, (long) road * cells + cellOf[u]);
+        } else if (!boundary[v]) {
+          boundary[v] = true;
+          boundaries[cellOf[v]]++;
+        }
+      }
+    }
+    int[][] boundaryOf = new int[cells][];
+    for (int c = 0; c < cells; c++) {
+      boundaryOf[c] = new int[boundaries[c]];
+      boundaries[c] = 0;
+    }
+    for (int v = 0; v < n; v++) {
+      if (boundary[v]) boundaryOf[cellOf[v]][boundaries[cellOf[v]]++] = v;
+    }
+
+    CompactRoadNetwork reversed = graph.reverse();
+    int states = maxSpeeding + 1;
+    IntStream.range(0, cells).parallel().forEach(c -> {
+      double[] dist = new double[n * states];
+      IndexedMinHeap heap = new IndexedMinHeap(n * states);
+      BitSet onRoute = new BitSet(m);
+      for (int b : boundaryOf[c]) {
+        backward(reversed, b, maxSpeeding, dist, heap);
+        markShortest(graph, maxSpeeding, dist, onRoute);
+      }
+      synchronized (bits) {
+        for (int road = onRoute.nextSetBit(0); road >= 0; road = onRoute.nextSetBit(road + 1)) {
+          set(bits, (long) road * cells + c);
+        }
+      }
+    });
+    return new ArcFlags(graph.fingerprint(), cells, maxSpeeding, m, cellOf, bits);
+  }
+
+
+  /**
+   * Splits the locations into cells of nearly equal size, cutting each group across its longer side.
+   *
+   * @return int[] The cell of every location
+   */
+  static int[] partition(CompactRoadNetwork graph, int cells) {
+    int n = graph.numLocations();
+    int[] order = new int[n];
+    for (int i = 0; i < n; i++) order[i] = i;
+    int[] cellOf = new int[n];
+    split(graph, order, 0, n, 0, cells, cellOf);
+    return cellOf;
+  }
+
+
+  private static void split(CompactRoadNetwork graph, int[] order, int lo, int hi, int firstCell, int count,
+                            int[] cellOf) {
+    if (count == 1) {
+      for (int i = lo; i < hi; i++) cellOf[order[i]] = firstCell;
+      return;
+    }
+    double minLat = Double.POSITIVE_INFINITY, maxLat = Double.NEGATIVE_INFINITY;
+    double minLon = Double.POSITIVE_INFINITY, maxLon = Double.NEGATIVE_INFINITY;
+    for (int i = lo; i < hi; i++) {
+      minLat = Math.min(minLat, graph.latitude(order[i]));
+      maxLat = Math.max(maxLat, graph.latitude(order[i]));
+      minLon = Math.min(minLon, graph.longitude(order[i]));
+      maxLon = Math.max(maxLon, graph.longitude(order[i]));
+    }
+    // A degree of longitude is shorter than a degree of latitude away from the equator
+    double lonScale = Math.cos(Math.toRadians((minLat + maxLat) / 2));
+    boolean byLatitude = maxLat - minLat >= (maxLon - minLon) * lonScale;
+    int left = count / 2;
+    int mid = lo + (int) ((long) (hi - lo) * left / count);
+    select(graph, order, lo, hi - 1, mid, byLatitude);
+    split(graph, order, lo, mid, firstCell, left, cellOf);
+    split(graph, order, mid, hi, firstCell + left, count - left, cellOf);
+  }
+
+
+  // Reorders order[lo..hi] so order[k] is the location that sorting by the coordinate would put there
+  private static void select(CompactRoadNetwork graph, int[] order, int lo, int hi, int k, boolean byLatitude) {
+    while (lo < hi) {
+      double pivot = key(graph, order[(lo + hi) >>> 1], byLatitude);
+      int i = lo, j = hi;
+      while (i <= j) {
+        while (key(graph, order[i], byLatitude) < pivot) i++;
+        while (key(graph, order[j], byLatitude) > pivot) j--;
+        if (i <= j) {
+          int swap = order[i];
+          order[i++] = order[j];
+          order[j--] = swap;
+        }
+      }
+      if (k <= j) {
+        hi = j;
+      } else if (k >= i) {
+        lo = i;
+      } else {
+        return;
+      }
+    }
+  }
+
+
+  private static double key(CompactRoadNetwork graph, int location, boolean byLatitude) {
+    return byLatitude ? graph.latitude(location) : graph.longitude(location);
+  }
+
+
+  /**
+   * Dijkstra over the reversed roads from (boundary, 0). dist[v * (maxSpeeding + 1) + k] is filled with
+   * the shortest time from v to the boundary location speeding exactly k times.
+   */
+  private static void backward(CompactRoadNetwork reversed, int boundary, int maxSpeeding, double[] dist,
+                               IndexedMinHeap heap) {
+    int states = maxSpeeding + 1;
+    Arrays.fill(dist, Double.POSITIVE_INFINITY);
+    dist[boundary * states] = 0;
+    heap.add(boundary * states, 0);
+    while (!heap.isEmpty()) {
+      int state = heap.remove();
+      int v = state / states;
+      int used = state - v * states;
+      double d = dist[state];
+      for (int road = reversed.firstRoad(v), last = reversed.endRoad(v); road < last; road++) {
+        int u = reversed.target(road);
+        int plain = u * states + used;
+        double nd = d + reversed.travelTime(road);
+        if (nd < dist[plain]) {
+          dist[plain] = nd;
+          heap.addOrDecrease(plain, nd);
+        }
+        if (used < maxSpeeding) {
+          int speeding = plain + 1;
+          nd = d + reversed.speedingTime(road);
+          if (nd < dist[speeding]) {
+            dist[speeding] = nd;
+            heap.addOrDecrease(speeding, nd);
+          }
+        }
+      }
+    }
+  }
+
+
+  // Marks every road that some shortest route to the boundary location of the last backward search takes
+  private static void markShortest(CompactRoadNetwork graph, int maxSpeeding, double[] dist, BitSet onRoute) {
+    int states = maxSpeeding + 1;
+    for (int u = 0, n = graph.numLocations(); u < n; u++) {
+      for (int road = graph.firstRoad(u), last = graph.endRoad(u); road < last; road++) {
+        if (onRoute.get(road)) continue;
+        int v = graph.target(road);
+        for (int k = 0; k < states; k++) {
+          double du = dist[u * states + k];
+          if (du == Double.POSITIVE_INFINITY) continue;
+          if (graph.travelTime(road) + dist[v * states + k] <= du + SLACK
+              || k > 0 && graph.speedingTime(road) + dist[v * states + k - 1] <= du + SLACK) {
+            onRoute.set(road);
+            break;
+          }
+        }
+      }
+    }
+  }
+
+
+  private static void set(long[] bits, long bit) {
+    bits[(int) (bit >>> 6)] |= 1L << bit;
+  }
+
+
+  public int cells() { return cells; }
+
+  public int maxSpeeding() { return maxSpeeding; }
+
+  public long fingerprint() { return fingerprint; }
+
+  public int cell(int location) { return cellOf[location]; }
+
+
+  /**
+   * Whether a road lies on some shortest route into a cell.
+   *
+   * @param road The dense road index
+   * @param cell The cell of the end of the route
+   * @return boolean true if the search should take the road
+   */
+  public boolean allows(int road, int cell) {
+    long bit = (long) road * cells + cell;
+    return (bits[(int) (bit >>> 6)] & 1L << bit) != 0;
+  }
+
+
+  // The number of flags set over all roads and cells
+  long flagCount() {
+    long count = 0;
+    for (long word : bits) count += Long.bitCount(word);
+    return count;
+  }
+
+
+  /**
+   * Saves the cells and flags.
+   *
+   * Layout (little-endian): magic, version, numLocations (n), numRoads (m), cells (c), maxSpeeding,
+   * long fingerprint of the network, int cellOf[n], long bits[(m*c+63)/64]
+   *
+   * @param file The path to write
+   * @throws IOException If the file can't be written
+   */
+  public void save(Path file) throws IOException {
+    long size = fileBytes(cellOf.length, numRoads, cells);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      buf.putInt(MAGIC).putInt(VERSION).putInt(cellOf.length).putInt(numRoads).putInt(cells).putInt(maxSpeeding);
+      buf.putLong(fingerprint);
+      buf.asIntBuffer().put(cellOf);
+      buf.position(buf.position() + cellOf.length * Integer.BYTES);
+      buf.asLongBuffer().put(bits);
+      buf.force();
+    }
+  }
+
+
+  /**
+   * The size of an arc flag file, in bytes.
+   *
+   * @param n The number of locations
+   * @param m The number of roads
+   * @param cells The number of cells
+   * @return long The bytes of the header, the cell of every location and the flag bits
+   */
+  static long fileBytes(int n, int m, int cells) {
+    return HEADER_BYTES + (long) n * Integer.BYTES + (((long) m * cells + 63) >>> 6) * Long.BYTES;
+  }
+
+
+  /**
+   * Loads arc flags saved for the given network.
+   *
+   * @param file The arc flag file
+   * @param graph The network they were computed on
+   * @return ArcFlags The loaded cells and flags
+   * @throws IOException If the file can't be read, belongs to another graph or is truncated or corrupt
+   */
+  public static ArcFlags load(Path file, CompactRoadNetwork graph) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_BYTES) throw new IOException(file + " is not an arc flag file.");
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      if (buf.getInt() != MAGIC) throw new IOException(file + " is not an arc flag file.");
+      int version = buf.getInt();
+      if (version != VERSION) throw new IOException(file + " has unsupported version " + version + ".");
+      int n = buf.getInt();
+      int m = buf.getInt();
+      int cells = buf.getInt();
+      int maxSpeeding = buf.getInt();
+      if (n != graph.numLocations() || m != graph.numRoads() || buf.getLong() != graph.fingerprint())
+        throw new IOException(file + " was computed for another graph or numbering.");
+      if (cells < 1 || cells > n || maxSpeeding < 0) throw new IOException(file + " has a corrupt header.");
+      long expected = fileBytes(n, m, cells);
+      if (size != expected)
+        throw new IOException(file + " has " + size + " bytes, but " + cells + " cells on " + m + " roads need "
+                              + expected + " (truncated or corrupt file).");
+      if (expected > Integer.MAX_VALUE) throw new IOException(file + " is too large to map.");
+      int[] cellOf = new int[n];
+      buf.asIntBuffer().get(cellOf);
+      buf.position(buf.position() + n * Integer.BYTES);
+      for (int cell : cellOf) {
+        if (cell < 0 || cell >= cells) throw new IOException(file + " has a location outside of the cells.");
+      }
+      long[] bits = new long[(int) (((long) m * cells + 63) >>> 6)];
+      buf.asLongBuffer().get(bits);
+      return new ArcFlags(graph.fingerprint(), cells, maxSpeeding, m, cellOf, bits);
+    }
+  }
+}
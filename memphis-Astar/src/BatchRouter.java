@@ -0,0 +1,334 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * The BatchRouter class answers a stream of route queries in parallel. Every query is a line
+ * "start,end,speeding" (commas or spaces) read from a file or stdin. The network is the immutable
+ * CompactRoadNetwork, shared by all the workers, and every worker owns a compact SearchAStar with its own
+ * SearchSpace, so a query allocates nothing but its result. One thread reads the queries into a bounded
+ * queue the workers take from, and every result is written as soon as its query is done:
+ * "start,end,speeding,travel time in seconds,nodes visited,latency in microseconds" ("none" for the travel
+ * time when the end can't be reached, "error: ..." for a bad line, a budget above MAX_SPEEDING or any other
+ * failure of that query). Results come out in completion order.
+ * Once the input ends the throughput and the p50/p99 latencies are printed to stderr.
+ * With --cache the workers share a RouteCache of at most that many roads (a hit reports 0 nodes visited),
+ * and with --warm the cache is preloaded from that file when it exists and saved back to it at the end.
+ * With --metrics the SearchMetrics of every query that was searched (not the cache hits) are written to that
+ * file as JSON lines, for aggregating with SearchMetrics across runs. --timed adds the phase timings, which
+ * slows the searches down a little.
+ *
+ * Usage: java BatchRouter [--alt] [--threads n] [--cache roads] [--warm file] [--metrics file [--timed]]
+ *                             <graph file> [query file, default stdin]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class BatchRouter {
+  static final int QUEUE_SIZE = 4096;
+  static final int DEFAULT_SPEEDING = 3; // every worker's SearchSpace starts sized for this budget
+  static final int MAX_SPEEDING = 64;    // a bigger budget is an error line, the space grows with the budget
+  private static final String END_OF_INPUT = ""; // blank lines are never queued, so this tells a worker to stop
+
+  private final CompactRoadNetwork graph;
+  private final Landmarks landmarks;
+  private final int threads;
+  private RouteCache cache;
+  private PrintStream metrics;
+  private boolean timedMetrics;
+
+  public static void main(String[] args) throws IOException, InterruptedException {
+    boolean alt = false;
+    int threads = Runtime.getRuntime().availableProcessors();
+    String filename = null;
+    String queryFile = null;
+    long cacheSize = 0;
+    Path warmFile = null;
+    Path metricsFile = null;
+    boolean timed = false;
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--alt")) {
+        alt = true;
+      } else if (args[i].equals("--threads")) {
+        threads = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--cache")) {
+        cacheSize = Long.parseLong(args[++i]);
+      } else if (args[i].equals("--warm")) {
+        warmFile = Path.of(args[++i]);
+      } else if (args[i].equals("--metrics")) {
+        metricsFile = Path.of(args[++i]);
+      } else if (args[i].equals("--timed")) {
+        timed = true;
+      } else if (filename == null) {
+        filename = args[i];
+      } else {
+        queryFile = args[i];
+      }
+    }
+    if (filename == null) {
+      System.err.println("Usage: java BatchRouter [--alt] [--threads n] [--cache roads] [--warm file] "
+                         + "[--metrics file [--timed]] <graph file> [query file]");
+      System.exit(1);
+    }
+
+    CompactRoadNetwork graph = filename.endsWith(".bin") ? GraphFile.load(Path.of(filename))
+                               : Main.readCompactGraph(filename);
+    Landmarks landmarks = alt ? Main.readLandmarks(filename, graph) : null;
+
+    BatchRouter router = new BatchRouter(graph, landmarks, threads);
+    RouteCache cache = null;
+    if (cacheSize > 0) {
+      cache = new RouteCache(graph, cacheSize);
+      if (warmFile != null && Files.exists(warmFile)) {
+        try {
+          cache.load(warmFile);
+        } catch (IOException e) {
+          System.err.println("Ignoring " + warmFile + " (" + e.getMessage() + ")");
+        }
+      }
+      router.setCache(cache);
+    }
+    PrintStream metrics = null;
+    if (metricsFile != null) {
+      metrics = new PrintStream(Files.newOutputStream(metricsFile), false, StandardCharsets.UTF_8);
+      router.setMetrics(metrics, timed);
+    }
+    PrintStream out = new PrintStream(System.out, false, StandardCharsets.UTF_8);
+    try (BufferedReader in = queryFile == null
+                             ? new BufferedReader(new InputStreamReader(System.in, StandardCharsets.UTF_8))
+                             : Files.newBufferedReader(Path.of(queryFile))) {
+      Stats stats = router.run(in, out);
+      out.flush();
+      System.err.println(stats);
+    } finally {
+      if (metrics != null) {
+        metrics.close();
+      }
+    }
+    if (cache != null) {
+      System.err.println(cache);
+      if (warmFile != null) {
+        cache.save(warmFile);
+      }
+    }
+  }
+
+
+  /**
+   * Sets up a router over a shared network.
+   *
+   * @param graph The network every worker searches
+   * @param landmarks Landmarks for the ALT heuristic, or null for the straight-line bound
+   * @param threads The number of workers
+   */
+  public BatchRouter(CompactRoadNetwork graph, Landmarks landmarks, int threads) {
+    if (threads < 1) throw new IllegalArgumentException("A router needs at least one worker.");
+    this.graph = graph;
+    this.landmarks = landmarks;
+    this.threads = threads;
+  }
+
+
+  /**
+   * Puts a cache in front of the workers' searches.
+   *
+   * @param cache The cache the workers share, or null for none
+   */
+  public void setCache(RouteCache cache) {
+    this.cache = cache;
+  }
+
+
+  /**
+   * Writes the SearchMetrics of every searched query as a line of JSON.
+   *
+   * @param metrics Where the lines go, written by one worker at a time, or null for none
+   * @param timed true to time the phases of the searches too
+   */
+  public void setMetrics(PrintStream metrics, boolean timed) {
+    this.metrics = metrics;
+    this.timedMetrics = timed;
+  }
+
+
+  /**
+   * Answers every query of the input and writes the results to out as they complete.
+   *
+   * @param in The queries, one per line
+   * @param out Where the results go, written by one worker at a time
+   * @return Stats The throughput and latencies of the batch
+   * @throws IOException If the input can't be read
+   * @throws InterruptedException If the calling thread is interrupted while waiting on the workers
+   */
+  public Stats run(BufferedReader in, PrintStream out) throws IOException, InterruptedException {
+    BlockingQueue<String> queue = new ArrayBlockingQueue<>(QUEUE_SIZE);
+    Worker[] workers = new Worker[threads];
+    long begin = System.nanoTime();
+    for (int i = 0; i < threads; i++) {
+      workers[i] = new Worker(queue, out);
+      workers[i].start();
+    }
+    try {
+      String line;
+      while ((line = in.readLine()) != null) {
+        line = line.strip();
+        if (!line.isEmpty() && !line.startsWith("#")) {
+          queue.put(line);
+        }
+      }
+    } finally {
+      for (int i = 0; i < threads; i++) {
+        queue.put(END_OF_INPUT);
+      }
+      for (Worker worker : workers) {
+        worker.join();
+      }
+    }
+    long elapsed = System.nanoTime() - begin;
+
+    int count = 0;
+    for (Worker worker : workers) count += worker.count;
+    long[] latencies = new long[count];
+    int at = 0;
+    for (Worker worker : workers) {
+      System.arraycopy(worker.latencies, 0, latencies, at, worker.count);
+      at += worker.count;
+    }
+    Arrays.sort(latencies);
+    return new Stats(count, threads, elapsed, latencies);
+  }
+
+
+  /**
+   * One worker thread with its own search and latency log.
+   */
+  private final class Worker extends Thread {
+    private final BlockingQueue<String> queue;
+    private final PrintStream out;
+    private SearchAStar search;
+    long[] latencies = new long[1024];
+    int count;
+
+    Worker(BlockingQueue<String> queue, PrintStream out) {
+      this.queue = queue;
+      this.out = out;
+      this.search = newSearch(DEFAULT_SPEEDING);
+      setDaemon(true);
+    }
+
+    private SearchAStar newSearch(int maxSpeeding) {
+      SearchAStar s = new SearchAStar(graph, new SearchSpace(graph.numLocations(), maxSpeeding), false);
+      s.setLandmarks(landmarks);
+      if (metrics != null) {
+        s.setMetrics(new SearchMetrics(timedMetrics));
+      }
+      return s;
+    }
+
+    @Override
+    public void run() {
+      StringBuilder result = new StringBuilder();
+      while (true) {
+        String line;
+        try {
+          line = queue.take();
+        } catch (InterruptedException e) {
+          return;
+        }
+        if (line.isEmpty()) return;
+
+        result.setLength(0);
+        long begin = System.nanoTime();
+        try {
+          String[] pieces = line.split("[,\\s]+");
+          if (pieces.length != 3) throw new IllegalArgumentException("expected start,end,speeding");
+          long start = Long.parseLong(pieces[0]);
+          long end = Long.parseLong(pieces[1]);
+          int speeding = Integer.parseInt(pieces[2]);
+          if (speeding < 0) throw new IllegalArgumentException("speeding can't be negative");
+          if (speeding > MAX_SPEEDING) throw new IllegalArgumentException("speeding can't be more than " + MAX_SPEEDING);
+          // A bigger budget than this worker's space allows gets a bigger space, kept for later queries
+          if (!search.space.fits(graph, speeding)) {
+            search = newSearch(speeding);
+          }
+          RouteCache.Route cached = cache == null ? null : cache.get(start, end, speeding);
+          double time;
+          int visited = 0;
+          if (cached != null) {
+            time = cached.reachable() ? cached.gCost() : Double.NaN;
+          } else {
+            int goal = search.searchStates(graph.indexOf(start), graph.indexOf(end), speeding);
+            visited = search.totalNodeVisited;
+            time = goal < 0 ? Double.NaN : search.space.g[goal];
+            if (cache != null) {
+              cache.put(start, end, speeding,
+                        goal < 0 ? RouteCache.UNREACHABLE : new RouteCache.Route(time, search.roadCodes(goal)));
+            }
+            if (metrics != null) {
+              String json = search.metrics.toJson();
+              synchronized (metrics) {
+                metrics.println(json);
+              }
+            }
+          }
+          long latency = System.nanoTime() - begin;
+          record(latency);
+          result.append(start).append(',').append(end).append(',').append(speeding).append(',');
+          if (Double.isNaN(time)) {
+            result.append("none");
+          } else {
+            result.append(String.format("%.3f", time));
+          }
+          result.append(',').append(visited).append(',').append(latency / 1000);
+        } catch (RuntimeException | OutOfMemoryError e) {
+          // One bad query must not end the worker, or the reader would block on the full queue. A space that
+          // didn't fit in memory is garbage again and the worker keeps its old one.
+          result.setLength(0);
+          result.append(line).append(",error: ").append(e.getMessage() != null ? e.getMessage() : e.toString());
+        }
+        synchronized (out) {
+          out.println(result);
+        }
+      }
+    }
+
+    private void record(long latency) {
+      if (count == latencies.length) {
+        latencies = Arrays.copyOf(latencies, count * 2);
+      }
+      latencies[count++] = latency;
+    }
+  }
+
+
+  /**
+   * The throughput and latency percentiles of one batch.
+   *
+   * @param queries The number of queries answered
+   * @param threads The number of workers
+   * @param nanos The wall time of the whole batch
+   * @param latencies The sorted latency of every query in nanoseconds
+   */
+  public record Stats(int queries, int threads, long nanos, long[] latencies) {
+    public double throughput() { return queries / (nanos / 1e9); }
+
+    public double percentileMillis(double p) {
+      if (latencies.length == 0) return Double.NaN;
+      int i = (int) Math.ceil(p / 100 * latencies.length) - 1;
+      return latencies[Math.max(0, i)] / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d queries on %d threads in %.1f ms: %.0f queries/sec, p50 %.3f ms, p99 %.3f ms",
+                           queries, threads, nanos / 1e6, throughput(), percentileMillis(50), percentileMillis(99));
+    }
+  }
+}
@@ -0,0 +1,257 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * A repeatable benchmark suite for the A* module. For every graph it measures:
+ *   load.text / load.parallel        parsing the text graph with Main.parseGraph and with ParallelGraphLoader
+ *   load.binary                      mapping its binary file
+ *   search.map.[class].k[budget]     SearchAStar.startSearch on the RoadNetwork, ms per query
+ *   search.compact.[class].k[budget] the compact SearchAStar.search on a reused SearchSpace, ms per query
+ *   priqueue.* / indexedheap.*       frontier operations, ns per operation
+ * Queries come from a fixed seed and are split by straight-line length into short (under a fifth of the
+ * graph's diameter), medium (up to half) and long classes, each run with speeding budgets 0 to 3.
+ * Every benchmark runs its warm-up iterations first and then reports the mean and standard deviation of
+ * the measured iterations, in the spirit of a JMH average-time run. Results are fed to a sink so the JIT
+ * can't drop the work.
+ *
+ * Graphs are text files, or synthetic grids from GridGraph for measuring beyond the Memphis data:
+ * java Benchmarks [--warmups n] [--iterations n] [--queries per class] [--grid size ...] [graph file ...]
+ * With no graph at all a 100 x 100 grid is used.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public class Benchmarks {
+  static final long SEED = 372;
+  static final String[] CLASSES = { "short", "medium", "long" };
+  static int warmups = 3;
+  static int iterations = 5;
+  static volatile double sink;
+
+  public static void main(String[] args) throws IOException {
+    int perClass = 5;
+    List<Path> graphs = new ArrayList<>();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i].equals("--warmups")) {
+        warmups = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--iterations")) {
+        iterations = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--queries")) {
+        perClass = Integer.parseInt(args[++i]);
+      } else if (args[i].equals("--grid")) {
+        graphs.add(grid(Integer.parseInt(args[++i])));
+      } else {
+        graphs.add(Path.of(args[i]));
+      }
+    }
+    if (graphs.isEmpty()) {
+      graphs.add(grid(100));
+    }
+
+    System.out.printf("%-32s %5s %12s %12s  %s\n", "Benchmark", "Cnt", "Score", "Error", "Units");
+    for (Path file : graphs) {
+      run(file, perClass);
+    }
+  }
+
+
+  // A temporary grid graph of size x size locations
+  private static Path grid(int size) throws IOException {
+    Path file = Files.createTempFile("grid" + size + "x" + size + "-", ".txt");
+    file.toFile().deleteOnExit();
+    GridGraph.write(size, size, SEED, file);
+    return file;
+  }
+
+
+  private static void run(Path file, int perClass) throws IOException {
+    RoadNetwork graph = parse(file);
+    CompactRoadNetwork compact = graph.compact();
+    System.out.printf("# %s: %d locations, %d roads\n", file.getFileName(), compact.numLocations(), compact.numRoads());
+
+    bench("load.text", "ms/op", 1e6, 1, () -> sink = parse(file).getLocations().size());
+    bench("load.parallel", "ms/op", 1e6, 1, () -> sink = loadParallel(file).numRoads());
+    Path bin = Files.createTempFile("graph-", ".bin");
+    bin.toFile().deleteOnExit();
+    GraphFile.write(compact, bin);
+    bench("load.binary", "ms/op", 1e6, 1, () -> sink = load(bin).numRoads());
+
+    int[][][] queries = querySet(compact, perClass);
+    SearchAStar reused = new SearchAStar(compact, new SearchSpace(compact.numLocations(), 3), false);
+    for (int c = 0; c < CLASSES.length; c++) {
+      int[][] pairs = queries[c];
+      for (int k = 0; k <= 3; k++) {
+        final int budget = k;
+        bench("search.map." + CLASSES[c] + ".k" + k, "ms/op", 1e6, pairs.length, () -> {
+          for (int[] pair : pairs) {
+            SearchAStar gps = new SearchAStar(graph, graph.getLocation(compact.id(pair[0])),
+                                              graph.getLocation(compact.id(pair[1])), budget, false);
+            sink = cost(gps.startSearch());
+          }
+        });
+        bench("search.compact." + CLASSES[c] + ".k" + k, "ms/op", 1e6, pairs.length, () -> {
+          for (int[] pair : pairs) {
+            sink = cost(reused.search(compact.id(pair[0]), compact.id(pair[1]), budget));
+          }
+        });
+      }
+    }
+
+    frontierBenchmarks();
+  }
+
+
+  private static RoadNetwork parse(Path file) {
+    try (InputStream in = Files.newInputStream(file)) {
+      return Main.parseGraph(in);
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't read " + file, e);
+    }
+  }
+
+
+  private static CompactRoadNetwork loadParallel(Path file) {
+    try {
+      return ParallelGraphLoader.load(file);
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't read " + file, e);
+    }
+  }
+
+
+  private static CompactRoadNetwork load(Path file) {
+    try {
+      return GraphFile.load(file);
+    } catch (IOException e) {
+      throw new IllegalStateException("Can't read " + file, e);
+    }
+  }
+
+
+  private static double cost(Node route) {
+    return route == null ? -1 : route.g_cost();
+  }
+
+
+  /**
+   * Seeded random (start, end) pairs split by straight-line length into short, medium and long classes.
+   * The diameter is taken as the longest of a sample of random pairs.
+   *
+   * @return int[][][] For every class, perClass pairs of dense indices
+   */
+  static int[][][] querySet(CompactRoadNetwork graph, int perClass) {
+    Random rand = new Random(SEED);
+    int n = graph.numLocations();
+    double diameter = 0;
+    for (int i = 0; i < 1000; i++) {
+      diameter = Math.max(diameter, graph.chordMiles(rand.nextInt(n), rand.nextInt(n)));
+    }
+    int[][][] queries = new int[CLASSES.length][perClass][];
+    int[] count = new int[CLASSES.length];
+    for (int tries = 0; tries < 1_000_000 && (count[0] < perClass || count[1] < perClass || count[2] < perClass); tries++) {
+      int s = rand.nextInt(n);
+      int t = rand.nextInt(n);
+      double length = graph.chordMiles(s, t) / diameter;
+      int c = length < 0.2 ? 0 : length < 0.5 ? 1 : 2;
+      if (s != t && count[c] < perClass) {
+        queries[c][count[c]++] = new int[] { s, t };
+      }
+    }
+    for (int c = 0; c < CLASSES.length; c++) {
+      if (count[c] < perClass) throw new IllegalStateException("Not enough " + CLASSES[c] + " queries in the graph.");
+    }
+    return queries;
+  }
+
+
+  // The original PriQueue frontier against the IndexedMinHeap, on the same random priorities
+  private static void frontierBenchmarks() {
+    int size = 10_000;
+    Random rand = new Random(SEED);
+    double[] priorities = new double[size];
+    for (int i = 0; i < size; i++) {
+      priorities[i] = rand.nextDouble() * 3600;
+    }
+    Integer[] items = new Integer[size];
+    for (int i = 0; i < size; i++) {
+      items[i] = i;
+    }
+
+    bench("priqueue.add+remove", "ns/op", 1, size, () -> {
+      PriQueue<Integer, Double> queue = new PriQueue<>(true);
+      for (int i = 0; i < size; i++) {
+        queue.add(items[i], priorities[i]);
+      }
+      double sum = 0;
+      while (!queue.isEmpty()) {
+        sum += queue.remove();
+      }
+      sink = sum;
+    });
+    PriQueue<Integer, Double> full = new PriQueue<>(true);
+    for (int i = 0; i < 1000; i++) {
+      full.add(items[i], priorities[i]);
+    }
+    bench("priqueue.contains(1000)", "ns/op", 1, size, () -> {
+      int found = 0;
+      for (int i = 0; i < size; i++) {
+        if (full.contains(items[(i * 7) % 2000])) found++;
+      }
+      sink = found;
+    });
+    IndexedMinHeap heap = new IndexedMinHeap(size);
+    bench("indexedheap.add+remove", "ns/op", 1, size, () -> {
+      for (int i = 0; i < size; i++) {
+        heap.add(i, priorities[i]);
+      }
+      double sum = 0;
+      while (!heap.isEmpty()) {
+        sum += heap.remove();
+      }
+      sink = sum;
+    });
+    bench("indexedheap.decreaseKey", "ns/op", 1, size, () -> {
+      for (int i = 0; i < size; i++) {
+        heap.add(i, priorities[i] + 3600);
+      }
+      for (int i = 0; i < size; i++) {
+        heap.decreaseKey(i, priorities[i]);
+      }
+      heap.clear();
+    });
+  }
+
+
+  /**
+   * Runs one benchmark and prints its row.
+   *
+   * @param name The benchmark name
+   * @param unit The unit of the score
+   * @param nanosPerUnit Nanoseconds in one unit
+   * @param ops Operations done by one call of body
+   * @param body The measured work
+   */
+  static void bench(String name, String unit, double nanosPerUnit, int ops, Runnable body) {
+    for (int i = 0; i < warmups; i++) {
+      body.run();
+    }
+    double[] scores = new double[iterations];
+    for (int i = 0; i < iterations; i++) {
+      long time = System.nanoTime();
+      body.run();
+      scores[i] = (System.nanoTime() - time) / nanosPerUnit / ops;
+    }
+    double mean = 0;
+    for (double s : scores) mean += s;
+    mean /= iterations;
+    double variance = 0;
+    for (double s : scores) variance += (s - mean) * (s - mean);
+    double deviation = iterations > 1 ? Math.sqrt(variance / (iterations - 1)) : Double.NaN;
+    System.out.printf("%-32s %5d %12.3f +- %9.3f  %s\n", name, iterations, mean, deviation, unit);
+  }
+}
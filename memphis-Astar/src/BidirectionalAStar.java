@@ -0,0 +1,349 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The BidirectionalAStar class runs a forward and a backward A* on a CompactRoadNetwork at the same time.
+ * The forward search goes over (location, speeds left) states from (start, speeding) like the compact
+ * SearchAStar. The backward search goes from the end over the reversed roads, and its state (v, j) holds
+ * the fastest time from v to the end speeding at most speeding - j times. It starts from every (end, j),
+ * and a road into (v, j) taken speeding leads back to (u, j - 1), so it has the same transitions as the
+ * forward search. The forward state (v, left) and the backward state (v, speeding - left) together make a
+ * route, and every time either search improves a label it is checked against that one label of the other.
+ * Both directions are SearchAStar searches, so they expand through SearchAStar.expandState.
+ *
+ * Both searches use the average potential p(v, left) = (hf(v, left) - hb(v, left)) / 2 (forward) and -p
+ * (backward). hf is SearchAStar's budget-aware bound from v to the end with left speeds left, and hb is the
+ * same bound from the start to v with the speeds used on the way there (speeding - left), each the larger
+ * of the straight-line and the landmark bound when landmarks are set. Both are consistent over the forward
+ * states, so with p both searches are Dijkstra on the same reduced costs, and the search can stop as soon
+ * as the smallest forward key plus the smallest backward key is at least the best route found. It settles
+ * about a quarter fewer states than SearchAStar at every budget, and the distances behind the potentials
+ * are kept per location, so it pays off most when speeding is allowed. At speeding 0 the second frontier
+ * costs about as much time as the states it saves.
+ * Each direction keeps its labels in its own SearchSpace, so one BidirectionalAStar answers any number of
+ * queries with search() without allocating until the route is rebuilt as a Node chain.
+ *
+ * Comparing it with the unidirectional compact search:
+ * java BidirectionalAStar [--alt] [graph file] [start,end,speeding ...]
+ * The default queries are the ones in run_short.sh, run_long.sh and run_long2.sh.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class BidirectionalAStar {
+  static final int RUNS = 5; // timed runs of every query in main
+
+  private final CompactRoadNetwork graph;
+  private final CompactRoadNetwork reversed;
+  private final Direction forward;
+  private final Direction backward;
+  private Landmarks landmarks;
+  // Distances of the current query by location, milesToEnd is NaN until first needed
+  private final double[] milesToEnd, milesFromStart, landmarksToEnd, landmarksFromStart;
+  private final int[] touched;
+  private int touchedCount;
+  // Current query
+  private int states;
+  private int start, end;
+  private double best;
+  private int bestForward, bestBackward;
+  int totalNodeVisited; // states settled by the last query, both directions
+  int peakFrontier;     // largest forward plus backward frontier of the last query
+
+  public static void main(String[] args) {
+    boolean alt = false;
+    String filename = "memphis-medium.txt";
+    List<String> queries = new ArrayList<>();
+    for (String arg : args) {
+      if (arg.equals("--alt")) {
+        alt = true;
+      } else if (arg.indexOf(',') >= 0) {
+        queries.add(arg);
+      } else {
+        filename = arg;
+      }
+    }
+    if (queries.isEmpty()) {
+      queries = List.of(HeuristicBenchmark.RUN_QUERIES);
+    }
+
+    CompactRoadNetwork compact;
+    if (filename.endsWith(".bin")) {
+      try {
+        compact = GraphFile.load(Path.of(filename));
+      } catch (IOException e) {
+        System.err.println("Bad filename: " + filename + " (" + e.getMessage() + ")");
+        return;
+      }
+    } else {
+      compact = Main.readCompactGraph(filename);
+    }
+    Landmarks lm = alt ? Main.readLandmarks(filename, compact) : null;
+
+    int maxSpeeding = 0;
+    for (String query : queries) {
+      maxSpeeding = Math.max(maxSpeeding, Integer.parseInt(query.split(",")[2]));
+    }
+    SearchAStar uni = new SearchAStar(compact, new SearchSpace(compact.numLocations(), maxSpeeding), false);
+    BidirectionalAStar bi = new BidirectionalAStar(compact, maxSpeeding);
+    uni.setLandmarks(lm);
+    bi.setLandmarks(lm);
+
+    System.out.printf("%-30s %12s %12s %10s %10s %14s %14s\n", "query", "visited uni", "visited bi", "ms uni",
+                      "ms bi", "time uni", "time bi");
+    for (String query : queries) {
+      String[] pieces = query.split(",");
+      long start = Long.parseLong(pieces[0]);
+      long end = Long.parseLong(pieces[1]);
+      int spd = Integer.parseInt(pieces[2]);
+
+      Node uniRoute = null, biRoute = null;
+      // The first run warms up, the rest are timed
+      long uniNanos = 0, biNanos = 0;
+      for (int run = 0; run <= RUNS; run++) {
+        long time = System.nanoTime();
+        uniRoute = uni.search(start, end, spd);
+        long mid = System.nanoTime();
+        biRoute = bi.search(start, end, spd);
+        long done = System.nanoTime();
+        if (run > 0) {
+          uniNanos += mid - time;
+          biNanos += done - mid;
+        }
+      }
+      System.out.printf("%-30s %12d %12d %10.3f %10.3f %14.3f %14.3f\n", query, uni.totalNodeVisited,
+                        bi.totalNodeVisited, uniNanos / 1e6 / RUNS, biNanos / 1e6 / RUNS, cost(uniRoute), cost(biRoute));
+    }
+  }
+
+
+  private static double cost(Node route) {
+    return route == null ? Double.NaN : route.g_cost();
+  }
+
+
+  /**
+   * Sets up a reusable bidirectional search.
+   *
+   * @param graph The network
+   * @param maxSpeeding The largest speeding budget a query will use
+   */
+  public BidirectionalAStar(CompactRoadNetwork graph, int maxSpeeding) {
+    this.graph = graph;
+    this.reversed = graph.reverse();
+    this.forward = new Direction(graph, false, maxSpeeding);
+    this.backward = new Direction(reversed, true, maxSpeeding);
+    int n = graph.numLocations();
+    milesToEnd = new double[n];
+    milesFromStart = new double[n];
+    landmarksToEnd = new double[n];
+    landmarksFromStart = new double[n];
+    touched = new int[n];
+    Arrays.fill(milesToEnd, Double.NaN);
+  }
+
+
+  /**
+   * Makes both potentials use the landmark bounds where they beat the straight line.
+   *
+   * @param landmarks Landmarks preprocessed on this graph, or null to only use the straight line
+   */
+  public void setLandmarks(Landmarks landmarks) {
+    this.landmarks = landmarks;
+  }
+
+
+  /**
+   * Runs one query.
+   *
+   * @param start The original id of the starting location
+   * @param end The original id of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @return Node The goal node with links back to the start, or null if the end can't be reached
+   */
+  public Node search(long start, long end, int speeding) {
+    return searchStates(graph.indexOf(start), graph.indexOf(end), speeding) ? toNode() : null;
+  }
+
+
+  /**
+   * The bidirectional loop. The direction with the smaller key settles its next state, and the search
+   * stops once the two smallest keys add up to at least the best route.
+   *
+   * @param start The dense index of the starting location
+   * @param end The dense index of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @return boolean true if a route was found
+   */
+  public boolean searchStates(int start, int end, int speeding) {
+    SearchSpace forwardSpace = forward.space;
+    SearchSpace backwardSpace = backward.space;
+    if (speeding < 0 || speeding > forwardSpace.maxSpeeding)
+      throw new IllegalArgumentException("Search space only allows speeding up to " + forwardSpace.maxSpeeding + " times.");
+    forwardSpace.reset();
+    backwardSpace.reset();
+    for (int i = 0; i < touchedCount; i++) {
+      milesToEnd[touched[i]] = Double.NaN;
+    }
+    touchedCount = 0;
+    this.start = start;
+    this.end = end;
+    states = speeding + 1;
+    forward.states = states;
+    backward.states = states;
+    best = Double.POSITIVE_INFINITY;
+    bestForward = bestBackward = -1;
+    totalNodeVisited = 0;
+
+    IndexedMinHeap forwardOpen = forwardSpace.frontier;
+    IndexedMinHeap backwardOpen = backwardSpace.frontier;
+    int source = start * states + speeding;
+    forwardSpace.reach(source, 0.0, -1, -1);
+    forwardOpen.add(source, forward.heuristic(start, speeding));
+    for (int j = 0; j < states; j++) {
+      int target = end * states + j;
+      backwardSpace.reach(target, 0.0, -1, -1);
+      backwardOpen.add(target, backward.heuristic(end, j));
+      meetBackward(target);
+    }
+    peakFrontier = 1 + states;
+
+    while (!forwardOpen.isEmpty() && !backwardOpen.isEmpty()
+           && forwardOpen.peekPriority() + backwardOpen.peekPriority() < best) {
+      totalNodeVisited++;
+      Direction direction = forwardOpen.peekPriority() <= backwardOpen.peekPriority() ? forward : backward;
+      int state = direction.space.frontier.remove();
+      direction.space.close(state);
+      direction.expandState(state);
+      peakFrontier = Math.max(peakFrontier, forwardOpen.size() + backwardOpen.size());
+    }
+    return bestForward >= 0;
+  }
+
+
+  /**
+   * One direction of the search: the compact SearchAStar expansion with the average potential as its
+   * heuristic, checking every label it improves against the other direction.
+   */
+  private final class Direction extends SearchAStar {
+    private final boolean isBackward;
+
+    Direction(CompactRoadNetwork graph, boolean isBackward, int maxSpeeding) {
+      super(graph, new SearchSpace(graph.numLocations(), maxSpeeding), false);
+      this.isBackward = isBackward;
+    }
+
+    @Override
+    public double heuristic(int v, int speedsLeft) {
+      return isBackward ? -potential(v, states - 1 - speedsLeft) : potential(v, speedsLeft);
+    }
+
+    @Override
+    void reached(int state) {
+      if (isBackward) {
+        meetBackward(state);
+      } else {
+        meetForward(state);
+      }
+    }
+  }
+
+
+  // The forward state (v, left) meets the backward state (v, speeding - left)
+  private void meetForward(int state) {
+    int v = state / states;
+    int other = v * states + states - 1 - (state - v * states);
+    double total = forward.space.g[state] + backward.space.g[other];
+    if (total < best) {
+      best = total;
+      bestForward = state;
+      bestBackward = other;
+    }
+  }
+
+
+  private void meetBackward(int state) {
+    int v = state / states;
+    int other = v * states + states - 1 - (state - v * states);
+    double total = backward.space.g[state] + forward.space.g[other];
+    if (total < best) {
+      best = total;
+      bestForward = other;
+      bestBackward = state;
+    }
+  }
+
+
+  /**
+   * The forward potential of a forward state, the backward search uses its negative. Both searches ask for
+   * the same locations again and again, so the straight-line and landmark distances of a location are only
+   * computed once per query.
+   */
+  private double potential(int v, int speedsLeft) {
+    if (Double.isNaN(milesToEnd[v])) {
+      milesToEnd[v] = Geometry.getDistanceInMiles(graph.latitude(v), graph.longitude(v), graph.latitude(end),
+                                                  graph.longitude(end));
+      milesFromStart[v] = Geometry.getDistanceInMiles(graph.latitude(start), graph.longitude(start),
+                                                      graph.latitude(v), graph.longitude(v));
+      if (landmarks != null) {
+        landmarksToEnd[v] = landmarks.lowerBound(v, end);
+        landmarksFromStart[v] = landmarks.lowerBound(start, v);
+      }
+      touched[touchedCount++] = v;
+    }
+    return (bound(milesToEnd[v], landmarksToEnd[v], speedsLeft)
+            - bound(milesFromStart[v], landmarksFromStart[v], states - 1 - speedsLeft)) / 2;
+  }
+
+
+  // SearchAStar's lower bound on a trip of the given straight-line and landmark distances speeding at most
+  // speeds times
+  private double bound(double miles, double landmarkBound, int speeds) {
+    double h = forward.timeBound(miles, speeds);
+    if (landmarks != null && landmarkBound != Double.POSITIVE_INFINITY) {
+      h = Math.max(h, landmarks.bound(landmarkBound, speeds));
+    }
+    return h;
+  }
+
+
+  /**
+   * Rebuilds the route through the best meeting point: the forward parents back to the start, then the
+   * backward parents on to the end.
+   *
+   * @return Node The goal node with links back to the starting node
+   */
+  private Node toNode() {
+    int length = 0;
+    for (int s = bestForward; s >= 0; s = forward.space.parentState[s]) {
+      length++;
+    }
+    int[] path = new int[length];
+    for (int s = bestForward, i = length - 1; s >= 0; s = forward.space.parentState[s], i--) {
+      path[i] = s;
+    }
+    Node node = null;
+    for (int s : path) {
+      Road road = null;
+      if (node != null) {
+        road = graph.toRoad(forward.space.parentState[s] / states, forward.space.parentRoad[s]);
+      }
+      node = new Node(node, graph.toLocation(s / states), s % states, road, forward.space.g[s], 0.0, forward.space.g[s]);
+    }
+
+    int speedsLeft = bestForward % states;
+    double g = forward.space.g[bestForward];
+    for (int s = bestBackward; backward.space.parentState[s] >= 0; s = backward.space.parentState[s]) {
+      int next = backward.space.parentState[s];
+      int road = reversed.originalRoad(backward.space.parentRoad[s]);
+      boolean speeding = s % states != next % states;
+      g += speeding ? graph.speedingTime(road) : graph.travelTime(road);
+      if (speeding) speedsLeft--;
+      node = new Node(node, graph.toLocation(next / states), speedsLeft, graph.toRoad(s / states, road), g, 0.0, g);
+    }
+    return node;
+  }
+}
@@ -0,0 +1,446 @@
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The CompactRoadNetwork class is an immutable copy of a RoadNetwork stored in compressed sparse row (CSR)
+ * form. Every location gets a dense index from 0 to numLocations()-1 and every directed road gets a dense
+ * index from 0 to numRoads()-1. The roads leaving location i are the indices firstRoad(i) up to (not
+ * including) endRoad(i). Everything is held in primitive arrays, so walking the graph during a search
+ * never touches a map or a boxed key.
+ * The Location and Road records are only rebuilt (toLocation and toRoad) when a route is handed back.
+ * The length of every road and the time to drive it at the speed limit and when speeding (twice the
+ * limit) are computed once when the network is built, so a search reads its costs straight from arrays.
+ * So is the point of every location on the unit sphere, from which chordMiles and distanceMiles measure
+ * the distance between two locations without any trigonometry on the endpoints.
+ * As a DenseRoadGraph its Cursor walks the roads of a location by their dense road index.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class CompactRoadNetwork implements DenseRoadGraph {
+  // Per location (dense index)
+  private final long[] ids;
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final double[] unitVectors; // x, y, z on the unit sphere of location i at 3i, 3i+1, 3i+2
+  // CSR adjacency: roads of location i are [offsets[i], offsets[i+1])
+  private final int[] offsets;
+  private final int[] targets;
+  // Per road (dense index)
+  private final int[] speedLimits;
+  private final int[] nameIds;
+  private final String[] names;
+  private final double[] miles;
+  private final double[] travelTimes;   // seconds at the speed limit
+  private final double[] speedingTimes; // seconds at twice the speed limit
+  private final int maxSpeedLimit;
+  private final double maxMiles;
+  // Original id -> dense index, kept as a sorted copy for binary search
+  private final long[] sortedIds;
+  private final int[] sortedIndex;
+  // Only set on a reversed network: the road of the forward network each reversed road came from
+  private int[] originalRoads;
+  private volatile long fingerprint; // computed on first use, 0 until then
+
+
+  /**
+   * Builds the network straight from its arrays. The arrays are not copied, so the caller must not change
+   * them afterwards.
+   *
+   * @param ids The original location id of every dense index
+   * @param latitudes The latitude of every location
+   * @param longitudes The longitude of every location
+   * @param offsets numLocations+1 offsets into the road arrays
+   * @param targets The dense index of the location each road ends at
+   * @param speedLimits The speed limit of each road
+   * @param nameIds The index into names of each road
+   * @param names The distinct road names
+   */
+  public CompactRoadNetwork(long[] ids, double[] latitudes, double[] longitudes, int[] offsets, int[] targets,
+                            int[] speedLimits, int[] nameIds, String[] names) {
+    this(ids, latitudes, longitudes, offsets, targets, speedLimits, nameIds, names, null);
+  }
+
+
+  /**
+   * Builds the network straight from its arrays, with the road lengths already known (for example read
+   * from a binary graph file). If miles is null the lengths are computed from the coordinates.
+   *
+   * @param miles The length of each road in miles, or null
+   */
+  public CompactRoadNetwork(long[] ids, double[] latitudes, double[] longitudes, int[] offsets, int[] targets,
+                            int[] speedLimits, int[] nameIds, String[] names, double[] miles) {
+    this.ids = ids;
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.offsets = offsets;
+    this.targets = targets;
+    this.speedLimits = speedLimits;
+    this.nameIds = nameIds;
+    this.names = names;
+
+    int n = ids.length;
+    int m = targets.length;
+    unitVectors = new double[3 * n];
+    for (int i = 0; i < n; i++) {
+      Geometry.toUnitVector(latitudes[i], longitudes[i], unitVectors, 3 * i);
+    }
+    if (miles == null) {
+      miles = new double[m];
+      for (int i = 0; i < n; i++) {
+        for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+          int to = targets[e];
+          miles[e] = Geometry.getDistanceInMiles(latitudes[i], longitudes[i], latitudes[to], longitudes[to]);
+        }
+      }
+    }
+    this.miles = miles;
+    travelTimes = new double[m];
+    speedingTimes = new double[m];
+    int fastest = 0;
+    double longest = 0;
+    for (int e = 0; e < m; e++) {
+      fastest = Math.max(fastest, speedLimits[e]);
+      longest = Math.max(longest, miles[e]);
+      // Same arithmetic as Geometry.getDriveTimeInSeconds so both searches see identical costs
+      travelTimes[e] = miles[e] / speedLimits[e] * 60 * 60;
+      speedingTimes[e] = miles[e] / (speedLimits[e] * 2) * 60 * 60;
+    }
+    maxSpeedLimit = fastest;
+    maxMiles = longest;
+
+    sortedIds = ids.clone();
+    Arrays.sort(sortedIds);
+    sortedIndex = new int[n];
+    for (int i = 0; i < n; i++) {
+      int at = Arrays.binarySearch(sortedIds, ids[i]);
+      sortedIndex[at] = i;
+    }
+  }
+
+
+  /**
+   * Freezes a RoadGraph into CSR form. Locations are numbered by ascending id and the roads of each
+   * location keep the order they were added in.
+   *
+   * @param graph The network, usually a RoadNetwork built with addLocation/addRoad
+   * @return CompactRoadNetwork The immutable copy
+   */
+  public static CompactRoadNetwork from(RoadGraph graph) {
+    int n = graph.getLocations().size();
+    long[] ids = new long[n];
+    int i = 0;
+    for (Location loc : graph.getLocations()) {
+      ids[i++] = loc.id();
+    }
+    Arrays.sort(ids);
+
+    double[] lat = new double[n];
+    double[] lon = new double[n];
+    int[] offsets = new int[n + 1];
+    for (i = 0; i < n; i++) {
+      Location loc = graph.getLocation(ids[i]);
+      lat[i] = loc.latitude();
+      lon[i] = loc.longitude();
+      offsets[i + 1] = offsets[i] + graph.getAdjacentRoads(ids[i]).size();
+    }
+
+    int m = offsets[n];
+    int[] targets = new int[m];
+    int[] speeds = new int[m];
+    int[] nameIds = new int[m];
+    Map<String, Integer> nameTable = new HashMap<>();
+    int e = 0;
+    for (i = 0; i < n; i++) {
+      List<Road> adjacent = graph.getAdjacentRoads(ids[i]);
+      for (Road road : adjacent) {
+        int target = Arrays.binarySearch(ids, road.endId());
+        if (target < 0) throw new IllegalArgumentException("Road " + road + " ends outside of the graph.");
+        targets[e] = target;
+        speeds[e] = road.speedLimit();
+        Integer nameId = nameTable.get(road.name());
+        if (nameId == null) {
+          nameId = nameTable.size();
+          nameTable.put(road.name(), nameId);
+        }
+        nameIds[e] = nameId;
+        e++;
+      }
+    }
+
+    String[] names = new String[nameTable.size()];
+    for (Map.Entry<String, Integer> entry : nameTable.entrySet()) {
+      names[entry.getValue()] = entry.getKey();
+    }
+    return new CompactRoadNetwork(ids, lat, lon, offsets, targets, speeds, nameIds, names);
+  }
+
+
+  @Override
+  public int numLocations() { return ids.length; }
+
+  public int numRoads() { return targets.length; }
+
+  public int numNames() { return names.length; }
+
+  @Override
+  public int maxSpeedLimit() { return maxSpeedLimit; }
+
+  @Override
+  public double maxMiles() { return maxMiles; }
+
+
+  /**
+   * A 64-bit hash of the numbering and costs: the ids in dense index order, the CSR offsets and targets, and
+   * the speed limit and length of every road. Everything saved by dense index (landmarks, arc flags,
+   * hierarchies, cached routes) records it and is refused by a network with another fingerprint, such as
+   * the same graph renumbered by GraphOrder.
+   *
+   * @return long The fingerprint, never 0
+   */
+  public long fingerprint() {
+    long h = fingerprint;
+    if (h == 0) {
+      h = mix(ids.length, targets.length);
+      for (long id : ids) h = mix(h, id);
+      for (int offset : offsets) h = mix(h, offset);
+      for (int target : targets) h = mix(h, target);
+      for (int speed : speedLimits) h = mix(h, speed);
+      for (double length : miles) h = mix(h, Double.doubleToLongBits(length));
+      if (h == 0) h = 1;
+      fingerprint = h;
+    }
+    return h;
+  }
+
+
+  private static long mix(long h, long value) {
+    h = (h ^ value) * 0x9E3779B97F4A7C15L;
+    return h ^ (h >>> 29);
+  }
+
+
+  /**
+   * The straight-line distance through the earth between two locations, never more than their distance
+   * on the surface (see Geometry.getChordInMiles).
+   *
+   * @param a The dense index of one location
+   * @param b The dense index of the other
+   * @return double The chord in miles
+   */
+  public double chordMiles(int a, int b) {
+    int i = 3 * a, j = 3 * b;
+    return Geometry.getChordInMiles(unitVectors[i], unitVectors[i + 1], unitVectors[i + 2],
+                                    unitVectors[j], unitVectors[j + 1], unitVectors[j + 2]);
+  }
+
+
+  /**
+   * The great-circle distance between two locations, the same distance as Geometry.getDistanceInMiles
+   * from the precomputed points.
+   *
+   * @param a The dense index of one location
+   * @param b The dense index of the other
+   * @return double The distance in miles
+   */
+  public double distanceMiles(int a, int b) {
+    return Geometry.chordToArcInMiles(chordMiles(a, b));
+  }
+
+
+  /**
+   * The dense index of a location id. Only meant for setting up a query, not for the search loop.
+   *
+   * @param id The original location id
+   * @return int The dense index of that location
+   */
+  @Override
+  public int indexOf(long id) {
+    int at = Arrays.binarySearch(sortedIds, id);
+    if (at < 0) throw new IllegalArgumentException("Location " + id + " doesn't exist in graph.");
+    return sortedIndex[at];
+  }
+
+  @Override
+  public long id(int location) { return ids[location]; }
+
+  @Override
+  public double latitude(int location) { return latitudes[location]; }
+
+  @Override
+  public double longitude(int location) { return longitudes[location]; }
+
+  public int firstRoad(int location) { return offsets[location]; }
+
+  public int endRoad(int location) { return offsets[location + 1]; }
+
+  public int target(int road) { return targets[road]; }
+
+  public int speedLimit(int road) { return speedLimits[road]; }
+
+  public int nameId(int road) { return nameIds[road]; }
+
+  public String name(int nameId) { return names[nameId]; }
+
+  public String roadName(int road) { return names[nameIds[road]]; }
+
+  public double miles(int road) { return miles[road]; }
+
+  public double travelTime(int road) { return travelTimes[road]; }
+
+  public double speedingTime(int road) { return speedingTimes[road]; }
+
+
+  /**
+   * The same network with every road turned around, so searching it from a location goes backward over
+   * the roads that lead into it. Locations keep their dense indices and originalRoad gives the forward
+   * road each reversed road came from.
+   *
+   * @return CompactRoadNetwork The reversed network
+   */
+  public CompactRoadNetwork reverse() {
+    int n = ids.length;
+    int m = targets.length;
+    int[] revOffsets = new int[n + 1];
+    for (int e = 0; e < m; e++) {
+      revOffsets[targets[e] + 1]++;
+    }
+    for (int i = 0; i < n; i++) {
+      revOffsets[i + 1] += revOffsets[i];
+    }
+    int[] next = Arrays.copyOf(revOffsets, n);
+    int[] revTargets = new int[m];
+    int[] revSpeeds = new int[m];
+    int[] revNameIds = new int[m];
+    double[] revMiles = new double[m];
+    int[] original = new int[m];
+    for (int i = 0; i < n; i++) {
+      for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+        int r = next[targets[e]]++;
+        revTargets[r] = i;
+        revSpeeds[r] = speedLimits[e];
+        revNameIds[r] = nameIds[e];
+        revMiles[r] = miles[e];
+        original[r] = e;
+      }
+    }
+    CompactRoadNetwork reversed = new CompactRoadNetwork(ids, latitudes, longitudes, revOffsets, revTargets,
+                                                         revSpeeds, revNameIds, names, revMiles);
+    reversed.originalRoads = original;
+    return reversed;
+  }
+
+
+  /**
+   * The forward road a road of a reversed network came from (the road itself on a forward network).
+   */
+  public int originalRoad(int road) { return originalRoads == null ? road : originalRoads[road]; }
+
+
+  /**
+   * The same network with the locations renumbered, for example along a space-filling curve so that
+   * locations close on the map are close in memory. Every per-location and per-road array is permuted to
+   * match and the roads of each location keep their order. The original ids go along with the locations,
+   * so indexOf, toLocation and toRoad still speak in original ids.
+   *
+   * @param order order[i] is the current dense index of the location that becomes dense index i
+   * @return CompactRoadNetwork The renumbered network
+   */
+  public CompactRoadNetwork renumber(int[] order) {
+    int n = ids.length;
+    int m = targets.length;
+    if (order.length != n) throw new IllegalArgumentException("The order has " + order.length + " locations, not " + n + ".");
+    int[] rank = new int[n];
+    Arrays.fill(rank, -1);
+    for (int i = 0; i < n; i++) {
+      if (rank[order[i]] >= 0) throw new IllegalArgumentException("Location " + order[i] + " appears twice in the order.");
+      rank[order[i]] = i;
+    }
+    long[] newIds = new long[n];
+    double[] newLat = new double[n];
+    double[] newLon = new double[n];
+    int[] newOffsets = new int[n + 1];
+    int[] newTargets = new int[m];
+    int[] newSpeeds = new int[m];
+    int[] newNameIds = new int[m];
+    double[] newMiles = new double[m];
+    int e = 0;
+    for (int i = 0; i < n; i++) {
+      int old = order[i];
+      newIds[i] = ids[old];
+      newLat[i] = latitudes[old];
+      newLon[i] = longitudes[old];
+      for (int road = offsets[old]; road < offsets[old + 1]; road++, e++) {
+        newTargets[e] = rank[targets[road]];
+        newSpeeds[e] = speedLimits[road];
+        newNameIds[e] = nameIds[road];
+        newMiles[e] = miles[road];
+      }
+      newOffsets[i + 1] = e;
+    }
+    return new CompactRoadNetwork(newIds, newLat, newLon, newOffsets, newTargets, newSpeeds, newNameIds, names,
+                                  newMiles);
+  }
+
+
+  /**
+   * Rebuilds the Location record of a dense index.
+   *
+   * @param location The dense index
+   * @return Location The record with the original id
+   */
+  @Override
+  public Location toLocation(int location) {
+    return new Location(ids[location], latitudes[location], longitudes[location]);
+  }
+
+
+  /**
+   * Rebuilds the Road record of a dense road index.
+   *
+   * @param from The dense index of the location the road leaves from
+   * @param road The dense road index
+   * @return Road The record with original location ids
+   */
+  @Override
+  public Road toRoad(int from, int road) {
+    return new Road(ids[from], ids[targets[road]], speedLimits[road], names[nameIds[road]]);
+  }
+
+
+  @Override
+  public RoadCursor cursor() {
+    return new Cursor();
+  }
+
+
+  /**
+   * Walks the roads of one location by their dense road index, RoadCursor.road is that index.
+   */
+  public final class Cursor implements RoadCursor {
+    private int road, end;
+
+    @Override
+    public void start(int location) {
+      road = offsets[location] - 1;
+      end = offsets[location + 1];
+    }
+
+    @Override
+    public boolean next() { return ++road < end; }
+
+    @Override
+    public int road() { return road; }
+
+    @Override
+    public int target() { return targets[road]; }
+
+    @Override
+    public double travelTime() { return travelTimes[road]; }
+
+    @Override
+    public double speedingTime() { return speedingTimes[road]; }
+  }
+}
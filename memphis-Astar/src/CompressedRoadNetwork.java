@@ -0,0 +1,425 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+
+/**
+ * The CompressedRoadNetwork class is a read-only copy of a CompactRoadNetwork that keeps the roads in as
+ * few bytes as possible. The roads of every location are sorted by the dense index of their end and
+ * written one after another into a single byte array:
+ *   end       the difference to the previous end (to the location itself for the first road), zigzag
+ *             varint, so neighbours numbered close together take a byte
+ *   speed     one byte, an index into the table of the distinct speed limits
+ *   name      varint index into the road name dictionary, which holds every name once, the most used first
+ *   length    varint in millionths of a mile, rounded up so no road is shorter than the straight line
+ *             and the A* heuristic stays admissible
+ * The travel times are not stored, they are worked out from the length and speed limit as each road is
+ * decoded. Locations keep their ids and coordinates as in CompactRoadNetwork, plus the offset of their first
+ * road in the byte array. A Cursor decodes the roads of one location without allocating, and as a
+ * DenseRoadGraph the network is searched by the compact A* of SearchAStar through it (without landmarks,
+ * arc flags, profiles or chord distances, which are tied to the dense road indices of a CompactRoadNetwork).
+ * A road is known to the search by the position of its first byte.
+ *
+ * Rounding the lengths up makes every road at most a millionth of a mile longer (well under a millisecond
+ * of driving), so travel times can differ from the uncompressed network in the last few digits.
+ *
+ * Comparing the footprint and latency with the uncompressed layouts:
+ * java CompressedRoadNetwork [graph file] [queries per class]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class CompressedRoadNetwork implements DenseRoadGraph {
+  static final double MILE_UNITS = 1_000_000; // lengths are stored in millionths of a mile
+
+  // Per location (dense index, as in the CompactRoadNetwork it was built from)
+  private final long[] ids;
+  private final double[] latitudes;
+  private final double[] longitudes;
+  private final int[] offsets; // roads of location i are bytes [offsets[i], offsets[i+1]) of roads
+  private final byte[] roads;
+  private final int numRoads;
+  // Dictionaries
+  private final int[] speedClasses; // speed limit of each speed byte
+  private final String[] names;     // most used first
+  private final int maxSpeedLimit;
+  private final double maxMiles;
+  // Original id -> dense index, only kept when the ids aren't ascending
+  private final long[] sortedIds;
+  private final int[] sortedIndex;
+
+
+  public static void main(String[] args) throws IOException {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    int perClass = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+
+    // The map-based network, measured on the heap
+    long before = usedHeap();
+    RoadNetwork map;
+    try (InputStream in = filename.endsWith(".bin") ? null : Files.newInputStream(Path.of(filename))) {
+      map = in == null ? null : Main.parseGraph(in);
+    }
+    long mapBytes = usedHeap() - before;
+    CompactRoadNetwork compact = filename.endsWith(".bin") ? GraphFile.load(Path.of(filename)) : map.compact();
+    CompressedRoadNetwork compressed = from(compact);
+    int n = compact.numLocations();
+    int m = compact.numRoads();
+
+    // CompactRoadNetwork: ids, coordinates, unit vectors, offsets (and the sorted id index when the ids
+    // aren't ascending) / per road: target, speed, name id, miles, two travel times
+    long compactNodeBytes = (long) n * (8 + 8 + 8 + 24 + 4 + (compressed.sortedIds == null ? 0 : 8 + 4));
+    long compactRoadBytes = (long) m * (4 + 4 + 4 + 8 + 8 + 8);
+    System.out.printf("%s: %d locations, %d roads, %d names, %d speed classes\n", filename, n, m,
+                      compressed.names.length, compressed.speedClasses.length);
+    System.out.printf("%-12s %14s %14s\n", "layout", "road bytes", "total bytes");
+    if (map != null) {
+      System.out.printf("%-12s %14s %14.1f  (measured on the heap)\n", "RoadNetwork", "", mapBytes / (double) m);
+    }
+    System.out.printf("%-12s %14.1f %14.1f\n", "compact", compactRoadBytes / (double) m,
+                      (compactNodeBytes + compactRoadBytes) / (double) m);
+    System.out.printf("%-12s %14.1f %14.1f\n", "compressed", compressed.roads.length / (double) m,
+                      compressed.memoryBytes() / (double) m);
+
+    int[][][] queries = Benchmarks.querySet(compact, perClass);
+    SearchAStar uncompressed = new SearchAStar(compact, new SearchSpace(n, 2), false);
+    SearchAStar search = new SearchAStar(compressed, new SearchSpace(n, 2), false);
+    double worst = 0;
+    System.out.printf("\n%-32s %5s %12s %12s  %s\n", "Benchmark", "Cnt", "Score", "Error", "Units");
+    for (int c = 0; c < queries.length; c++) {
+      int[][] pairs = queries[c];
+      for (int[] pair : pairs) {
+        Node a = uncompressed.search(compact.id(pair[0]), compact.id(pair[1]), 2);
+        Node b = search.search(compact.id(pair[0]), compact.id(pair[1]), 2);
+        if (a != null && b != null) worst = Math.max(worst, Math.abs(b.g_cost() - a.g_cost()) / a.g_cost());
+      }
+      Benchmarks.bench("search.compact." + Benchmarks.CLASSES[c], "ms/op", 1e6, pairs.length, () -> {
+        for (int[] pair : pairs) {
+          Node route = uncompressed.search(compact.id(pair[0]), compact.id(pair[1]), 2);
+          Benchmarks.sink = route == null ? -1 : route.g_cost();
+        }
+      });
+      Benchmarks.bench("search.compressed." + Benchmarks.CLASSES[c], "ms/op", 1e6, pairs.length, () -> {
+        for (int[] pair : pairs) {
+          Node route = search.search(compact.id(pair[0]), compact.id(pair[1]), 2);
+          Benchmarks.sink = route == null ? -1 : route.g_cost();
+        }
+      });
+    }
+    System.out.printf("Largest relative difference in travel time: %.2e\n", worst);
+  }
+
+
+  private static long usedHeap() {
+    Runtime runtime = Runtime.getRuntime();
+    for (int i = 0; i < 3; i++) System.gc();
+    return runtime.totalMemory() - runtime.freeMemory();
+  }
+
+
+  private CompressedRoadNetwork(long[] ids, double[] latitudes, double[] longitudes, int[] offsets, byte[] roads,
+                                int numRoads, int[] speedClasses, String[] names, int maxSpeedLimit, double maxMiles) {
+    this.ids = ids;
+    this.latitudes = latitudes;
+    this.longitudes = longitudes;
+    this.offsets = offsets;
+    this.roads = roads;
+    this.numRoads = numRoads;
+    this.speedClasses = speedClasses;
+    this.names = names;
+    this.maxSpeedLimit = maxSpeedLimit;
+    this.maxMiles = maxMiles;
+
+    int n = ids.length;
+    boolean ascending = true;
+    for (int i = 1; i < n && ascending; i++) {
+      ascending = ids[i - 1] < ids[i];
+    }
+    if (ascending) {
+      sortedIds = null;
+      sortedIndex = null;
+    } else {
+      sortedIds = ids.clone();
+      Arrays.sort(sortedIds);
+      sortedIndex = new int[n];
+      for (int i = 0; i < n; i++) {
+        sortedIndex[Arrays.binarySearch(sortedIds, ids[i])] = i;
+      }
+    }
+  }
+
+
+  /**
+   * Compresses a network. Locations keep their dense indices.
+   *
+   * @param graph The network
+   * @return CompressedRoadNetwork The compressed copy
+   */
+  public static CompressedRoadNetwork from(CompactRoadNetwork graph) {
+    int n = graph.numLocations();
+    int m = graph.numRoads();
+
+    // Speed classes, ascending
+    int[] speeds = new int[m];
+    for (int e = 0; e < m; e++) speeds[e] = graph.speedLimit(e);
+    int[] speedClasses = Arrays.stream(speeds).distinct().sorted().toArray();
+    if (speedClasses.length > 256)
+      throw new IllegalArgumentException("The network has " + speedClasses.length + " speed limits, at most 256 fit a byte.");
+
+    // Names by how often they are used, so the common ones get one-byte ids
+    int k = graph.numNames();
+    long[] uses = new long[k];
+    for (int e = 0; e < m; e++) uses[graph.nameId(e)] += 1L << 32;
+    for (int i = 0; i < k; i++) uses[i] |= Integer.MAX_VALUE - i; // ties keep the original order
+    Arrays.sort(uses);
+    String[] names = new String[k];
+    int[] nameRank = new int[k];
+    for (int r = 0; r < k; r++) {
+      int original = Integer.MAX_VALUE - (int) uses[k - 1 - r];
+      names[r] = graph.name(original);
+      nameRank[original] = r;
+    }
+
+    ByteWriter out = new ByteWriter(5L * m);
+    int[] offsets = new int[n + 1];
+    long maxUnits = 0;
+    int maxSpeed = 0;
+    long[] sorted = new long[0];
+    for (int v = 0; v < n; v++) {
+      offsets[v] = out.size;
+      int first = graph.firstRoad(v);
+      int degree = graph.endRoad(v) - first;
+      if (sorted.length < degree) sorted = new long[Math.max(degree, 2 * sorted.length)];
+      for (int i = 0; i < degree; i++) {
+        sorted[i] = (long) graph.target(first + i) << 32 | i; // by end, then by original order
+      }
+      Arrays.sort(sorted, 0, degree);
+      int previous = v;
+      for (int i = 0; i < degree; i++) {
+        int road = first + (int) sorted[i];
+        int target = graph.target(road);
+        long units = (long) Math.ceil(graph.miles(road) * MILE_UNITS);
+        out.varint(zigzag(target - previous));
+        out.put(Arrays.binarySearch(speedClasses, graph.speedLimit(road)));
+        out.varint(nameRank[graph.nameId(road)]);
+        out.varint(units);
+        previous = target;
+        maxUnits = Math.max(maxUnits, units);
+        maxSpeed = Math.max(maxSpeed, graph.speedLimit(road));
+      }
+    }
+    offsets[n] = out.size;
+
+    long[] ids = new long[n];
+    double[] lat = new double[n];
+    double[] lon = new double[n];
+    for (int v = 0; v < n; v++) {
+      ids[v] = graph.id(v);
+      lat[v] = graph.latitude(v);
+      lon[v] = graph.longitude(v);
+    }
+    return new CompressedRoadNetwork(ids, lat, lon, offsets, Arrays.copyOf(out.bytes, out.size), m, speedClasses,
+                                     names, maxSpeed, maxUnits / MILE_UNITS);
+  }
+
+
+  private static int zigzag(int value) {
+    return (value << 1) ^ (value >> 31);
+  }
+
+
+  @Override
+  public int numLocations() { return ids.length; }
+
+  public int numRoads() { return numRoads; }
+
+  @Override
+  public int maxSpeedLimit() { return maxSpeedLimit; }
+
+  @Override
+  public double maxMiles() { return maxMiles; }
+
+  @Override
+  public long id(int location) { return ids[location]; }
+
+  @Override
+  public double latitude(int location) { return latitudes[location]; }
+
+  @Override
+  public double longitude(int location) { return longitudes[location]; }
+
+  public String name(int nameId) { return names[nameId]; }
+
+
+  /**
+   * The bytes held by the network's arrays (not counting the name strings themselves).
+   */
+  public long memoryBytes() {
+    long bytes = (long) ids.length * (8 + 8 + 8 + 4) + 4 + roads.length + 4L * speedClasses.length + 4L * names.length;
+    if (sortedIds != null) bytes += (long) ids.length * (8 + 4);
+    return bytes;
+  }
+
+
+  /**
+   * The dense index of a location id.
+   *
+   * @param id The original location id
+   * @return int The dense index of that location
+   */
+  @Override
+  public int indexOf(long id) {
+    int at = Arrays.binarySearch(sortedIds == null ? ids : sortedIds, id);
+    if (at < 0) throw new IllegalArgumentException("Location " + id + " doesn't exist in graph.");
+    return sortedIds == null ? at : sortedIndex[at];
+  }
+
+
+  @Override
+  public Location toLocation(int location) {
+    return new Location(ids[location], latitudes[location], longitudes[location]);
+  }
+
+
+  /**
+   * Makes the Road record of the road a Cursor was on.
+   *
+   * @param from The dense index of the location the road leaves from
+   * @param position The position of the road (Cursor.road)
+   * @return Road The record with original location ids
+   */
+  @Override
+  public Road toRoad(int from, int position) {
+    Cursor cursor = new Cursor();
+    cursor.seek(from, position);
+    cursor.next();
+    return new Road(ids[from], ids[cursor.target], cursor.speedLimit, names[cursor.nameId]);
+  }
+
+
+  @Override
+  public RoadCursor cursor() {
+    return new Cursor();
+  }
+
+
+  /**
+   * Decodes the roads of one location at a time. A cursor is reused for any number of locations and
+   * allocates nothing.
+   */
+  public final class Cursor implements RoadCursor {
+    private int at, end, previous;
+    private int position;
+    int target, speedLimit, nameId;
+    double miles;
+
+    /**
+     * Moves to the roads of a location, next() then decodes the first one.
+     */
+    @Override
+    public void start(int location) {
+      at = offsets[location];
+      end = offsets[location + 1];
+      previous = location;
+    }
+
+    // Moves to a road with a known position, only used to rebuild a route
+    void seek(int location, int position) {
+      start(location);
+      while (at < position) next();
+    }
+
+    /**
+     * Decodes the next road.
+     *
+     * @return boolean false when there are no more roads
+     */
+    @Override
+    public boolean next() {
+      if (at >= end) return false;
+      byte[] bytes = roads;
+      int p = at;
+      position = p;
+      // end: zigzag varint delta
+      int b = bytes[p++];
+      int delta = b & 0x7F;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = bytes[p++];
+        delta |= (b & 0x7F) << shift;
+      }
+      target = previous + ((delta >>> 1) ^ -(delta & 1));
+      previous = target;
+      speedLimit = speedClasses[bytes[p++] & 0xFF];
+      // name: varint
+      b = bytes[p++];
+      int name = b & 0x7F;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = bytes[p++];
+        name |= (b & 0x7F) << shift;
+      }
+      nameId = name;
+      // length: varint
+      b = bytes[p++];
+      long units = b & 0x7F;
+      for (int shift = 7; b < 0; shift += 7) {
+        b = bytes[p++];
+        units |= (long) (b & 0x7F) << shift;
+      }
+      miles = units / MILE_UNITS;
+      at = p;
+      return true;
+    }
+
+    @Override
+    public int target() { return target; }
+
+    public int speedLimit() { return speedLimit; }
+
+    public int nameId() { return nameId; }
+
+    public double miles() { return miles; }
+
+    // Same arithmetic as CompactRoadNetwork
+    @Override
+    public double travelTime() { return miles / speedLimit * 60 * 60; }
+
+    @Override
+    public double speedingTime() { return miles / (speedLimit * 2) * 60 * 60; }
+
+    /**
+     * Where the current road starts in the byte array, to find it again with toRoad.
+     */
+    @Override
+    public int road() { return position; }
+  }
+
+
+  /**
+   * A growing byte array. The positions of the roads are ints, so it holds at most MAX_BYTES.
+   */
+  private static final class ByteWriter {
+    static final int MAX_BYTES = Integer.MAX_VALUE - 8; // the largest array every JVM allocates
+    byte[] bytes;
+    int size;
+
+    ByteWriter(long capacity) {
+      bytes = new byte[(int) Math.max(16, Math.min(capacity, MAX_BYTES))];
+    }
+
+    void put(int b) {
+      if (size == bytes.length) {
+        if (size == MAX_BYTES) throw new IllegalArgumentException("The compressed roads take more than 2 GB.");
+        bytes = Arrays.copyOf(bytes, (int) Math.min(2L * size, MAX_BYTES));
+      }
+      bytes[size++] = (byte) b;
+    }
+
+    void varint(long value) {
+      while ((value & ~0x7FL) != 0) {
+        put((int) (value & 0x7F) | 0x80);
+        value >>>= 7;
+      }
+      put((int) value);
+    }
+  }
+}
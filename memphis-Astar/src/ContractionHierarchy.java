@@ -0,0 +1,839 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * The ContractionHierarchy class is a Contraction Hierarchies (CH) engine for point-to-point queries on a
+ * CompactRoadNetwork. Speeding makes the cost of a road depend on the budget left, so the hierarchy is built
+ * over the layered graph of (location, speeds left) states, the same state ids the compact search uses with
+ * maxSpeeding + 1 states per location. Every road u->v becomes (u,s)->(v,s) at the speed limit and, when
+ * s > 0, (u,s)->(v,s-1) at twice the limit.
+ *
+ * Preprocessing contracts every state, from least to most important. The priority weighs the edge difference
+ * (shortcuts added minus edges removed), the number of neighbors already contracted and the level (the
+ * longest chain of contracted states below). Every contraction runs witness searches, limited in settled
+ * states and hops, and only adds a shortcut u->w through v when no path of at most the same time avoids v.
+ * Each round contracts an independent set of states (each is less important than all of its neighbors) in
+ * parallel. Priorities are updated lazily: contracting a state only marks its neighbors, and a marked state
+ * is simulated again when it comes up as a local minimum.
+ * A query is a bidirectional Dijkstra that only goes up the hierarchy, forward from (start, speeding) and
+ * backward from every (end, s), with stall-on-demand. Shortcuts remember the two edges they replace, so the
+ * route is unpacked into the same Road sequence SearchAStar returns.
+ *
+ * Preprocessing a binary graph once: java ContractionHierarchy memphis-medium.bin [maxSpeeding] [queries]
+ * writes memphis-medium.bin.ch next to the graph and checks the travel time of random queries against
+ * SearchAStar.
+ * A ContractionHierarchy answers one query at a time, it keeps its search scratch space between queries.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class ContractionHierarchy {
+  static final int MAGIC = 0x43485248; // "CHRH"
+  static final int VERSION = 3;
+  static final int HEADER_BYTES = 7 * Integer.BYTES + Long.BYTES;
+  static final int WITNESS_SETTLE_LIMIT = 500;
+  // Priority simulations search i + 1 hops while the remaining states average fewer than HOP_DEGREES[i] edges
+  static final double[] HOP_DEGREES = { 3.3, 5, 8, 12 };
+  static final int CONTRACTION_HOPS = 8; // hop limit of the witness searches that decide the shortcuts
+  static final double EDGE_DIFFERENCE_WEIGHT = 2;
+  static final double CONTRACTED_NEIGHBORS_WEIGHT = 1;
+  static final double LEVEL_WEIGHT = 1;
+
+  private final CompactRoadNetwork graph;
+  private final int states;     // maxSpeeding + 1 states per location
+  private final int numStates;
+  // Upward edges out of every state (forward search)
+  private final int[] upOffsets;
+  private final int[] upTargets;
+  private final double[] upWeights;
+  private final int[] upEdges;
+  // Upward edges into every state, seen from below (backward search)
+  private final int[] downOffsets;
+  private final int[] downSources;
+  private final double[] downWeights;
+  private final int[] downEdges;
+  // Unpacking: a shortcut is child1 then child2, an original edge is road * 2 + (1 when speeding)
+  private final int[] child1;
+  private final int[] child2;
+  private final int[] roadCode;
+  // Query scratch
+  private final double[] forwardDist;
+  private final double[] backwardDist;
+  private final int[] forwardEdge;   // edge into the state on the forward search tree
+  private final int[] backwardEdge;  // edge out of the state on the backward search tree
+  private final int[] forwardFrom;   // previous state on the forward search tree
+  private final int[] backwardTo;    // next state on the backward search tree
+  private final int[] touched;
+  private int touchedCount;
+  private final IndexedMinHeap forwardHeap;
+  private final IndexedMinHeap backwardHeap;
+  int settledStates; // states settled by the last query, both directions
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: java ContractionHierarchy <binary graph> [maxSpeeding] [queries]");
+      System.exit(1);
+    }
+    int maxSpeeding = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+    int queries = args.length > 2 ? Integer.parseInt(args[2]) : 200;
+    CompactRoadNetwork graph = GraphFile.load(Path.of(args[0]));
+
+    long time = System.nanoTime();
+    ContractionHierarchy ch = build(graph, maxSpeeding);
+    System.out.printf("Contracted %d states (%d shortcuts) in %.1f ms\n", ch.numStates,
+                      ch.child1.length - ch.originalEdges(), (System.nanoTime() - time) / 1e6);
+    Path file = Path.of(args[0] + ".ch");
+    ch.save(file);
+    time = System.nanoTime();
+    ch = load(file, graph);
+    System.out.printf("Wrote and reloaded %s (%d bytes) in %.1f ms\n", file, Files.size(file),
+                      (System.nanoTime() - time) / 1e6);
+
+    // Check travel times against SearchAStar
+    Random rand = new Random(372);
+    int[][] pairs = new int[queries][];
+    for (int q = 0; q < queries; q++) {
+      pairs[q] = new int[] { rand.nextInt(graph.numLocations()), rand.nextInt(graph.numLocations()),
+                             rand.nextInt(maxSpeeding + 1) };
+    }
+    SearchAStar astar = new SearchAStar(graph, new SearchSpace(graph.numLocations(), maxSpeeding), false);
+    for (int round = 0; round < 2; round++) { // the first round warms up
+      long chNanos = 0, astarNanos = 0, settled = 0;
+      int mismatches = 0;
+      double worst = 0;
+      for (int[] pair : pairs) {
+        long begin = System.nanoTime();
+        Node chRoute = ch.route(pair[0], pair[1], pair[2]);
+        chNanos += System.nanoTime() - begin;
+        settled += ch.settledStates;
+        begin = System.nanoTime();
+        Node aRoute = astar.search(graph.id(pair[0]), graph.id(pair[1]), pair[2]);
+        astarNanos += System.nanoTime() - begin;
+        double a = aRoute == null ? Double.POSITIVE_INFINITY : aRoute.g_cost();
+        double c = chRoute == null ? Double.POSITIVE_INFINITY : chRoute.g_cost();
+        double diff = a == c ? 0 : Math.abs(a - c);
+        worst = Math.max(worst, diff);
+        if (diff > 1e-6) mismatches++;
+      }
+      if (round == 0) continue;
+      System.out.printf("%d queries: CH %.3f ms/query (%d states settled), A* %.3f ms/query, %d mismatches, "
+                        + "largest difference %.2e s\n", queries, chNanos / 1e6 / queries, settled / queries,
+                        astarNanos / 1e6 / queries, mismatches, worst);
+    }
+  }
+
+
+  private ContractionHierarchy(CompactRoadNetwork graph, int states, int[] upOffsets, int[] upTargets,
+                               double[] upWeights, int[] upEdges, int[] downOffsets, int[] downSources,
+                               double[] downWeights, int[] downEdges, int[] child1, int[] child2, int[] roadCode) {
+    this.graph = graph;
+    this.states = states;
+    this.numStates = graph.numLocations() * states;
+    this.upOffsets = upOffsets;
+    this.upTargets = upTargets;
+    this.upWeights = upWeights;
+    this.upEdges = upEdges;
+    this.downOffsets = downOffsets;
+    this.downSources = downSources;
+    this.downWeights = downWeights;
+    this.downEdges = downEdges;
+    this.child1 = child1;
+    this.child2 = child2;
+    this.roadCode = roadCode;
+    forwardDist = new double[numStates];
+    backwardDist = new double[numStates];
+    Arrays.fill(forwardDist, Double.POSITIVE_INFINITY);
+    Arrays.fill(backwardDist, Double.POSITIVE_INFINITY);
+    forwardEdge = new int[numStates];
+    backwardEdge = new int[numStates];
+    forwardFrom = new int[numStates];
+    backwardTo = new int[numStates];
+    touched = new int[numStates];
+    forwardHeap = new IndexedMinHeap(numStates);
+    backwardHeap = new IndexedMinHeap(numStates);
+  }
+
+
+  /**
+   * Builds the hierarchy for queries with a speeding budget of at most maxSpeeding.
+   *
+   * @param graph The network
+   * @param maxSpeeding The largest speeding budget a query will use
+   * @return ContractionHierarchy The hierarchy, ready for queries
+   */
+  public static ContractionHierarchy build(CompactRoadNetwork graph, int maxSpeeding) {
+    return new Builder(graph, maxSpeeding + 1).build();
+  }
+
+  public int maxSpeeding() { return states - 1; }
+
+  private int originalEdges() {
+    int count = 0;
+    for (int c : child1) if (c < 0) count++;
+    return count;
+  }
+
+
+  /**
+   * The least travel time from start to end speeding at most speeding times.
+   *
+   * @param start The dense index of the starting location
+   * @param end The dense index of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @return double The travel time in seconds, infinity if end can't be reached
+   */
+  public double travelTime(int start, int end, int speeding) {
+    int meet = query(start, end, speeding);
+    return meet < 0 ? Double.POSITIVE_INFINITY : forwardDist[meet] + backwardDist[meet];
+  }
+
+
+  /**
+   * The fastest route from start to end, unpacked into the Node chain Main prints.
+   *
+   * @param start The dense index of the starting location
+   * @param end The dense index of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @return Node The goal node with links back to the start, or null if end can't be reached
+   */
+  public Node route(int start, int end, int speeding) {
+    int meet = query(start, end, speeding);
+    if (meet < 0) return null;
+
+    // Edges from the start up to the meeting state, then down to the end
+    List<Integer> path = new ArrayList<>();
+    for (int s = meet; forwardEdge[s] >= 0; s = forwardFrom[s]) {
+      path.add(forwardEdge[s]);
+    }
+    Collections.reverse(path);
+    for (int s = meet; backwardEdge[s] >= 0; s = backwardTo[s]) {
+      path.add(backwardEdge[s]);
+    }
+
+    Node node = new Node(graph.toLocation(start), speeding, 0.0, 0.0, 0.0);
+    int at = start;
+    int speedsLeft = speeding;
+    double g = 0;
+    int[] stack = new int[64];
+    for (int top : path) {
+      int size = 0;
+      stack[size++] = top;
+      while (size > 0) {
+        int e = stack[--size];
+        if (child1[e] >= 0) {
+          if (size + 2 > stack.length) stack = Arrays.copyOf(stack, stack.length * 2);
+          stack[size++] = child2[e];
+          stack[size++] = child1[e];
+          continue;
+        }
+        int road = roadCode[e] >> 1;
+        boolean speedingOnRoad = (roadCode[e] & 1) == 1;
+        g += speedingOnRoad ? graph.speedingTime(road) : graph.travelTime(road);
+        if (speedingOnRoad) speedsLeft--;
+        node = new Node(node, graph.toLocation(graph.target(road)), speedsLeft, graph.toRoad(at, road), g, 0.0, g);
+        at = graph.target(road);
+      }
+    }
+    return node;
+  }
+
+
+  /**
+   * The bidirectional upward search. Each direction stops once its smallest key can't beat the best
+   * meeting point found so far.
+   *
+   * @return int The meeting state of the fastest route, or -1
+   */
+  private int query(int start, int end, int speeding) {
+    if (speeding < 0 || speeding >= states)
+      throw new IllegalArgumentException("Hierarchy only allows speeding up to " + (states - 1) + " times.");
+    for (int i = 0; i < touchedCount; i++) {
+      forwardDist[touched[i]] = Double.POSITIVE_INFINITY;
+      backwardDist[touched[i]] = Double.POSITIVE_INFINITY;
+    }
+    touchedCount = 0;
+    forwardHeap.clear();
+    backwardHeap.clear();
+    settledStates = 0;
+
+    int source = start * states + speeding;
+    reachForward(source, 0, -1, -1);
+    forwardHeap.add(source, 0);
+    for (int s = 0; s <= speeding; s++) {
+      int target = end * states + s;
+      reachBackward(target, 0, -1, -1);
+      backwardHeap.add(target, 0);
+    }
+
+    double best = Double.POSITIVE_INFINITY;
+    int meet = -1;
+    while (true) {
+      boolean forwardOpen = !forwardHeap.isEmpty() && forwardHeap.peekPriority() < best;
+      boolean backwardOpen = !backwardHeap.isEmpty() && backwardHeap.peekPriority() < best;
+      if (!forwardOpen && !backwardOpen) break;
+      boolean forward = forwardOpen && (!backwardOpen || forwardHeap.peekPriority() <= backwardHeap.peekPriority());
+      settledStates++;
+      if (forward) {
+        int v = forwardHeap.remove();
+        double d = forwardDist[v];
+        if (stalled(v, d, downOffsets, downSources, downWeights, forwardDist)) continue;
+        if (d + backwardDist[v] < best) {
+          best = d + backwardDist[v];
+          meet = v;
+        }
+        for (int i = upOffsets[v]; i < upOffsets[v + 1]; i++) {
+          int w = upTargets[i];
+          double nd = d + upWeights[i];
+          if (nd < forwardDist[w]) {
+            reachForward(w, nd, upEdges[i], v);
+            forwardHeap.addOrDecrease(w, nd);
+          }
+        }
+      } else {
+        int v = backwardHeap.remove();
+        double d = backwardDist[v];
+        if (stalled(v, d, upOffsets, upTargets, upWeights, backwardDist)) continue;
+        if (d + forwardDist[v] < best) {
+          best = d + forwardDist[v];
+          meet = v;
+        }
+        for (int i = downOffsets[v]; i < downOffsets[v + 1]; i++) {
+          int u = downSources[i];
+          double nd = d + downWeights[i];
+          if (nd < backwardDist[u]) {
+            reachBackward(u, nd, downEdges[i], v);
+            backwardHeap.addOrDecrease(u, nd);
+          }
+        }
+      }
+    }
+    return meet;
+  }
+
+
+  // Stall-on-demand: a state that an already reached higher state gets to faster than d isn't on a
+  // shortest path of this direction, so its edges are not relaxed
+  private static boolean stalled(int v, double d, int[] offsets, int[] higher, double[] weights, double[] dist) {
+    for (int i = offsets[v]; i < offsets[v + 1]; i++) {
+      if (dist[higher[i]] + weights[i] < d) return true;
+    }
+    return false;
+  }
+
+
+  private void reachForward(int state, double d, int edge, int from) {
+    if (forwardDist[state] == Double.POSITIVE_INFINITY && backwardDist[state] == Double.POSITIVE_INFINITY) {
+      touched[touchedCount++] = state;
+    }
+    forwardDist[state] = d;
+    forwardEdge[state] = edge;
+    forwardFrom[state] = from;
+  }
+
+
+  private void reachBackward(int state, double d, int edge, int to) {
+    if (forwardDist[state] == Double.POSITIVE_INFINITY && backwardDist[state] == Double.POSITIVE_INFINITY) {
+      touched[touchedCount++] = state;
+    }
+    backwardDist[state] = d;
+    backwardEdge[state] = edge;
+    backwardTo[state] = to;
+  }
+
+
+  /**
+   * Saves the hierarchy next to its graph.
+   *
+   * Layout (little-endian): magic, version, numLocations, states, numUp, numDown, numEdges, long fingerprint
+   * of the network, then
+   * int upOffsets[numStates+1], int upTargets[numUp], double upWeights[numUp], int upEdges[numUp],
+   * the same four arrays for the downward edges, then int child1[numEdges], int child2[numEdges],
+   * int roadCode[numEdges]
+   *
+   * @param file The path to write
+   * @throws IOException If the file can't be written
+   */
+  public void save(Path file) throws IOException {
+    long size = fileBytes(numStates, upTargets.length, downSources.length, child1.length);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      buf.putInt(MAGIC).putInt(VERSION).putInt(graph.numLocations()).putInt(states)
+         .putInt(upTargets.length).putInt(downSources.length).putInt(child1.length).putLong(graph.fingerprint());
+      putInts(buf, upOffsets);
+      putInts(buf, upTargets);
+      putDoubles(buf, upWeights);
+      putInts(buf, upEdges);
+      putInts(buf, downOffsets);
+      putInts(buf, downSources);
+      putDoubles(buf, downWeights);
+      putInts(buf, downEdges);
+      putInts(buf, child1);
+      putInts(buf, child2);
+      putInts(buf, roadCode);
+      buf.force();
+    }
+  }
+
+
+  /**
+   * The size of a hierarchy file, in bytes.
+   *
+   * @param numStates The number of states
+   * @param numUp The number of upward edges
+   * @param numDown The number of downward edges
+   * @param numEdges The number of edges and shortcuts to unpack
+   * @return long The bytes of the header and every array
+   */
+  static long fileBytes(long numStates, int numUp, int numDown, int numEdges) {
+    return HEADER_BYTES + 2 * (numStates + 1) * Integer.BYTES + (long) numUp * (2 * Integer.BYTES + Double.BYTES)
+           + (long) numDown * (2 * Integer.BYTES + Double.BYTES) + 3L * numEdges * Integer.BYTES;
+  }
+
+
+  /**
+   * Loads a hierarchy saved for the given network.
+   *
+   * @param file The hierarchy file
+   * @param graph The network it was built on
+   * @return ContractionHierarchy The hierarchy, ready for queries
+   * @throws IOException If the file can't be read, belongs to another graph or is truncated or corrupt
+   */
+  public static ContractionHierarchy load(Path file, CompactRoadNetwork graph) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_BYTES) throw new IOException(file + " is not a contraction hierarchy file.");
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      if (buf.getInt() != MAGIC) throw new IOException(file + " is not a contraction hierarchy file.");
+      int version = buf.getInt();
+      if (version != VERSION) throw new IOException(file + " has unsupported version " + version + ".");
+      int n = buf.getInt();
+      if (n != graph.numLocations()) throw new IOException(file + " was built for another graph.");
+      int states = buf.getInt();
+      int numUp = buf.getInt();
+      int numDown = buf.getInt();
+      int numEdges = buf.getInt();
+      if (buf.getLong() != graph.fingerprint()) throw new IOException(file + " was built for another graph or numbering.");
+      if (states < 1 || numUp < 0 || numDown < 0 || numEdges < 0) throw new IOException(file + " has a corrupt header.");
+      long expected = fileBytes((long) n * states, numUp, numDown, numEdges);
+      if (size != expected)
+        throw new IOException(file + " has " + size + " bytes, but " + numEdges + " edges and shortcuts need "
+                              + expected + " (truncated or corrupt file).");
+      if (expected > Integer.MAX_VALUE) throw new IOException(file + " is too large to map.");
+      int numStates = n * states;
+      return new ContractionHierarchy(graph, states,
+                                      getInts(buf, numStates + 1), getInts(buf, numUp), getDoubles(buf, numUp),
+                                      getInts(buf, numUp), getInts(buf, numStates + 1), getInts(buf, numDown),
+                                      getDoubles(buf, numDown), getInts(buf, numDown), getInts(buf, numEdges),
+                                      getInts(buf, numEdges), getInts(buf, numEdges));
+    }
+  }
+
+
+  private static void putInts(ByteBuffer buf, int[] values) {
+    buf.asIntBuffer().put(values);
+    buf.position(buf.position() + values.length * Integer.BYTES);
+  }
+
+  private static void putDoubles(ByteBuffer buf, double[] values) {
+    buf.asDoubleBuffer().put(values);
+    buf.position(buf.position() + values.length * Double.BYTES);
+  }
+
+  private static int[] getInts(ByteBuffer buf, int count) {
+    int[] values = new int[count];
+    buf.asIntBuffer().get(values);
+    buf.position(buf.position() + count * Integer.BYTES);
+    return values;
+  }
+
+  private static double[] getDoubles(ByteBuffer buf, int count) {
+    double[] values = new double[count];
+    buf.asDoubleBuffer().get(values);
+    buf.position(buf.position() + count * Double.BYTES);
+    return values;
+  }
+
+
+  /**
+   * The preprocessing. Edges live in growable parallel arrays and every state keeps growable lists of the
+   * edges going out of it and coming into it. There is at most one edge between two states, a better one
+   * replaces the old one in place.
+   */
+  private static final class Builder {
+    static final byte ACTIVE = 0, CONTRACTING = 1, CONTRACTED = 2;
+
+    final CompactRoadNetwork graph;
+    final int states;
+    final int numStates;
+    // Edges
+    int numEdges;
+    int[] from = new int[1024], to = new int[1024], child1 = new int[1024], child2 = new int[1024];
+    int[] roadCode = new int[1024];
+    double[] weight = new double[1024];
+    // Adjacency (edge ids) of every state
+    final int[][] out, in;
+    final int[] outSize, inSize;
+    // Contraction
+    final byte[] status;
+    final int[] rank;
+    final double[] priority;
+    final int[] contractedNeighbors;
+    final int[] level;        // length of the longest chain of contracted states below
+    final boolean[] dirty;    // the priority is out of date
+    int simulationHops;       // hop limit of the witness searches that estimate a priority
+    final ThreadLocal<Witness> witnesses;
+
+    Builder(CompactRoadNetwork graph, int states) {
+      this.graph = graph;
+      this.states = states;
+      this.numStates = Math.multiplyExact(graph.numLocations(), states);
+      out = new int[numStates][];
+      in = new int[numStates][];
+      outSize = new int[numStates];
+      inSize = new int[numStates];
+      status = new byte[numStates];
+      rank = new int[numStates];
+      priority = new double[numStates];
+      contractedNeighbors = new int[numStates];
+      level = new int[numStates];
+      dirty = new boolean[numStates];
+      witnesses = ThreadLocal.withInitial(() -> new Witness(numStates));
+    }
+
+
+    ContractionHierarchy build() {
+      // The layered graph of (location, speeds left) states
+      for (int u = 0; u < graph.numLocations(); u++) {
+        for (int road = graph.firstRoad(u); road < graph.endRoad(u); road++) {
+          int v = graph.target(road);
+          if (v == u) continue;
+          for (int s = 0; s < states; s++) {
+            addEdge(u * states + s, v * states + s, graph.travelTime(road), -1, -1, road * 2);
+            if (s > 0) addEdge(u * states + s, v * states + s - 1, graph.speedingTime(road), -1, -1, road * 2 + 1);
+          }
+        }
+      }
+
+      int[] candidates = new int[numStates];
+      int numCandidates = numStates;
+      for (int v = 0; v < numStates; v++) candidates[v] = v;
+      simulationHops = hopLimit(candidates, numCandidates);
+      IntStream.range(0, numStates).parallel().forEach(v -> priority[v] = computePriority(v));
+
+      int nextRank = 0;
+      while (numCandidates > 0) {
+        // Every active state that is less important than all of its active neighbors. Priorities are
+        // updated lazily: a stale one is recomputed when its state is picked, and the state only stays
+        // picked if it is still a local minimum.
+        final int[] active = Arrays.copyOf(candidates, numCandidates);
+        int[] stale = Arrays.stream(active).parallel().filter(v -> dirty[v] && isLocalMinimum(v)).toArray();
+        IntStream.of(stale).parallel().forEach(v -> priority[v] = computePriority(v));
+        for (int v : stale) dirty[v] = false;
+        int[] picked = Arrays.stream(active).parallel().filter(v -> !dirty[v] && isLocalMinimum(v)).toArray();
+        for (int v : picked) status[v] = CONTRACTING;
+
+        @SuppressWarnings({"unchecked", "rawtypes"})
+        List<double[]>[] shortcuts = new List[picked.length];
+        IntStream.range(0, picked.length).parallel().forEach(i -> {
+          List<double[]> list = new ArrayList<>();
+          contract(picked[i], witnesses.get(), list);
+          shortcuts[i] = list;
+        });
+
+        for (int i = 0; i < picked.length; i++) {
+          int v = picked[i];
+          status[v] = CONTRACTED;
+          rank[v] = nextRank++;
+          for (int j = 0; j < outSize[v]; j++) contracted(v, to[out[v][j]]);
+          for (int j = 0; j < inSize[v]; j++) contracted(v, from[in[v][j]]);
+          detach(v);
+          for (double[] sc : shortcuts[i]) {
+            addEdge((int) sc[0], (int) sc[1], sc[2], (int) sc[3], (int) sc[4], -1);
+          }
+        }
+
+        numCandidates = 0;
+        for (int v : active) {
+          if (status[v] == ACTIVE) candidates[numCandidates++] = v;
+        }
+        int nextHops = hopLimit(candidates, numCandidates);
+        if (nextHops != simulationHops) {
+          // Deeper simulations find more witnesses, every priority is out of date
+          simulationHops = nextHops;
+          for (int i = 0; i < numCandidates; i++) dirty[candidates[i]] = true;
+        }
+      }
+      return toHierarchy();
+    }
+
+
+    // Priority simulations only need a few hops while the remaining graph is sparse and more as it gets denser
+    private int hopLimit(int[] candidates, int numCandidates) {
+      long edges = 0;
+      for (int i = 0; i < numCandidates; i++) edges += outSize[candidates[i]];
+      double degree = numCandidates == 0 ? 0 : (double) edges / numCandidates;
+      for (int i = 0; i < HOP_DEGREES.length; i++) {
+        if (degree < HOP_DEGREES[i]) return i + 1;
+      }
+      return HOP_DEGREES.length + 1;
+    }
+
+
+    // A neighbor of a contracted state needs a new priority and sits at least one level above it
+    private void contracted(int v, int x) {
+      if (status[x] != ACTIVE) return;
+      dirty[x] = true;
+      contractedNeighbors[x]++;
+      level[x] = Math.max(level[x], level[v] + 1);
+    }
+
+
+    // Takes the edges of a contracted state out of its neighbors' lists, so only active edges are walked
+    private void detach(int v) {
+      for (int i = 0; i < outSize[v]; i++) {
+        int e = out[v][i];
+        if (status[to[e]] != CONTRACTED) remove(in, inSize, to[e], e);
+      }
+      for (int i = 0; i < inSize[v]; i++) {
+        int e = in[v][i];
+        if (status[from[e]] != CONTRACTED) remove(out, outSize, from[e], e);
+      }
+    }
+
+
+    private static void remove(int[][] lists, int[] sizes, int v, int e) {
+      int[] list = lists[v];
+      for (int i = 0; i < sizes[v]; i++) {
+        if (list[i] == e) {
+          list[i] = list[--sizes[v]];
+          return;
+        }
+      }
+    }
+
+
+    private boolean isLocalMinimum(int v) {
+      for (int i = 0; i < outSize[v]; i++) {
+        int w = to[out[v][i]];
+        if (status[w] == ACTIVE && w != v && !before(v, w)) return false;
+      }
+      for (int i = 0; i < inSize[v]; i++) {
+        int u = from[in[v][i]];
+        if (status[u] == ACTIVE && u != v && !before(v, u)) return false;
+      }
+      return true;
+    }
+
+
+    private boolean before(int v, int w) {
+      return priority[v] < priority[w] || (priority[v] == priority[w] && v < w);
+    }
+
+
+    // Weighted edge difference, contracted neighbors and level
+    private double computePriority(int v) {
+      int removed = 0;
+      for (int i = 0; i < outSize[v]; i++) if (status[to[out[v][i]]] == ACTIVE) removed++;
+      for (int i = 0; i < inSize[v]; i++) if (status[from[in[v][i]]] == ACTIVE) removed++;
+      int added = contract(v, witnesses.get(), null);
+      return EDGE_DIFFERENCE_WEIGHT * (added - removed) + CONTRACTED_NEIGHBORS_WEIGHT * contractedNeighbors[v]
+             + LEVEL_WEIGHT * level[v];
+    }
+
+
+    /**
+     * Finds the shortcuts contracting v needs. Witness searches skip every state that isn't active.
+     *
+     * @param v The state to contract
+     * @param ws The calling thread's witness scratch
+     * @param shortcuts Filled with {from, to, weight, child1, child2}, or null to only count
+     * @return int The number of shortcuts
+     */
+    private int contract(int v, Witness ws, List<double[]> shortcuts) {
+      int count = 0;
+      for (int i = 0; i < inSize[v]; i++) {
+        int e1 = in[v][i];
+        int u = from[e1];
+        if (status[u] != ACTIVE || u == v) continue;
+        double limit = -1;
+        for (int j = 0; j < outSize[v]; j++) {
+          int e2 = out[v][j];
+          int w = to[e2];
+          if (status[w] == ACTIVE && w != u && w != v) limit = Math.max(limit, weight[e1] + weight[e2]);
+        }
+        if (limit < 0) continue;
+        ws.search(this, u, v, limit, shortcuts == null ? simulationHops : CONTRACTION_HOPS);
+        for (int j = 0; j < outSize[v]; j++) {
+          int e2 = out[v][j];
+          int w = to[e2];
+          if (status[w] != ACTIVE || w == u || w == v) continue;
+          double via = weight[e1] + weight[e2];
+          if (ws.dist[w] > via) {
+            count++;
+            if (shortcuts != null) shortcuts.add(new double[] { u, w, via, e1, e2 });
+          }
+        }
+        ws.reset();
+      }
+      return count;
+    }
+
+
+    private void addEdge(int u, int w, double wt, int c1, int c2, int code) {
+      for (int i = 0; i < outSize[u]; i++) {
+        int e = out[u][i];
+        if (to[e] == w) {
+          if (wt < weight[e]) {
+            weight[e] = wt;
+            child1[e] = c1;
+            child2[e] = c2;
+            roadCode[e] = code;
+          }
+          return;
+        }
+      }
+      if (numEdges == from.length) {
+        int size = numEdges * 2;
+        from = Arrays.copyOf(from, size);
+        to = Arrays.copyOf(to, size);
+        child1 = Arrays.copyOf(child1, size);
+        child2 = Arrays.copyOf(child2, size);
+        roadCode = Arrays.copyOf(roadCode, size);
+        weight = Arrays.copyOf(weight, size);
+      }
+      int e = numEdges++;
+      from[e] = u;
+      to[e] = w;
+      weight[e] = wt;
+      child1[e] = c1;
+      child2[e] = c2;
+      roadCode[e] = code;
+      append(out, outSize, u, e);
+      append(in, inSize, w, e);
+    }
+
+
+    private static void append(int[][] lists, int[] sizes, int v, int e) {
+      int[] list = lists[v];
+      if (list == null) {
+        lists[v] = list = new int[4];
+      } else if (sizes[v] == list.length) {
+        lists[v] = list = Arrays.copyOf(list, list.length * 2);
+      }
+      list[sizes[v]++] = e;
+    }
+
+
+    // Splits every edge into the upward graph of its lower end
+    private ContractionHierarchy toHierarchy() {
+      int[] upOffsets = new int[numStates + 1];
+      int[] downOffsets = new int[numStates + 1];
+      for (int e = 0; e < numEdges; e++) {
+        if (isUp(e)) upOffsets[from[e] + 1]++;
+        if (isDown(e)) downOffsets[to[e] + 1]++;
+      }
+      for (int v = 0; v < numStates; v++) {
+        upOffsets[v + 1] += upOffsets[v];
+        downOffsets[v + 1] += downOffsets[v];
+      }
+      int[] upNext = Arrays.copyOf(upOffsets, numStates);
+      int[] downNext = Arrays.copyOf(downOffsets, numStates);
+      int[] upTargets = new int[upOffsets[numStates]];
+      double[] upWeights = new double[upTargets.length];
+      int[] upEdges = new int[upTargets.length];
+      int[] downSources = new int[downOffsets[numStates]];
+      double[] downWeights = new double[downSources.length];
+      int[] downEdges = new int[downSources.length];
+      for (int e = 0; e < numEdges; e++) {
+        if (isUp(e)) {
+          int i = upNext[from[e]]++;
+          upTargets[i] = to[e];
+          upWeights[i] = weight[e];
+          upEdges[i] = e;
+        }
+        if (isDown(e)) {
+          int i = downNext[to[e]]++;
+          downSources[i] = from[e];
+          downWeights[i] = weight[e];
+          downEdges[i] = e;
+        }
+      }
+      return new ContractionHierarchy(graph, states, upOffsets, upTargets, upWeights, upEdges, downOffsets,
+                                      downSources, downWeights, downEdges, Arrays.copyOf(child1, numEdges),
+                                      Arrays.copyOf(child2, numEdges), Arrays.copyOf(roadCode, numEdges));
+    }
+
+    private boolean isUp(int e) { return rank[to[e]] > rank[from[e]]; }
+
+    private boolean isDown(int e) { return rank[to[e]] < rank[from[e]]; }
+  }
+
+
+  /**
+   * Scratch space of one thread's witness searches.
+   */
+  private static final class Witness {
+    final double[] dist;
+    final int[] hops;
+    final int[] touched;
+    int touchedCount;
+    final IndexedMinHeap heap;
+
+    Witness(int numStates) {
+      dist = new double[numStates];
+      Arrays.fill(dist, Double.POSITIVE_INFINITY);
+      hops = new int[numStates];
+      touched = new int[numStates];
+      heap = new IndexedMinHeap(numStates);
+    }
+
+    // Dijkstra from u over active states other than v, up to limit, maxHops edges from u or
+    // WITNESS_SETTLE_LIMIT settled states
+    void search(Builder b, int u, int v, double limit, int maxHops) {
+      dist[u] = 0;
+      hops[u] = 0;
+      touched[touchedCount++] = u;
+      heap.add(u, 0);
+      int settled = 0;
+      while (!heap.isEmpty() && heap.peekPriority() <= limit && settled < WITNESS_SETTLE_LIMIT) {
+        int x = heap.remove();
+        settled++;
+        double d = dist[x];
+        if (hops[x] == maxHops) continue;
+        for (int i = 0; i < b.outSize[x]; i++) {
+          int e = b.out[x][i];
+          int y = b.to[e];
+          if (y == v || b.status[y] != Builder.ACTIVE) continue;
+          double nd = d + b.weight[e];
+          if (nd < dist[y]) {
+            if (dist[y] == Double.POSITIVE_INFINITY) touched[touchedCount++] = y;
+            dist[y] = nd;
+            hops[y] = hops[x] + 1;
+            heap.addOrDecrease(y, nd);
+          }
+        }
+      }
+    }
+
+    void reset() {
+      for (int i = 0; i < touchedCount; i++) dist[touched[i]] = Double.POSITIVE_INFINITY;
+      touchedCount = 0;
+      heap.clear();
+    }
+  }
+}
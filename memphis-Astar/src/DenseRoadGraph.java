@@ -0,0 +1,48 @@
+/**
+ * The DenseRoadGraph interface is the read-only view of a road network with dense location indices (0 to
+ * numLocations()-1) that the compact A* of SearchAStar searches: the coordinates and bounds its heuristic
+ * needs, a RoadCursor over the roads of a location, and the records to rebuild a route with.
+ * CompactRoadNetwork and CompressedRoadNetwork both implement it, so the same search loop runs on either.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public interface DenseRoadGraph {
+
+  int numLocations();
+
+  int maxSpeedLimit();
+
+  /**
+   * The length of the longest road in miles.
+   */
+  double maxMiles();
+
+  long id(int location);
+
+  /**
+   * The dense index of a location id.
+   *
+   * @throws IllegalArgumentException If the graph has no location with the id
+   */
+  int indexOf(long id);
+
+  double latitude(int location);
+
+  double longitude(int location);
+
+  /**
+   * A new cursor over the roads of this graph.
+   */
+  RoadCursor cursor();
+
+  Location toLocation(int location);
+
+  /**
+   * Rebuilds the Road record of a road a cursor was on.
+   *
+   * @param from The dense index of the location the road leaves from
+   * @param road The handle of the road (RoadCursor.road)
+   */
+  Road toRoad(int from, int road);
+}
@@ -0,0 +1,80 @@
+import java.util.Random;
+
+/**
+ * Compares the two A* frontiers in the same search loop on the same graph and random queries: the map-based
+ * SearchAStar with the old PriQueue (which pushes duplicate nodes and scans linearly on remove/contains)
+ * against the same search with the IndexedMinHeap (one entry per location, O(log n) decrease-key). For each
+ * it prints the nodes visited per second and the average and largest peak frontier size. The compact
+ * search, which also uses the IndexedMinHeap but over primitive arrays, is printed last for reference.
+ *
+ * Usage: java FrontierBenchmark [graph file] [number of queries] [speeding] [seed]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public class FrontierBenchmark {
+  public static void main(String[] args) {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    int queries = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+    int spd = args.length > 2 ? Integer.parseInt(args[2]) : 1;
+    long seed = args.length > 3 ? Long.parseLong(args[3]) : 372;
+
+    Main.readGraph(filename);
+    RoadNetwork graph = Main.graph;
+    CompactRoadNetwork compact = graph.compact();
+
+    Random rand = new Random(seed);
+    long[] starts = new long[queries];
+    long[] ends = new long[queries];
+    for (int q = 0; q < queries; q++) {
+      starts[q] = compact.id(rand.nextInt(compact.numLocations()));
+      ends[q] = compact.id(rand.nextInt(compact.numLocations()));
+    }
+
+    // The compact search reuses one SearchSpace for every query
+    SearchAStar reused = new SearchAStar(compact, new SearchSpace(compact.numLocations(), spd), false);
+
+    // Warm up every search before timing
+    for (int q = 0; q < Math.min(queries, 5); q++) {
+      mapSearch(graph, starts[q], ends[q], spd, true).startSearch();
+      mapSearch(graph, starts[q], ends[q], spd, false).startSearch();
+      reused.search(starts[q], ends[q], spd);
+    }
+
+    for (boolean priQueue : new boolean[] { true, false }) {
+      long visited = 0, peakSum = 0, peakMax = 0;
+      long time = System.nanoTime();
+      for (int q = 0; q < queries; q++) {
+        SearchAStar gps = mapSearch(graph, starts[q], ends[q], spd, priQueue);
+        gps.startSearch();
+        visited += gps.totalNodeVisited;
+        peakSum += gps.peakFrontier;
+        peakMax = Math.max(peakMax, gps.peakFrontier);
+      }
+      time = System.nanoTime() - time;
+      report(priQueue ? "PriQueue" : "IndexedMinHeap", queries, visited, time, peakSum, peakMax);
+    }
+
+    long visited = 0, peakSum = 0, peakMax = 0;
+    long time = System.nanoTime();
+    for (int q = 0; q < queries; q++) {
+      reused.search(starts[q], ends[q], spd);
+      visited += reused.totalNodeVisited;
+      peakSum += reused.peakFrontier;
+      peakMax = Math.max(peakMax, reused.peakFrontier);
+    }
+    time = System.nanoTime() - time;
+    report("compact", queries, visited, time, peakSum, peakMax);
+  }
+
+
+  private static SearchAStar mapSearch(RoadNetwork graph, long start, long end, int spd, boolean priQueue) {
+    return new SearchAStar(graph, graph.getLocation(start), graph.getLocation(end), spd, false, priQueue);
+  }
+
+
+  private static void report(String name, int queries, long visited, long nanos, long peakSum, long peakMax) {
+    System.out.printf("%-15s %10.0f nodes/sec  %8d nodes visited  %8.1f ms  peak frontier avg %.1f max %d\n",
+                      name, visited / (nanos / 1e9), visited, nanos / 1e6, (double) peakSum / queries, peakMax);
+  }
+}
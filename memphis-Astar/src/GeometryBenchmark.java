@@ -0,0 +1,130 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * Compares Geometry.getDistanceInMiles with the precomputed unit-sphere kernels of CompactRoadNetwork:
+ * chordMiles (no trigonometry, what the fast heuristic uses) and distanceMiles (the arc back from the chord,
+ * one asin). It times the three kernels on random pairs of locations, reports the worst relative error of
+ * each against getDistanceInMiles over every road and the random pairs (and whether the chord ever came
+ * out longer), then times the compact A* on random queries with and without setFastGeometry.
+ *
+ * Usage: java GeometryBenchmark [graph file] [pairs] [queries]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public class GeometryBenchmark {
+  public static void main(String[] args) throws IOException {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    int pairs = args.length > 1 ? Integer.parseInt(args[1]) : 1 << 20;
+    int queries = args.length > 2 ? Integer.parseInt(args[2]) : 50;
+    CompactRoadNetwork graph;
+    if (filename.endsWith(".bin")) {
+      graph = GraphFile.load(Path.of(filename));
+    } else {
+      Main.readGraph(filename);
+      graph = Main.graph.compact();
+    }
+
+    Random rand = new Random(372);
+    int[] a = new int[pairs];
+    int[] b = new int[pairs];
+    for (int i = 0; i < pairs; i++) {
+      a[i] = rand.nextInt(graph.numLocations());
+      b[i] = rand.nextInt(graph.numLocations());
+    }
+
+    // Errors over every road and every random pair
+    double chordError = 0, arcError = 0, chordExcess = 0;
+    for (int pass = 0; pass < 2; pass++) {
+      int count = pass == 0 ? graph.numRoads() : pairs;
+      int from = 0;
+      for (int i = 0; i < count; i++) {
+        int u, v;
+        if (pass == 0) {
+          while (graph.endRoad(from) <= i) from++;
+          u = from;
+          v = graph.target(i);
+        } else {
+          u = a[i];
+          v = b[i];
+        }
+        double exact = Geometry.getDistanceInMiles(graph.latitude(u), graph.longitude(u), graph.latitude(v),
+                                                   graph.longitude(v));
+        if (exact == 0) continue;
+        double chord = graph.chordMiles(u, v);
+        chordError = Math.max(chordError, Math.abs(chord - exact) / exact);
+        arcError = Math.max(arcError, Math.abs(graph.distanceMiles(u, v) - exact) / exact);
+        chordExcess = Math.max(chordExcess, chord - exact);
+      }
+    }
+    System.out.printf("Worst relative error against getDistanceInMiles over %d roads and %d pairs:\n",
+                      graph.numRoads(), pairs);
+    System.out.printf("  chordMiles     %.3e  (longest by %.3e miles, acos rounding on short roads)\n", chordError,
+                      Math.max(0, chordExcess));
+    System.out.printf("  distanceMiles  %.3e\n", arcError);
+
+    for (int round = 0; round < 3; round++) { // the first rounds warm up
+      double sum = 0;
+      long time = System.nanoTime();
+      for (int i = 0; i < pairs; i++) {
+        sum += Geometry.getDistanceInMiles(graph.latitude(a[i]), graph.longitude(a[i]), graph.latitude(b[i]),
+                                           graph.longitude(b[i]));
+      }
+      long acosNanos = System.nanoTime() - time;
+      time = System.nanoTime();
+      for (int i = 0; i < pairs; i++) {
+        sum += graph.chordMiles(a[i], b[i]);
+      }
+      long chordNanos = System.nanoTime() - time;
+      time = System.nanoTime();
+      for (int i = 0; i < pairs; i++) {
+        sum += graph.distanceMiles(a[i], b[i]);
+      }
+      long arcNanos = System.nanoTime() - time;
+      if (round == 2) {
+        System.out.printf("\ngetDistanceInMiles %8.1f ns/call\n", (double) acosNanos / pairs);
+        System.out.printf("chordMiles         %8.1f ns/call  (%.1fx)\n", (double) chordNanos / pairs,
+                          (double) acosNanos / chordNanos);
+        System.out.printf("distanceMiles      %8.1f ns/call  (%.1fx)  checksum %.1f\n", (double) arcNanos / pairs,
+                          (double) acosNanos / arcNanos, sum);
+      }
+    }
+
+    // The compact A* with either straight line
+    SearchAStar search = new SearchAStar(graph, new SearchSpace(graph.numLocations(), 3), false);
+    long[] starts = new long[queries];
+    long[] ends = new long[queries];
+    int[] budgets = new int[queries];
+    for (int q = 0; q < queries; q++) {
+      starts[q] = graph.id(rand.nextInt(graph.numLocations()));
+      ends[q] = graph.id(rand.nextInt(graph.numLocations()));
+      budgets[q] = rand.nextInt(4);
+    }
+    double[] times = new double[queries];
+    System.out.println();
+    for (int round = 0; round < 3; round++) {
+      boolean fast = round == 2 || round == 0;
+      search.setFastGeometry(fast);
+      long visited = 0;
+      double worst = 0;
+      long time = System.nanoTime();
+      for (int q = 0; q < queries; q++) {
+        Node route = search.search(starts[q], ends[q], budgets[q]);
+        double g = route == null ? Double.POSITIVE_INFINITY : route.g_cost();
+        if (round == 1) {
+          times[q] = g;
+        } else if (g != times[q]) {
+          worst = Math.max(worst, Math.abs(g - times[q]));
+        }
+        visited += search.totalNodeVisited;
+      }
+      time = System.nanoTime() - time;
+      if (round > 0) {
+        System.out.printf("A* %-18s %8.1f ms  %9d nodes visited%s\n", fast ? "chordMiles" : "getDistanceInMiles",
+                          time / 1e6, visited, fast ? String.format("  largest travel time difference %.2e s", worst) : "");
+      }
+    }
+  }
+}
@@ -0,0 +1,280 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * The GraphFile class reads and writes a CompactRoadNetwork as a binary file so the graph doesn't have to
+ * be parsed from the pipe-delimited text on every start. The loader memory-maps the file and copies each
+ * section into its array in bulk gets (a mapping of at most 1 GB each, so sections may be larger than a
+ * buffer), so loading allocates one array per section and nothing per road. All offsets into the file are
+ * longs, and the size of the file is checked against the counts in its header before anything is read.
+ *
+ * Layout (little-endian):
+ *    header:   magic, version, numLocations (n), numRoads (m), numNames (k), nameBytes   (6 ints),
+ *              long fingerprint (CompactRoadNetwork.fingerprint, checked when the file is loaded)
+ *    nodes:    long ids[n], double latitudes[n], double longitudes[n]
+ *    edges:    int offsets[n+1], int targets[m], int speedLimits[m], int nameIds[m], double miles[m]
+ *    names:    int nameOffsets[k+1], then nameBytes bytes of UTF-8 road names
+ *
+ * Converting the text graph once: java GraphFile memphis-medium.txt memphis-medium.bin [hilbert|bfs]
+ * where hilbert or bfs renumbers the locations for cache locality first (see GraphOrder). Landmarks, arc
+ * flags, hierarchies and saved route caches are tied to the numbering, so each of them stores the
+ * fingerprint of the network it was made for and refuses to load for a renumbered file.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public class GraphFile {
+  static final int MAGIC = 0x524E4554; // "RNET"
+  static final int VERSION = 3;
+  static final int HEADER_BYTES = 6 * Integer.BYTES + Long.BYTES;
+  static final int MAX_MAP = 1 << 30; // sections are copied through mappings of at most 1 GB
+
+  public static void main(String[] args) throws IOException {
+    if (args.length != 2 && args.length != 3) {
+      System.err.println("Usage: java GraphFile <text graph> <binary graph> [hilbert|bfs]");
+      System.exit(1);
+    }
+    long time = System.nanoTime();
+    CompactRoadNetwork compact = ParallelGraphLoader.load(Path.of(args[0]));
+    if (args.length == 3) {
+      switch (args[2]) {
+        case "hilbert" -> compact = compact.renumber(GraphOrder.hilbert(compact));
+        case "bfs" -> compact = compact.renumber(GraphOrder.bfs(compact));
+        default -> throw new IllegalArgumentException("Unknown order " + args[2] + ", use hilbert or bfs.");
+      }
+    }
+    write(compact, Path.of(args[1]));
+    System.out.printf("Wrote %d locations and %d roads to %s in %.1f ms\n", compact.numLocations(),
+                      compact.numRoads(), args[1], (System.nanoTime() - time) / 1e6);
+  }
+
+
+  /**
+   * Writes the network to a binary graph file, replacing the file if it exists.
+   *
+   * @param graph The network to save
+   * @param file The path of the binary file
+   * @throws IOException If the file can't be written
+   */
+  public static void write(CompactRoadNetwork graph, Path file) throws IOException {
+    int n = graph.numLocations();
+    int m = graph.numRoads();
+    int k = graph.numNames();
+    byte[][] names = new byte[k][];
+    long nameBytes = 0;
+    for (int i = 0; i < k; i++) {
+      names[i] = graph.name(i).getBytes(StandardCharsets.UTF_8);
+      nameBytes += names[i].length;
+    }
+    if (nameBytes > Integer.MAX_VALUE) throw new IOException("The road names take more than 2 GB.");
+
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                                                StandardOpenOption.TRUNCATE_EXISTING)) {
+      Output out = new Output(channel);
+      out.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(m).putInt(k).putInt((int) nameBytes);
+      out.putLong(graph.fingerprint());
+
+      for (int i = 0; i < n; i++) out.putLong(graph.id(i));
+      for (int i = 0; i < n; i++) out.putDouble(graph.latitude(i));
+      for (int i = 0; i < n; i++) out.putDouble(graph.longitude(i));
+
+      for (int i = 0; i < n; i++) out.putInt(graph.firstRoad(i));
+      out.putInt(m);
+      for (int e = 0; e < m; e++) out.putInt(graph.target(e));
+      for (int e = 0; e < m; e++) out.putInt(graph.speedLimit(e));
+      for (int e = 0; e < m; e++) out.putInt(graph.nameId(e));
+      for (int e = 0; e < m; e++) out.putDouble(graph.miles(e));
+
+      int offset = 0;
+      for (int i = 0; i < k; i++) {
+        out.putInt(offset);
+        offset += names[i].length;
+      }
+      out.putInt(offset);
+      for (byte[] name : names) out.put(name);
+      out.flush();
+      long expected = fileBytes(n, m, k, (int) nameBytes);
+      if (channel.size() != expected)
+        throw new IOException("Wrote " + channel.size() + " bytes to " + file + ", expected " + expected + ".");
+      channel.force(false);
+    }
+  }
+
+
+  /**
+   * Memory-maps a binary graph file and builds the CompactRoadNetwork from it. The size of the file is
+   * checked against its header first, so a truncated file fails here instead of part way through.
+   *
+   * @param file The path of the binary file
+   * @return CompactRoadNetwork The loaded network
+   * @throws IOException If the file can't be read, isn't a binary graph file or doesn't have the size its
+   *         header calls for
+   */
+  public static CompactRoadNetwork load(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_BYTES) throw new IOException(file + " is not a binary graph file.");
+      ByteBuffer header = map(channel, 0, HEADER_BYTES);
+      if (header.getInt() != MAGIC) throw new IOException(file + " is not a binary graph file.");
+      int version = header.getInt();
+      if (version != VERSION) throw new IOException(file + " has unsupported version " + version + ".");
+      int n = header.getInt();
+      int m = header.getInt();
+      int k = header.getInt();
+      int nameBytes = header.getInt();
+      long fingerprint = header.getLong();
+      checkSize(file, size, n, m, k, nameBytes);
+
+      long at = HEADER_BYTES;
+      long[] ids = new long[n];
+      double[] lat = new double[n];
+      double[] lon = new double[n];
+      at = readLongs(channel, at, ids);
+      at = readDoubles(channel, at, lat);
+      at = readDoubles(channel, at, lon);
+
+      int[] offsets = new int[n + 1];
+      int[] targets = new int[m];
+      int[] speeds = new int[m];
+      int[] nameIds = new int[m];
+      double[] miles = new double[m];
+      at = readInts(channel, at, offsets);
+      at = readInts(channel, at, targets);
+      at = readInts(channel, at, speeds);
+      at = readInts(channel, at, nameIds);
+      at = readDoubles(channel, at, miles);
+
+      int[] nameOffsets = new int[k + 1];
+      at = readInts(channel, at, nameOffsets);
+      byte[] bytes = new byte[nameBytes];
+      map(channel, at, nameBytes).get(bytes);
+      String[] names = new String[k];
+      for (int i = 0; i < k; i++) {
+        names[i] = new String(bytes, nameOffsets[i], nameOffsets[i + 1] - nameOffsets[i], StandardCharsets.UTF_8);
+      }
+      CompactRoadNetwork graph = new CompactRoadNetwork(ids, lat, lon, offsets, targets, speeds, nameIds, names, miles);
+      if (graph.fingerprint() != fingerprint) throw new IOException(file + " is corrupt (fingerprint mismatch).");
+      return graph;
+    }
+  }
+
+
+  /**
+   * The size of a binary graph file, in bytes.
+   *
+   * @param n The number of locations
+   * @param m The number of roads
+   * @param k The number of road names
+   * @param nameBytes The length of the UTF-8 name table
+   * @return long The bytes of the header and every section
+   */
+  static long fileBytes(int n, int m, int k, int nameBytes) {
+    return HEADER_BYTES + (long) n * (Long.BYTES + 2 * Double.BYTES)
+           + ((long) n + 1 + 3L * m + k + 1) * Integer.BYTES + (long) m * Double.BYTES + nameBytes;
+  }
+
+
+  /**
+   * Checks the counts of a header against the size of the file.
+   *
+   * @throws IOException If a count is negative or the file is longer or shorter than the counts call for
+   */
+  static void checkSize(Path file, long size, int n, int m, int k, int nameBytes) throws IOException {
+    if (n < 0 || m < 0 || k < 0 || nameBytes < 0) throw new IOException(file + " has a corrupt header.");
+    long expected = fileBytes(n, m, k, nameBytes);
+    if (size != expected)
+      throw new IOException(file + " has " + size + " bytes, but " + n + " locations and " + m + " roads need "
+                            + expected + " (truncated or corrupt file).");
+  }
+
+
+  // Copies the values at a position of the file, mapping at most MAX_MAP bytes at a time
+  private static long readLongs(FileChannel channel, long at, long[] values) throws IOException {
+    for (int i = 0; i < values.length; ) {
+      int count = Math.min(values.length - i, MAX_MAP / Long.BYTES);
+      map(channel, at, (long) count * Long.BYTES).asLongBuffer().get(values, i, count);
+      i += count;
+      at += (long) count * Long.BYTES;
+    }
+    return at;
+  }
+
+
+  private static long readDoubles(FileChannel channel, long at, double[] values) throws IOException {
+    for (int i = 0; i < values.length; ) {
+      int count = Math.min(values.length - i, MAX_MAP / Double.BYTES);
+      map(channel, at, (long) count * Double.BYTES).asDoubleBuffer().get(values, i, count);
+      i += count;
+      at += (long) count * Double.BYTES;
+    }
+    return at;
+  }
+
+
+  private static long readInts(FileChannel channel, long at, int[] values) throws IOException {
+    for (int i = 0; i < values.length; ) {
+      int count = Math.min(values.length - i, MAX_MAP / Integer.BYTES);
+      map(channel, at, (long) count * Integer.BYTES).asIntBuffer().get(values, i, count);
+      i += count;
+      at += (long) count * Integer.BYTES;
+    }
+    return at;
+  }
+
+
+  private static ByteBuffer map(FileChannel channel, long position, long bytes) throws IOException {
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+
+  /**
+   * Writes little-endian values through a small buffer, so a file of any size is written without mapping it.
+   */
+  private static final class Output {
+    private final FileChannel channel;
+    private final ByteBuffer buf = ByteBuffer.allocate(1 << 16).order(ByteOrder.LITTLE_ENDIAN);
+
+    Output(FileChannel channel) {
+      this.channel = channel;
+    }
+
+    Output putInt(int value) throws IOException {
+      room(Integer.BYTES).putInt(value);
+      return this;
+    }
+
+    Output putLong(long value) throws IOException {
+      room(Long.BYTES).putLong(value);
+      return this;
+    }
+
+    Output putDouble(double value) throws IOException {
+      room(Double.BYTES).putDouble(value);
+      return this;
+    }
+
+    void put(byte[] bytes) throws IOException {
+      for (int i = 0; i < bytes.length; ) {
+        int count = Math.min(bytes.length - i, room(1).remaining());
+        buf.put(bytes, i, count);
+        i += count;
+      }
+    }
+
+    private ByteBuffer room(int bytes) throws IOException {
+      if (buf.remaining() < bytes) flush();
+      return buf;
+    }
+
+    void flush() throws IOException {
+      buf.flip();
+      while (buf.hasRemaining()) channel.write(buf);
+      buf.clear();
+    }
+  }
+}
@@ -0,0 +1,98 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.Random;
+
+/**
+ * The GridGraph class generates synthetic road networks in the same pipe-delimited text format as
+ * memphis-medium.txt, for measuring how the searches scale beyond the Memphis data. Locations sit on a
+ * rows x cols grid about 0.14 miles apart (jittered a little) starting at 35N 90.2W. Neighbors are
+ * joined by a road with probability ROAD_PROBABILITY, so the grid has some holes. Every tenth row is a
+ * 65 mph highway and every eighth column a 55 mph street, and the rest get 25 to 45 mph. Ids are
+ * distinct random 9 and 10 digit numbers like the real ones. The same seed always gives the same graph.
+ *
+ * Usage: java GridGraph <rows> <cols> <output file> [seed]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class GridGraph {
+  static final double ROAD_PROBABILITY = 0.93;
+  static final int[] LOCAL_SPEEDS = { 25, 30, 35, 40, 45 };
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 3) {
+      System.err.println("Usage: java GridGraph <rows> <cols> <output file> [seed]");
+      System.exit(1);
+    }
+    int rows = Integer.parseInt(args[0]);
+    int cols = Integer.parseInt(args[1]);
+    long seed = args.length > 3 ? Long.parseLong(args[3]) : 7;
+    long[] ids = write(rows, cols, seed, Path.of(args[2]));
+    System.out.printf("Wrote %d locations to %s, corners %d and %d\n", ids.length, args[2], ids[0],
+                      ids[ids.length - 1]);
+  }
+
+  private GridGraph() {}
+
+
+  /**
+   * Writes a grid graph.
+   *
+   * @param rows The number of rows of locations
+   * @param cols The number of columns of locations
+   * @param seed The random seed
+   * @param file Where to write the text graph
+   * @return long[] The location ids, row by row
+   * @throws IOException If the file can't be written
+   */
+  public static long[] write(int rows, int cols, long seed, Path file) throws IOException {
+    Random rand = new Random(seed);
+    long[] ids = distinctIds(Math.multiplyExact(rows, cols), rand);
+    try (BufferedWriter out = Files.newBufferedWriter(file)) {
+      for (int r = 0; r < rows; r++) {
+        for (int c = 0; c < cols; c++) {
+          double lat = 35.0 + r * 0.002 + (rand.nextDouble() - 0.5) * 0.0008;
+          double lon = -90.2 + c * 0.0025 + (rand.nextDouble() - 0.5) * 0.0008;
+          out.write(String.format("location|%d|%.7f|%.7f", ids[r * cols + c], lat, lon));
+          out.newLine();
+        }
+      }
+      for (int r = 0; r < rows; r++) {
+        for (int c = 0; c < cols; c++) {
+          long id = ids[r * cols + c];
+          if (c + 1 < cols && rand.nextDouble() < ROAD_PROBABILITY) {
+            boolean highway = r % 10 == 0;
+            int speed = highway ? 65 : LOCAL_SPEEDS[rand.nextInt(LOCAL_SPEEDS.length)];
+            out.write("road|" + id + "|" + ids[r * cols + c + 1] + "|" + speed + "|"
+                      + (highway ? "Highway " : "Avenue ") + r);
+            out.newLine();
+          }
+          if (r + 1 < rows && rand.nextDouble() < ROAD_PROBABILITY) {
+            int speed = c % 8 == 0 ? 55 : LOCAL_SPEEDS[rand.nextInt(LOCAL_SPEEDS.length)];
+            out.write("road|" + id + "|" + ids[(r + 1) * cols + c] + "|" + speed + "|Street " + c);
+            out.newLine();
+          }
+        }
+      }
+    }
+    return ids;
+  }
+
+
+  // Distinct ids between 100000000 and 3000000000
+  private static long[] distinctIds(int count, Random rand) {
+    long[] ids = new long[count];
+    HashSet<Long> used = new HashSet<>();
+    for (int i = 0; i < count; i++) {
+      long id;
+      do {
+        id = 100_000_000L + (long) (rand.nextDouble() * 2_900_000_000L);
+      } while (!used.add(id));
+      ids[i] = id;
+    }
+    return ids;
+  }
+}
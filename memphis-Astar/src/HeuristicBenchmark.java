@@ -0,0 +1,71 @@
+/**
+ * Reports the number of nodes visited with the original fixed 130 mph heuristic and with the budget-aware
+ * heuristic built from the graph's highest speed limit, for both the map-based and the compact search. The
+ * compact search is also run with 16 farthest landmarks (ALT).
+ * The default queries are the ones in run_short.sh, run_long.sh and run_long2.sh.
+ *
+ * Usage: java HeuristicBenchmark [graph file] [start,end,speeding ...]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public class HeuristicBenchmark {
+  static final String[] RUN_QUERIES = { "480814962,1352161029,0", "203874746,203744893,2", "2471207719,203785186,1" };
+
+  public static void main(String[] args) {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    String[] queries = RUN_QUERIES;
+    if (args.length > 1) {
+      queries = new String[args.length - 1];
+      System.arraycopy(args, 1, queries, 0, queries.length);
+    }
+
+    Main.readGraph(filename);
+    RoadNetwork graph = Main.graph;
+    CompactRoadNetwork compact = graph.compact();
+    System.out.printf("Highest speed limit %d mph, longest road %.3f miles\n\n", compact.maxSpeedLimit(), compact.maxMiles());
+    Landmarks landmarks = Landmarks.farthest(compact, 16);
+    System.out.printf("%-30s %-8s %12s %12s %12s %14s %14s %14s\n", "query", "search", "visited 130", "visited new",
+                      "visited alt", "time 130", "time new", "time alt");
+
+    for (String query : queries) {
+      String[] pieces = query.split(",");
+      long start = Long.parseLong(pieces[0]);
+      long end = Long.parseLong(pieces[1]);
+      int spd = Integer.parseInt(pieces[2]);
+
+      SearchAStar[] runs = new SearchAStar[3];
+      Node[] routes = new Node[3];
+      for (int legacy = 0; legacy < 2; legacy++) {
+        runs[legacy] = new SearchAStar(graph, graph.getLocation(start), graph.getLocation(end), spd, false);
+        runs[legacy].setLegacyHeuristic(legacy == 0);
+        routes[legacy] = runs[legacy].startSearch();
+      }
+      runs[2] = null;
+      print(query, "map", runs, routes);
+
+      for (int legacy = 0; legacy < 2; legacy++) {
+        runs[legacy] = new SearchAStar(compact, start, end, spd, false);
+        runs[legacy].setLegacyHeuristic(legacy == 0);
+        routes[legacy] = runs[legacy].startSearch();
+      }
+      runs[2] = new SearchAStar(compact, start, end, spd, false);
+      runs[2].setLandmarks(landmarks);
+      routes[2] = runs[2].startSearch();
+      print(query, "compact", runs, routes);
+    }
+  }
+
+
+  private static void print(String query, String search, SearchAStar[] runs, Node[] routes) {
+    String altVisited = runs[2] == null ? "-" : Integer.toString(runs[2].totalNodeVisited);
+    String altTime = runs[2] == null ? "-" : String.format("%.3f", cost(routes[2]));
+    System.out.printf("%-30s %-8s %12d %12d %12s %14.3f %14.3f %14s\n", query, search, runs[0].totalNodeVisited,
+                      runs[1].totalNodeVisited, altVisited, cost(routes[0]), cost(routes[1]), altTime);
+  }
+
+
+  private static double cost(Node route) {
+    return route == null ? Double.NaN : route.g_cost();
+  }
+}
@@ -0,0 +1,607 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * The IncrementalPlanner class keeps the route of one (start, end, speeding) query up to date while road
+ * speeds change, roads close and the car moves along, without searching from scratch. It runs D* Lite over
+ * the same (location, speeds left) states as the compact SearchAStar (state id location * (speeding + 1) +
+ * speedsLeft). The search goes backward: g of a state is its travel time to the end, and every state with
+ * the end location is a goal. A state is inconsistent when g differs from rhs, the best one-road lookahead
+ * through its successors, and only inconsistent states go on the frontier. An update changes the cost of
+ * a few roads, which makes only the states just before them inconsistent, so the repair expands the part of
+ * the search those roads affected and leaves the rest of the g-values in place.
+ *
+ * The planner keeps its own copy of the speed limits (a closed road has speed 0 and infinite cost), so the
+ * CompactRoadNetwork it was built on stays immutable and can be shared. The heuristic is the straight-line
+ * bound of SearchAStar from the current start, with speeding - speedsLeft speeds allowed (chord miles). When
+ * the start moves, the keys already on the frontier are kept, and km grows by the most the heuristic can
+ * have dropped, as in D* Lite. A speed limit raised above the fastest one would make the heuristic
+ * overestimate, so such an update starts the search over.
+ *
+ * Its main drives the car a few roads along the route between random update batches on and around it,
+ * and compares the states the moves and repairs expanded with a fresh SearchAStar on the updated network:
+ * java IncrementalPlanner [graph file] [batches] [updates per batch] [start end speeding]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class IncrementalPlanner {
+  static final double KEY_SLACK = 1e-6; // seconds
+  private final CompactRoadNetwork graph;
+  private final CompactRoadNetwork reverse;
+  private final int states; // states per location (speeding + 1)
+  private final int endIndex;
+  // The current costs of every road
+  private final int[] speeds;
+  private final double[] travelTimes, speedingTimes;
+  private int maxSpeed;
+  private final double maxRoadMiles;
+  // D* Lite
+  private final double[] g, rhs;
+  private final KeyHeap open;
+  private int startState;
+  private int lastStart; // location of the start when km was last raised
+  private double km;
+  private int expanded;  // states expanded by the last plan, apply or moveTo
+
+  /**
+   * A change to the road(s) from startId to endId: the new speed limit, or 0 to close them. Updates are per
+   * direction, like the roads of the network.
+   */
+  public record RoadUpdate(long startId, long endId, int speedLimit) {
+    public static RoadUpdate closure(long startId, long endId) { return new RoadUpdate(startId, endId, 0); }
+
+    /** The road given a new speed limit. */
+    public static RoadUpdate of(Road road) { return new RoadUpdate(road.startId(), road.endId(), road.speedLimit()); }
+
+    /** The road taken out of the network. */
+    public static RoadUpdate removed(Road road) { return closure(road.startId(), road.endId()); }
+  }
+
+
+  public static void main(String[] args) throws IOException {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    int batches = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    int perBatch = args.length > 2 ? Integer.parseInt(args[2]) : 6;
+    CompactRoadNetwork graph = filename.endsWith(".bin") ? GraphFile.load(Path.of(filename))
+                               : Main.readCompactGraph(filename);
+    Random rand = new Random(372);
+    long start, end;
+    int speeding;
+    if (args.length > 5) {
+      start = Long.parseLong(args[3]);
+      end = Long.parseLong(args[4]);
+      speeding = Integer.parseInt(args[5]);
+    } else {
+      start = graph.id(rand.nextInt(graph.numLocations()));
+      end = graph.id(rand.nextInt(graph.numLocations()));
+      speeding = 2;
+    }
+
+    IncrementalPlanner planner = new IncrementalPlanner(graph, start, end, speeding);
+    long time = System.nanoTime();
+    Node route = planner.plan();
+    System.out.printf("Initial plan from %d to %d speeding %d: %s, %d states expanded in %.1f ms\n\n", start, end,
+                      speeding, route == null ? "no route" : String.format("%.3f s", route.g_cost()),
+                      planner.expandedStates(), (System.nanoTime() - time) / 1e6);
+    System.out.printf("%-6s %8s %10s %10s %10s %10s %10s %14s %14s\n", "batch", "updates", "moved", "repaired",
+                      "fresh A*", "repair ms", "A* ms", "travel time", "A* time");
+    int mismatches = 0;
+    for (int batch = 1; batch <= batches && route != null; batch++) {
+      time = System.nanoTime();
+      int moved = 0;
+      if (batch > 1) { // the car drove a few roads of the route since the last batch
+        List<Node> path = new ArrayList<>();
+        for (Node n = route; n != null; n = n.previous()) path.add(n);
+        if (path.size() > 2) {
+          Node at = path.get(Math.max(1, path.size() - 1 - 5));
+          route = planner.moveTo(at.s().id(), at.speeding());
+          moved = planner.expandedStates();
+        }
+      }
+      List<RoadUpdate> updates = randomUpdates(graph, route, perBatch, rand);
+      route = planner.apply(updates);
+      double repairMillis = (System.nanoTime() - time) / 1e6;
+      int repaired = planner.expandedStates();
+
+      CompactRoadNetwork updated = planner.updatedNetwork();
+      SearchAStar fresh = new SearchAStar(updated, new SearchSpace(updated.numLocations(), speeding), false);
+      time = System.nanoTime();
+      Node expected = fresh.search(planner.start(), end, planner.startSpeedsLeft());
+      double freshMillis = (System.nanoTime() - time) / 1e6;
+      double got = route == null ? Double.POSITIVE_INFINITY : route.g_cost();
+      double want = expected == null ? Double.POSITIVE_INFINITY : expected.g_cost();
+      if (got != want && Math.abs(got - want) > 1e-6) mismatches++;
+      System.out.printf("%-6d %8d %10d %10d %10d %10.2f %10.2f %14.3f %14.3f\n", batch, updates.size(), moved,
+                        repaired, fresh.totalNodeVisited, repairMillis, freshMillis, got, want);
+    }
+    System.out.println(mismatches == 0 ? "\nEvery repaired route matches a fresh search."
+                       : "\n" + mismatches + " repaired routes differ from a fresh search!");
+  }
+
+
+  // Slows down or closes some roads of the route (both directions) and changes the speed of random roads
+  private static List<RoadUpdate> randomUpdates(CompactRoadNetwork graph, Node route, int count, Random rand) {
+    List<Road> onRoute = new ArrayList<>();
+    for (Node n = route; n.previous() != null; n = n.previous()) onRoute.add(n.path());
+    List<RoadUpdate> updates = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      Road road;
+      if (i % 2 == 0 && !onRoute.isEmpty()) {
+        road = onRoute.get(rand.nextInt(onRoute.size()));
+      } else {
+        int from = rand.nextInt(graph.numLocations());
+        if (graph.firstRoad(from) == graph.endRoad(from)) continue;
+        road = graph.toRoad(from, graph.firstRoad(from) + rand.nextInt(graph.endRoad(from) - graph.firstRoad(from)));
+      }
+      int speed = rand.nextInt(4) == 0 ? 0 : 5 * (1 + rand.nextInt(road.speedLimit() / 5));
+      updates.add(new RoadUpdate(road.startId(), road.endId(), speed));
+      updates.add(new RoadUpdate(road.endId(), road.startId(), speed));
+    }
+    return updates;
+  }
+
+
+  /**
+   * Sets up the planner for one query over a map-based network.
+   */
+  public IncrementalPlanner(RoadGraph graph, long start, long end, int speeding) {
+    this(graph.compact(), start, end, speeding);
+  }
+
+
+  /**
+   * Sets up the planner for one query. Nothing is searched until plan.
+   *
+   * @param graph The network, which isn't changed by the updates
+   * @param start The original id of the starting location
+   * @param end The original id of the ending location
+   * @param speeding The number of times speeding is allowed
+   */
+  public IncrementalPlanner(CompactRoadNetwork graph, long start, long end, int speeding) {
+    if (speeding < 0) throw new IllegalArgumentException("Speeding can't be negative.");
+    this.graph = graph;
+    this.reverse = graph.reverse();
+    this.states = speeding + 1;
+    this.endIndex = graph.indexOf(end);
+    int m = graph.numRoads();
+    speeds = new int[m];
+    travelTimes = new double[m];
+    speedingTimes = new double[m];
+    for (int e = 0; e < m; e++) {
+      setSpeed(e, graph.speedLimit(e));
+    }
+    maxSpeed = graph.maxSpeedLimit();
+    maxRoadMiles = graph.maxMiles();
+    g = new double[graph.numLocations() * states];
+    rhs = new double[g.length];
+    open = new KeyHeap(g.length);
+    startState = graph.indexOf(start) * states + speeding;
+    reset();
+  }
+
+
+  // Same arithmetic as CompactRoadNetwork so the costs match a network built with these speeds
+  private void setSpeed(int road, int speed) {
+    speeds[road] = speed;
+    double miles = graph.miles(road);
+    travelTimes[road] = speed > 0 ? miles / speed * 60 * 60 : Double.POSITIVE_INFINITY;
+    speedingTimes[road] = speed > 0 ? miles / (speed * 2) * 60 * 60 : Double.POSITIVE_INFINITY;
+  }
+
+
+  // Forgets every g-value and puts the goal states back on the frontier
+  private void reset() {
+    Arrays.fill(g, Double.POSITIVE_INFINITY);
+    Arrays.fill(rhs, Double.POSITIVE_INFINITY);
+    open.clear();
+    km = 0;
+    lastStart = startState / states;
+    for (int k = 0; k < states; k++) {
+      int goal = endIndex * states + k;
+      rhs[goal] = 0;
+      open.add(goal, key1(goal), 0);
+    }
+  }
+
+
+  /**
+   * Searches the route from scratch.
+   *
+   * @return Node The route as a Node chain from the start, or null if the end can't be reached
+   */
+  public Node plan() {
+    expanded = 0;
+    computeShortestPath();
+    return route();
+  }
+
+
+  /**
+   * Applies a batch of road updates and repairs the route.
+   *
+   * @param updates The new speed limits and closures
+   * @return Node The new route, or null if the end can't be reached anymore
+   * @throws IllegalArgumentException If an update names roads that aren't in the network
+   */
+  public Node apply(List<RoadUpdate> updates) {
+    expanded = 0;
+    boolean restart = false;
+    for (RoadUpdate update : updates) {
+      int from = graph.indexOf(update.startId());
+      int to = graph.indexOf(update.endId());
+      boolean found = false;
+      for (int e = graph.firstRoad(from); e < graph.endRoad(from); e++) {
+        if (graph.target(e) != to) continue;
+        found = true;
+        int speed = Math.max(0, update.speedLimit());
+        if (speed == speeds[e]) continue;
+        double oldTravel = travelTimes[e], oldSpeeding = speedingTimes[e];
+        setSpeed(e, speed);
+        if (speed > maxSpeed) {
+          maxSpeed = speed;
+          restart = true;
+        }
+        if (restart) continue;
+        for (int k = 0; k < states; k++) {
+          int u = from * states + k;
+          costChanged(u, to * states + k, oldTravel, travelTimes[e]);
+          if (k > 0) {
+            costChanged(u, to * states + k - 1, oldSpeeding, speedingTimes[e]);
+          }
+        }
+      }
+      if (!found) throw new IllegalArgumentException("No road from " + update.startId() + " to " + update.endId() + ".");
+    }
+    if (restart) {
+      reset();
+    }
+    computeShortestPath();
+    return route();
+  }
+
+
+  /**
+   * Moves the start to where the car is now and repairs the route from there.
+   *
+   * @param location The original id of the car's location
+   * @param speedsLeft The number of times it may still speed
+   * @return Node The route from the new start, or null if the end can't be reached
+   */
+  public Node moveTo(long location, int speedsLeft) {
+    if (speedsLeft < 0 || speedsLeft >= states)
+      throw new IllegalArgumentException("Speeds left must be between 0 and " + (states - 1) + ".");
+    expanded = 0;
+    int at = graph.indexOf(location);
+    // The heuristic from the new start is lower by at most the straight line between the starts at top speed
+    km += graph.chordMiles(lastStart, at) / maxSpeed * 60 * 60;
+    lastStart = at;
+    startState = at * states + speedsLeft;
+    computeShortestPath();
+    return route();
+  }
+
+
+  /**
+   * The number of states the last plan, apply or moveTo expanded.
+   */
+  public int expandedStates() { return expanded; }
+
+  /**
+   * The original id of the current start.
+   */
+  public long start() { return graph.id(startState / states); }
+
+  public int startSpeedsLeft() { return startState % states; }
+
+  /**
+   * The current speed limit of a road, 0 when it is closed.
+   */
+  public int speedLimit(int road) { return speeds[road]; }
+
+
+  /**
+   * A copy of the network with the current speed limits and without the closed roads, for checking the
+   * planner against a search from scratch.
+   *
+   * @return CompactRoadNetwork The updated network, with the same location indices
+   */
+  public CompactRoadNetwork updatedNetwork() {
+    int n = graph.numLocations();
+    long[] ids = new long[n];
+    double[] lat = new double[n];
+    double[] lon = new double[n];
+    int[] offsets = new int[n + 1];
+    for (int i = 0; i < n; i++) {
+      ids[i] = graph.id(i);
+      lat[i] = graph.latitude(i);
+      lon[i] = graph.longitude(i);
+      offsets[i + 1] = offsets[i];
+      for (int e = graph.firstRoad(i); e < graph.endRoad(i); e++) {
+        if (speeds[e] > 0) offsets[i + 1]++;
+      }
+    }
+    int m = offsets[n];
+    int[] targets = new int[m];
+    int[] speedLimits = new int[m];
+    int[] nameIds = new int[m];
+    double[] miles = new double[m];
+    int r = 0;
+    for (int e = 0; e < graph.numRoads(); e++) {
+      if (speeds[e] == 0) continue;
+      targets[r] = graph.target(e);
+      speedLimits[r] = speeds[e];
+      nameIds[r] = graph.nameId(e);
+      miles[r] = graph.miles(e);
+      r++;
+    }
+    String[] names = new String[graph.numNames()];
+    for (int i = 0; i < names.length; i++) {
+      names[i] = graph.name(i);
+    }
+    return new CompactRoadNetwork(ids, lat, lon, offsets, targets, speedLimits, nameIds, names, miles);
+  }
+
+
+  /**
+   * The straight-line bound of SearchAStar from the start to a state. Any path from the start speeds at
+   * most speeding - speedsLeft times to get there, and the bound is consistent for every state.
+   */
+  private double heuristic(int state) {
+    int location = state / states;
+    int used = states - 1 - state % states;
+    double miles = graph.chordMiles(startState / states, location);
+    double fast = Math.min(miles, used * maxRoadMiles);
+    return (fast / (2 * maxSpeed) + (miles - fast) / maxSpeed) * 60 * 60;
+  }
+
+  private double key1(int s) { return Math.min(g[s], rhs[s]) + heuristic(s) + km; }
+
+  private double key2(int s) { return Math.min(g[s], rhs[s]); }
+
+  private boolean isGoal(int s) { return s / states == endIndex; }
+
+
+  // The best one-road lookahead of a state: the cheapest road cost plus g of the state it leads to
+  private double lookahead(int u) {
+    int from = u / states;
+    int k = u - from * states;
+    double best = Double.POSITIVE_INFINITY;
+    for (int e = graph.firstRoad(from), last = graph.endRoad(from); e < last; e++) {
+      int to = graph.target(e) * states + k;
+      best = Math.min(best, travelTimes[e] + g[to]);
+      if (k > 0) {
+        best = Math.min(best, speedingTimes[e] + g[to - 1]);
+      }
+    }
+    return best;
+  }
+
+
+  // Puts a state on the frontier if it is inconsistent, or takes it off if it isn't
+  private void updateVertex(int u) {
+    if (g[u] != rhs[u]) {
+      open.addOrUpdate(u, key1(u), key2(u));
+    } else if (open.contains(u)) {
+      open.remove(u);
+    }
+  }
+
+
+  // The road from u to v went from oldCost to newCost
+  private void costChanged(int u, int v, double oldCost, double newCost) {
+    if (isGoal(u)) return;
+    if (oldCost > newCost) {
+      rhs[u] = Math.min(rhs[u], newCost + g[v]);
+    } else if (rhs[u] == oldCost + g[v]) {
+      rhs[u] = lookahead(u);
+    }
+    updateVertex(u);
+  }
+
+
+  private void computeShortestPath() {
+    while (!open.isEmpty()) {
+      int u = open.peek();
+      double oldK1 = open.k1(u), oldK2 = open.k2(u);
+      // The start must end up consistent (not only rhs <= g as in D* Lite) so route can follow g from it, and
+      // states whose keys only rounding puts above the start's are expanded too
+      if (!less(oldK1, oldK2, key1(startState) + KEY_SLACK, key2(startState)) && rhs[startState] == g[startState]) break;
+      double newK1 = key1(u), newK2 = key2(u);
+      if (less(oldK1, oldK2, newK1, newK2)) {
+        open.addOrUpdate(u, newK1, newK2); // the start moved since u was queued
+      } else if (g[u] > rhs[u]) {
+        g[u] = rhs[u];
+        open.remove(u);
+        expanded++;
+        forEachPredecessor(u, (p, cost) -> {
+          if (!isGoal(p) && cost + g[u] < rhs[p]) {
+            rhs[p] = cost + g[u];
+            updateVertex(p);
+          }
+        });
+      } else {
+        double oldG = g[u];
+        g[u] = Double.POSITIVE_INFINITY;
+        expanded++;
+        forEachPredecessor(u, (p, cost) -> {
+          if (!isGoal(p) && rhs[p] == cost + oldG) {
+            rhs[p] = lookahead(p);
+          }
+          updateVertex(p);
+        });
+        if (!isGoal(u)) {
+          rhs[u] = lookahead(u);
+        }
+        updateVertex(u);
+      }
+    }
+  }
+
+  private static boolean less(double a1, double a2, double b1, double b2) {
+    return a1 < b1 || (a1 == b1 && a2 < b2);
+  }
+
+
+  private interface PredecessorVisitor {
+    void visit(int state, double cost);
+  }
+
+  // Every state with a road into v, and the cost of that road
+  private void forEachPredecessor(int v, PredecessorVisitor visitor) {
+    int to = v / states;
+    int k = v - to * states;
+    for (int r = reverse.firstRoad(to), last = reverse.endRoad(to); r < last; r++) {
+      int e = reverse.originalRoad(r);
+      int from = reverse.target(r);
+      visitor.visit(from * states + k, travelTimes[e]);
+      if (k + 1 < states) {
+        visitor.visit(from * states + k + 1, speedingTimes[e]);
+      }
+    }
+  }
+
+
+  /**
+   * Follows the best lookahead from the start to the end, adding the road costs up from the start like
+   * SearchAStar so the travel times come out the same. Every state on that path has a smaller key than the
+   * start, so once the start is consistent they all are.
+   *
+   * @return Node The route, or null if the start can't reach the end
+   */
+  private Node route() {
+    if (g[startState] == Double.POSITIVE_INFINITY) return null;
+    int s = startState;
+    Node node = new Node(graph.toLocation(s / states), s % states, 0.0, 0.0, 0.0);
+    double gCost = 0;
+    for (int steps = 0; !isGoal(s); steps++) {
+      if (steps > g.length) throw new IllegalStateException("The route doesn't reach the end.");
+      int from = s / states;
+      int k = s - from * states;
+      int bestRoad = -1, bestState = -1;
+      double best = Double.POSITIVE_INFINITY, bestCost = 0;
+      for (int e = graph.firstRoad(from), last = graph.endRoad(from); e < last; e++) {
+        int to = graph.target(e) * states + k;
+        if (travelTimes[e] + g[to] < best) {
+          best = travelTimes[e] + g[to];
+          bestRoad = e;
+          bestState = to;
+          bestCost = travelTimes[e];
+        }
+        if (k > 0 && speedingTimes[e] + g[to - 1] < best) {
+          best = speedingTimes[e] + g[to - 1];
+          bestRoad = e;
+          bestState = to - 1;
+          bestCost = speedingTimes[e];
+        }
+      }
+      if (bestRoad < 0) return null;
+      gCost += bestCost;
+      int to = bestState / states;
+      Road road = new Road(graph.id(from), graph.id(to), speeds[bestRoad], graph.roadName(bestRoad));
+      node = new Node(node, graph.toLocation(to), bestState % states, road, gCost, 0.0, gCost);
+      s = bestState;
+    }
+    return node;
+  }
+
+
+  /**
+   * An indexed binary heap over state ids ordered by the D* Lite key (k1, then k2).
+   */
+  private static final class KeyHeap {
+    private final int[] heap;
+    private final int[] position; // -1 when not in the heap
+    private final double[] k1, k2;
+    private int size;
+
+    KeyHeap(int capacity) {
+      heap = new int[capacity];
+      position = new int[capacity];
+      k1 = new double[capacity];
+      k2 = new double[capacity];
+      Arrays.fill(position, -1);
+    }
+
+    boolean isEmpty() { return size == 0; }
+
+    boolean contains(int id) { return position[id] >= 0; }
+
+    int peek() { return heap[0]; }
+
+    double k1(int id) { return k1[id]; }
+
+    double k2(int id) { return k2[id]; }
+
+    void clear() {
+      for (int i = 0; i < size; i++) position[heap[i]] = -1;
+      size = 0;
+    }
+
+    void add(int id, double key1, double key2) {
+      k1[id] = key1;
+      k2[id] = key2;
+      heap[size] = id;
+      position[id] = size;
+      siftUp(size++);
+    }
+
+    void addOrUpdate(int id, double key1, double key2) {
+      if (position[id] < 0) {
+        add(id, key1, key2);
+        return;
+      }
+      k1[id] = key1;
+      k2[id] = key2;
+      siftUp(position[id]);
+      siftDown(position[id]);
+    }
+
+    void remove(int id) {
+      int at = position[id];
+      position[id] = -1;
+      size--;
+      if (at == size) return;
+      heap[at] = heap[size];
+      position[heap[at]] = at;
+      siftUp(at);
+      siftDown(position[heap[at]]);
+    }
+
+    private boolean less(int a, int b) {
+      return IncrementalPlanner.less(k1[a], k2[a], k1[b], k2[b]);
+    }
+
+    private void siftUp(int at) {
+      int id = heap[at];
+      while (at > 0) {
+        int parent = (at - 1) >> 1;
+        if (!less(id, heap[parent])) break;
+        heap[at] = heap[parent];
+        position[heap[at]] = at;
+        at = parent;
+      }
+      heap[at] = id;
+      position[id] = at;
+    }
+
+    private void siftDown(int at) {
+      int id = heap[at];
+      while (true) {
+        int child = 2 * at + 1;
+        if (child >= size) break;
+        if (child + 1 < size && less(heap[child + 1], heap[child])) child++;
+        if (!less(heap[child], id)) break;
+        heap[at] = heap[child];
+        position[heap[at]] = at;
+        at = child;
+      }
+      heap[at] = id;
+      position[id] = at;
+    }
+  }
+}
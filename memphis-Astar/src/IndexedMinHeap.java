@@ -0,0 +1,187 @@
+import java.util.Arrays;
+
+/**
+ * The IndexedMinHeap class is a binary min-heap over dense integer ids (0 to capacity-1) with a double
+ * priority. Unlike PriQueue, it knows where every id sits in the heap, so contains is O(1) and
+ * decreaseKey/remove are O(log n) instead of a linear scan. Everything is kept in primitive arrays, so
+ * adding and removing allocates nothing.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class IndexedMinHeap {
+  private final int[] heap;        // heap slot -> id
+  private final int[] position;    // id -> heap slot, -1 when not in the heap
+  private final double[] priority; // id -> priority
+  private int size;
+
+
+  /**
+   * Creates an empty heap for the ids 0 to capacity-1.
+   *
+   * @param capacity The number of distinct ids
+   */
+  public IndexedMinHeap(int capacity) {
+    heap = new int[capacity];
+    position = new int[capacity];
+    priority = new double[capacity];
+    Arrays.fill(position, -1);
+  }
+
+  public int capacity() { return heap.length; }
+
+  public int size() { return size; }
+
+  public boolean isEmpty() { return size == 0; }
+
+  public boolean contains(int id) { return position[id] >= 0; }
+
+  /**
+   * The priority of an id that is in the heap.
+   */
+  public double priority(int id) { return priority[id]; }
+
+  /**
+   * The id with the lowest priority, without removing it.
+   */
+  public int peek() { return heap[0]; }
+
+  /**
+   * The lowest priority in the heap.
+   */
+  public double peekPriority() { return priority[heap[0]]; }
+
+
+  /**
+   * Add an id that is not in the heap yet.
+   *
+   * @param id The id to add
+   * @param p Its priority
+   */
+  public void add(int id, double p) {
+    priority[id] = p;
+    heap[size] = id;
+    position[id] = size;
+    siftUp(size++);
+  }
+
+
+  /**
+   * Lower the priority of an id that is in the heap. A priority that isn't lower is ignored.
+   *
+   * @param id The id in the heap
+   * @param p Its new priority
+   */
+  public void decreaseKey(int id, double p) {
+    if (p < priority[id]) {
+      priority[id] = p;
+      siftUp(position[id]);
+    }
+  }
+
+
+  /**
+   * Add the id, or lower its priority if it is already in the heap.
+   *
+   * @param id The id
+   * @param p The priority
+   * @return boolean true if the id was added, false if it was already in the heap
+   */
+  public boolean addOrDecrease(int id, double p) {
+    if (position[id] >= 0) {
+      decreaseKey(id, p);
+      return false;
+    }
+    add(id, p);
+    return true;
+  }
+
+
+  /**
+   * Remove and return the id with the lowest priority.
+   *
+   * @return int The id, or -1 if the heap is empty
+   */
+  public int remove() {
+    if (size == 0) return -1;
+    int top = heap[0];
+    position[top] = -1;
+    size--;
+    if (size > 0) {
+      int last = heap[size];
+      heap[0] = last;
+      position[last] = 0;
+      siftDown(0);
+    }
+    return top;
+  }
+
+
+  /**
+   * Remove a specific id from the heap.
+   *
+   * @param id The id
+   * @return boolean true if the id was in the heap
+   */
+  public boolean remove(int id) {
+    int slot = position[id];
+    if (slot < 0) return false;
+    position[id] = -1;
+    size--;
+    if (slot < size) {
+      int last = heap[size];
+      heap[slot] = last;
+      position[last] = slot;
+      siftUp(slot);
+      siftDown(position[last]);
+    }
+    return true;
+  }
+
+
+  /**
+   * Remove everything from the heap. It only touches the ids that are still in it.
+   */
+  public void clear() {
+    for (int i = 0; i < size; i++) {
+      position[heap[i]] = -1;
+    }
+    size = 0;
+  }
+
+
+  private void siftUp(int slot) {
+    int id = heap[slot];
+    double p = priority[id];
+    while (slot > 0) {
+      int parentSlot = (slot - 1) >>> 1;
+      int parent = heap[parentSlot];
+      if (priority[parent] <= p) break;
+      heap[slot] = parent;
+      position[parent] = slot;
+      slot = parentSlot;
+    }
+    heap[slot] = id;
+    position[id] = slot;
+  }
+
+
+  private void siftDown(int slot) {
+    int id = heap[slot];
+    double p = priority[id];
+    int half = size >>> 1;
+    while (slot < half) {
+      int child = 2 * slot + 1;
+      int right = child + 1;
+      if (right < size && priority[heap[right]] < priority[heap[child]]) {
+        child = right;
+      }
+      if (p <= priority[heap[child]]) break;
+      heap[slot] = heap[child];
+      position[heap[slot]] = slot;
+      slot = child;
+    }
+    heap[slot] = id;
+    position[id] = slot;
+  }
+}
@@ -0,0 +1,376 @@
+import java.io.IOException;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.stream.IntStream;
+
+/**
+ * The Landmarks class holds the preprocessing of the ALT heuristic (A*, Landmarks, Triangle inequality).
+ * A few landmark locations are picked and the travel time (at the speed limit) from every landmark to every
+ * location and back is stored. By the triangle inequality, for any landmark L the time from v to t is at
+ * least d(L,t) - d(L,v) and at least d(v,L) - d(t,L), which on a street grid is a much tighter bound than
+ * the straight line.
+ * Landmarks are chosen either "farthest" (each new landmark is the location farthest from the ones already
+ * picked) or "avoid" (the leaf of the shortest path tree of a random root whose subtree the current
+ * landmarks bound worst). The backward distances are then computed with one Dijkstra per landmark, run in
+ * parallel. The tables are stored as floats, one row of count entries per location.
+ *
+ * Preprocessing a binary graph once: java Landmarks memphis-medium.bin [count] [farthest|avoid]
+ * writes memphis-medium.bin.landmarks next to the graph.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class Landmarks {
+  static final int MAGIC = 0x4C4D524B; // "LMRK"
+  static final int VERSION = 2;
+  static final int HEADER_BYTES = 4 * Integer.BYTES + Long.BYTES;
+
+  private final int count;
+  private final int[] landmarks;
+  private final float[] from; // from[v * count + l] = time from landmark l to v
+  private final float[] to;   // to[v * count + l]   = time from v to landmark l
+  private final double maxSaving; // the most time speeding once can save (half of the slowest road)
+  private final double slack;     // allowance for rounding the tables to float
+  private final long fingerprint; // of the network the tables were computed on
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: java Landmarks <binary graph> [count] [farthest|avoid]");
+      System.exit(1);
+    }
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 16;
+    boolean avoid = args.length > 2 && args[2].equals("avoid");
+
+    CompactRoadNetwork graph = GraphFile.load(Path.of(args[0]));
+    long time = System.nanoTime();
+    Landmarks lm = avoid ? avoid(graph, count, 372) : farthest(graph, count);
+    time = System.nanoTime() - time;
+    Path file = Path.of(args[0] + ".landmarks");
+    lm.save(file);
+    System.out.printf("Picked %d landmarks (%s) in %.1f ms, wrote %s\n", count, avoid ? "avoid" : "farthest",
+                      time / 1e6, file);
+  }
+
+
+  Landmarks(CompactRoadNetwork graph, int[] landmarks, float[] from, float[] to) {
+    this.fingerprint = graph.fingerprint();
+    this.count = landmarks.length;
+    this.landmarks = landmarks;
+    this.from = from;
+    this.to = to;
+
+    double saving = 0;
+    for (int e = 0; e < graph.numRoads(); e++) {
+      saving = Math.max(saving, graph.travelTime(e) - graph.speedingTime(e));
+    }
+    maxSaving = saving;
+    float largest = 0;
+    for (float d : from) if (d != Float.POSITIVE_INFINITY) largest = Math.max(largest, d);
+    for (float d : to) if (d != Float.POSITIVE_INFINITY) largest = Math.max(largest, d);
+    slack = 4 * Math.ulp(largest);
+  }
+
+
+  /**
+   * Picks landmarks with the farthest strategy. The first landmark is the location farthest from a start
+   * location, every next one maximizes the distance to the closest landmark picked so far.
+   *
+   * @param graph The network
+   * @param count The number of landmarks
+   * @return Landmarks The landmarks with their distance tables
+   */
+  public static Landmarks farthest(CompactRoadNetwork graph, int count) {
+    int n = graph.numLocations();
+    int[] picked = new int[count];
+    float[] from = new float[n * count];
+    double[] dist = new double[n];
+    double[] closest = new double[n];
+    Arrays.fill(closest, Double.POSITIVE_INFINITY);
+    IndexedMinHeap heap = new IndexedMinHeap(n);
+
+    dijkstra(graph, 0, dist, null, null, heap);
+    int next = farthestReached(dist);
+    for (int l = 0; l < count; l++) {
+      picked[l] = next;
+      dijkstra(graph, next, dist, null, null, heap);
+      for (int v = 0; v < n; v++) {
+        from[v * count + l] = (float) dist[v];
+        if (dist[v] < closest[v]) closest[v] = dist[v];
+      }
+      next = farthestReached(closest);
+    }
+    return new Landmarks(graph, picked, from, backward(graph, picked));
+  }
+
+
+  /**
+   * Picks landmarks with the avoid strategy. For every landmark, a shortest path tree is grown from a
+   * random root and each location is weighted by how much the current landmarks underestimate its distance
+   * from the root. Subtrees that already hold a landmark count as zero, and the new landmark is the leaf
+   * reached by always stepping into the heaviest subtree.
+   *
+   * @param graph The network
+   * @param count The number of landmarks
+   * @param seed The seed for picking roots
+   * @return Landmarks The landmarks with their distance tables
+   */
+  public static Landmarks avoid(CompactRoadNetwork graph, int count, long seed) {
+    int n = graph.numLocations();
+    int[] picked = new int[count];
+    float[] from = new float[n * count];
+    double[] dist = new double[n];
+    int[] parent = new int[n];
+    int[] order = new int[n];
+    double[] size = new double[n];
+    int[] heaviest = new int[n];
+    boolean[] holdsLandmark = new boolean[n];
+    IndexedMinHeap heap = new IndexedMinHeap(n);
+    Random rand = new Random(seed);
+
+    for (int l = 0; l < count; l++) {
+      int root = rand.nextInt(n);
+      int settled = dijkstra(graph, root, dist, parent, order, heap);
+      for (int i = 0; i < settled; i++) {
+        int v = order[i];
+        double bound = 0;
+        for (int j = 0; j < l; j++) {
+          double b = from[v * count + j] - from[root * count + j];
+          if (b > bound) bound = b;
+        }
+        size[v] = dist[v] - bound;
+        heaviest[v] = -1;
+        holdsLandmark[v] = false;
+      }
+      for (int j = 0; j < l; j++) {
+        holdsLandmark[picked[j]] = true;
+      }
+      // Leaves first, so every subtree is summed before its parent
+      for (int i = settled - 1; i > 0; i--) {
+        int v = order[i];
+        int p = parent[v];
+        if (holdsLandmark[v]) {
+          holdsLandmark[p] = true;
+          continue;
+        }
+        size[p] += size[v];
+        if (heaviest[p] < 0 || size[v] > size[heaviest[p]]) heaviest[p] = v;
+      }
+      int leaf = root;
+      while (heaviest[leaf] >= 0 && !holdsLandmark[heaviest[leaf]]) {
+        leaf = heaviest[leaf];
+      }
+      if (leaf == root || holdsLandmark[leaf]) {
+        leaf = farthestReached(dist); // every subtree is already covered
+      }
+
+      picked[l] = leaf;
+      dijkstra(graph, leaf, dist, null, null, heap);
+      for (int v = 0; v < n; v++) {
+        from[v * count + l] = (float) dist[v];
+      }
+    }
+    return new Landmarks(graph, picked, from, backward(graph, picked));
+  }
+
+
+  // The to[] table, one Dijkstra over the reversed roads per landmark, run in parallel
+  private static float[] backward(CompactRoadNetwork graph, int[] picked) {
+    int n = graph.numLocations();
+    int count = picked.length;
+    CompactRoadNetwork reversed = graph.reverse();
+    float[] to = new float[n * count];
+    IntStream.range(0, count).parallel().forEach(l -> {
+      double[] dist = new double[n];
+      dijkstra(reversed, picked[l], dist, null, null, new IndexedMinHeap(n));
+      for (int v = 0; v < n; v++) {
+        to[v * count + l] = (float) dist[v];
+      }
+    });
+    return to;
+  }
+
+
+  /**
+   * One-to-all Dijkstra over travel times at the speed limit.
+   *
+   * @param graph The network (or its reverse)
+   * @param source The dense index to start from
+   * @param dist Filled with the time to every location, infinity if unreachable
+   * @param parent If not null, filled with the previous location on the shortest path tree
+   * @param order If not null, filled with the locations in the order they were settled
+   * @param heap An empty heap with capacity numLocations, it is empty again when this returns
+   * @return int The number of settled locations
+   */
+  static int dijkstra(CompactRoadNetwork graph, int source, double[] dist, int[] parent, int[] order,
+                      IndexedMinHeap heap) {
+    Arrays.fill(dist, Double.POSITIVE_INFINITY);
+    dist[source] = 0;
+    if (parent != null) parent[source] = -1;
+    heap.add(source, 0);
+    int settled = 0;
+    while (!heap.isEmpty()) {
+      int v = heap.remove();
+      if (order != null) order[settled] = v;
+      settled++;
+      double d = dist[v];
+      for (int road = graph.firstRoad(v), last = graph.endRoad(v); road < last; road++) {
+        int w = graph.target(road);
+        double nd = d + graph.travelTime(road);
+        if (nd < dist[w]) {
+          dist[w] = nd;
+          if (parent != null) parent[w] = v;
+          heap.addOrDecrease(w, nd);
+        }
+      }
+    }
+    return settled;
+  }
+
+
+  private static int farthestReached(double[] dist) {
+    int best = 0;
+    for (int v = 1; v < dist.length; v++) {
+      if (dist[v] != Double.POSITIVE_INFINITY && (dist[best] == Double.POSITIVE_INFINITY || dist[v] > dist[best]))
+        best = v;
+    }
+    return best;
+  }
+
+
+  public int count() { return count; }
+
+  public long fingerprint() { return fingerprint; }
+
+  public int landmark(int l) { return landmarks[l]; }
+
+
+  /**
+   * The landmark lower bound on the time (at the speed limit) from v to t.
+   *
+   * @param v The dense index of the location
+   * @param t The dense index of the target
+   * @return double The largest triangle-inequality bound over all landmarks, infinity if t can't be reached
+   */
+  public double lowerBound(int v, int t) {
+    int vRow = v * count;
+    int tRow = t * count;
+    double best = 0;
+    for (int l = 0; l < count; l++) {
+      double forward = from[tRow + l] - from[vRow + l];
+      double backward = to[vRow + l] - to[tRow + l];
+      if (forward > best) best = forward;
+      if (backward > best) best = backward;
+    }
+    return Math.max(0, best - slack);
+  }
+
+
+  /**
+   * The landmark bound when speeding is still allowed. Speeding on a road halves its time, so the whole
+   * trip takes at least half of lowerBound, and each of the speedsLeft roads saves at most maxSaving.
+   * Both parts shrink along a road by no more than the road's cost, so the bound stays consistent.
+   *
+   * @param v The dense index of the location
+   * @param t The dense index of the target
+   * @param speedsLeft The number of times speeding is still allowed
+   * @return double The lower bound in seconds
+   */
+  public double bound(int v, int t, int speedsLeft) {
+    return bound(lowerBound(v, t), speedsLeft);
+  }
+
+
+  /**
+   * The same bound from a lowerBound that is already known, for callers that keep it per location.
+   */
+  public double bound(double lowerBound, int speedsLeft) {
+    if (speedsLeft == 0) return lowerBound;
+    return Math.max(lowerBound / 2, lowerBound - speedsLeft * maxSaving);
+  }
+
+
+  /**
+   * Saves the landmarks and their tables.
+   *
+   * Layout (little-endian): magic, version, numLocations (n), count (k), long fingerprint of the network,
+   * int landmarks[k], float from[n*k], float to[n*k]
+   *
+   * @param file The path to write
+   * @throws IOException If the file can't be written
+   */
+  public void save(Path file) throws IOException {
+    int n = from.length / count;
+    long size = fileBytes(n, count);
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                                                StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      buf.putInt(MAGIC).putInt(VERSION).putInt(n).putInt(count).putLong(fingerprint);
+      for (int l : landmarks) buf.putInt(l);
+      buf.asFloatBuffer().put(from);
+      buf.position(buf.position() + from.length * Float.BYTES);
+      buf.asFloatBuffer().put(to);
+      buf.force();
+    }
+  }
+
+
+  /**
+   * The size of a landmark file, in bytes.
+   *
+   * @param n The number of locations
+   * @param count The number of landmarks
+   * @return long The bytes of the header, the landmarks and both distance tables
+   */
+  static long fileBytes(int n, int count) {
+    return HEADER_BYTES + (long) count * Integer.BYTES + 2L * n * count * Float.BYTES;
+  }
+
+
+  /**
+   * Loads landmarks saved for the given network.
+   *
+   * @param file The landmark file
+   * @param graph The network they were computed on
+   * @return Landmarks The loaded landmarks
+   * @throws IOException If the file can't be read, belongs to another graph or is truncated or corrupt
+   */
+  public static Landmarks load(Path file, CompactRoadNetwork graph) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long size = channel.size();
+      if (size < HEADER_BYTES) throw new IOException(file + " is not a landmark file.");
+      MappedByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, Math.min(size, Integer.MAX_VALUE));
+      buf.order(ByteOrder.LITTLE_ENDIAN);
+      if (buf.getInt() != MAGIC) throw new IOException(file + " is not a landmark file.");
+      int version = buf.getInt();
+      if (version != VERSION) throw new IOException(file + " has unsupported version " + version + ".");
+      int n = buf.getInt();
+      int count = buf.getInt();
+      if (n != graph.numLocations() || buf.getLong() != graph.fingerprint())
+        throw new IOException(file + " was computed for another graph or numbering.");
+      if (count < 0) throw new IOException(file + " has a corrupt header.");
+      long expected = fileBytes(n, count);
+      if (size != expected)
+        throw new IOException(file + " has " + size + " bytes, but " + count + " landmarks on " + n + " locations need "
+                              + expected + " (truncated or corrupt file).");
+      if (expected > Integer.MAX_VALUE) throw new IOException(file + " is too large to map.");
+      int[] landmarks = new int[count];
+      buf.asIntBuffer().get(landmarks);
+      buf.position(buf.position() + count * Integer.BYTES);
+      for (int l : landmarks) {
+        if (l < 0 || l >= n) throw new IOException(file + " has a landmark that isn't a location.");
+      }
+      float[] from = new float[n * count];
+      float[] to = new float[n * count];
+      buf.asFloatBuffer().get(from);
+      buf.position(buf.position() + from.length * Float.BYTES);
+      buf.asFloatBuffer().get(to);
+      return new Landmarks(graph, landmarks, from, to);
+    }
+  }
+}
@@ -1,28 +1,119 @@
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.Scanner;
 
 /**
  * The main for running the program that gets graph of locations and roads. Given two locations and the amount of times to speed, it
  * will implement A* search to find the most optimal path which is based on distance and speed limit.
  *
+ * Usage: java Main [--csr] [--dominance] [--alt] [--arcflags] [--fast-geometry] [--ch] [--anytime ms] [--depart hh:mm]
+ *                  [--metrics file] [graph file]
+ *    --csr       search the CompactRoadNetwork copy of the graph
+ *    --dominance prune labels dominated over (time, speeds left) in the compact search (implies --csr)
+ *    --alt       use the landmark (ALT) heuristic in the compact search (implies --csr). The landmarks are
+ *                loaded from "graph file".landmarks when it exists, otherwise 16 are picked on start
+ *    --arcflags  skip roads whose arc flag for the cell of the end is clear in the compact search (implies
+ *                --csr). The flags are loaded from "graph file".arcflags when it exists, otherwise computed on start
+ *    --fast-geometry measure the heuristic's straight line with precomputed chords (implies --csr)
+ *    --ch        answer the query with the contraction hierarchy (implies --csr). The hierarchy is loaded
+ *                from "graph file".ch when it exists, otherwise it is built on start
+ *    --anytime   answer within the given milliseconds with the anytime (ARA*) search (implies --csr), printing
+ *                every improved route with its bound on the optimum
+ *    --depart    leave at the given time of day with the synthetic rush-hour profiles of TravelTimeProfiles
+ *                (implies --csr, arc flags are ignored, works with --anytime but not with --ch)
+ *    --metrics   append the timed SearchMetrics of the A* query to the file as a line of JSON (not with --ch
+ *                or --anytime, which don't run that query)
+ *    graph file  a text graph on the classpath (default memphis-medium.txt), or a binary graph file
+ *                written by GraphFile (ending in .bin) which is memory-mapped and always searched compactly
+ * A location can be entered as its ID or as "latitude,longitude", which is snapped to the closest location.
+ *
  * @author Diego Lopez
  * @version 1.0 09-19-2023
  */
 public class Main {
   static RoadNetwork graph;
+  static CompactRoadNetwork compactGraph;
+  static SpatialIndex spatialIndex;
 
   public static void main(String[] args) {
     Scanner scan = new Scanner(System.in);
 
-    readGraph("memphis-medium.txt");
+    boolean csr = false;
+    boolean dominance = false;
+    boolean alt = false;
+    boolean arcFlags = false;
+    boolean ch = false;
+    boolean fastGeometry = false;
+    Path metricsFile = null;
+    double anytimeMillis = 0;
+    double departure = -1;
+    String filename = "memphis-medium.txt";
+    for (int i = 0; i < args.length; i++) {
+      String arg = args[i];
+      if (arg.equals("--csr")) {
+        csr = true;
+      } else if (arg.equals("--dominance")) {
+        csr = true;
+        dominance = true;
+      } else if (arg.equals("--alt")) {
+        csr = true;
+        alt = true;
+      } else if (arg.equals("--arcflags")) {
+        csr = true;
+        arcFlags = true;
+      } else if (arg.equals("--fast-geometry")) {
+        csr = true;
+        fastGeometry = true;
+      } else if (arg.equals("--ch")) {
+        csr = true;
+        ch = true;
+      } else if (arg.equals("--anytime") && i + 1 < args.length) {
+        csr = true;
+        anytimeMillis = Double.parseDouble(args[++i]);
+      } else if (arg.equals("--depart") && i + 1 < args.length) {
+        csr = true;
+        String[] clock = args[++i].split(":");
+        departure = Integer.parseInt(clock[0]) * 3600 + (clock.length > 1 ? Integer.parseInt(clock[1]) * 60 : 0);
+      } else if (arg.equals("--metrics") && i + 1 < args.length) {
+        metricsFile = Path.of(args[++i]);
+      } else {
+        filename = arg;
+      }
+    }
+
+    if (ch && departure >= 0) {
+      System.err.println("--depart can't be used with --ch, the contraction hierarchy only has static travel times.");
+      System.exit(1);
+    }
+    if (metricsFile != null && (ch || anytimeMillis > 0)) {
+      System.err.println("--metrics can't be used with --ch or --anytime, it counts the A* query they replace.");
+      System.exit(1);
+    }
+
+    if (filename.endsWith(".bin")) {
+      csr = true;
+      try {
+        compactGraph = GraphFile.load(Path.of(filename));
+      } catch (IOException e) {
+        System.err.println("Bad filename: " + filename + " (" + e.getMessage() + ")");
+        System.exit(1);
+      }
+    } else if (csr) {
+      compactGraph = readCompactGraph(filename);
+    } else {
+      readGraph(filename);
+    }
     // Prompt User
     System.out.print("Enter starting location ID: ");
-    long start = Long.parseLong(scan.nextLine());
+    long start = readLocationId(scan.nextLine());
     if (start == 0)
       System.exit(1);
 
     System.out.print("\nEnter ending location ID: ");
-    long end = Long.parseLong(scan.nextLine());
+    long end = readLocationId(scan.nextLine());
     if (end == 0)
       System.exit(1);
 
@@ -43,16 +134,83 @@ public class Main {
       System.exit(1);
     }
 
-    Location st = graph.getLocation(start);
-    Location ed = graph.getLocation(end);
+    if (ch) {
+      ContractionHierarchy hierarchy = readHierarchy(filename, compactGraph, spd);
+      Node route = hierarchy.route(compactGraph.indexOf(start), compactGraph.indexOf(end), spd);
+      System.out.printf("\n\nTotal travel time in seconds: %f ", route.g_cost());
+      System.out.printf("\nNumber of nodes visited: %d \n", hierarchy.settledStates);
+      printResult(route);
+      scan.close();
+      return;
+    }
 
-    SearchAStar gps = new SearchAStar(graph, st, ed, spd, trb); // sets up the parameters
+    SearchAStar gps;
+    if (csr) { // search the compressed sparse row copy of the graph
+      gps = new SearchAStar(compactGraph, start, end, spd, trb);
+      gps.setDominancePruning(dominance);
+      gps.setFastGeometry(fastGeometry);
+      if (alt) {
+        gps.setLandmarks(readLandmarks(filename, compactGraph));
+      }
+      if (arcFlags) {
+        gps.setArcFlags(readArcFlags(filename, compactGraph, spd));
+      }
+      if (departure >= 0) {
+        gps.setTravelTimeProfiles(TravelTimeProfiles.rushHour(compactGraph, 42));
+        gps.setDeparture(departure);
+      }
+    } else {
+      Location st = graph.getLocation(start);
+      Location ed = graph.getLocation(end);
+      gps = new SearchAStar(graph, st, ed, spd, trb); // sets up the parameters
+    }
+    if (anytimeMillis > 0) {
+      AnytimeSearch anytime = new AnytimeSearch(gps);
+      AnytimeSearch.Result result = anytime.search(start, end, spd, (long) (anytimeMillis * 1e6), r ->
+          System.out.printf("\n%.2f ms, weight %.1f: %f seconds, at most %.3f times the best", r.elapsedNanos() / 1e6,
+                            r.weight(), r.travelSeconds(), r.bound()));
+      if (result == null) {
+        System.out.println("\nNo route found in " + anytimeMillis + " ms.");
+        scan.close();
+        return;
+      }
+      System.out.printf("\n\nTotal travel time in seconds: %f ", result.travelSeconds());
+      System.out.printf("\nNumber of nodes visited: %d \n", anytime.expansions);
+      printResult(result.route());
+      scan.close();
+      return;
+    }
+
+    SearchMetrics metrics = metricsFile == null ? null : new SearchMetrics(true);
+    gps.setMetrics(metrics);
     Node route = gps.startSearch(); // Actually preforms A*
+    if (metrics != null) {
+      try {
+        Files.writeString(metricsFile, metrics.toJson() + System.lineSeparator(), StandardOpenOption.CREATE,
+                          StandardOpenOption.APPEND);
+      } catch (IOException e) {
+        System.err.println("Can't write the metrics to " + metricsFile + " (" + e.getMessage() + ")");
+      }
+    }
 
     // Print out to result
     System.out.printf("\n\nTotal travel time in seconds: %f ", route.g_cost());
     System.out.printf("\nNumber of nodes visited: %d \n", gps.totalNodeVisited);
+    if (dominance) {
+      System.out.printf("Number of dominated labels pruned: %d \n", gps.prunedLabels);
+    }
+    printResult(route);
+
+    scan.close();
+  }
+
 
+  /**
+   * Prints the route and the GPS directions.
+   *
+   * @param route The goal node
+   */
+  private static void printResult(Node route) {
     System.out.println("\nRoute found is: ");
     printRoute(route);
 
@@ -60,8 +218,100 @@ public class Main {
     printDirections(route);
 
     System.out.println("You have arrived!");
+  }
 
-    scan.close();
+
+  /**
+   * Loads the contraction hierarchy saved next to the graph file, or builds one if there is none that
+   * allows the given speeding.
+   *
+   * @param filename The graph file
+   * @param graph The network loaded from that file
+   * @param speeding The number of times speeding is allowed
+   * @return ContractionHierarchy The hierarchy of the network
+   */
+  public static ContractionHierarchy readHierarchy(String filename, CompactRoadNetwork graph, int speeding) {
+    Path file = Path.of(filename + ".ch");
+    if (Files.exists(file)) {
+      try {
+        ContractionHierarchy hierarchy = ContractionHierarchy.load(file, graph);
+        if (hierarchy.maxSpeeding() >= speeding) return hierarchy;
+      } catch (IOException e) {
+        System.err.println("Ignoring " + file + " (" + e.getMessage() + ")");
+      }
+    }
+    return ContractionHierarchy.build(graph, speeding);
+  }
+
+
+  /**
+   * Reads a location the user entered, either its ID or a "latitude,longitude" pair that is snapped to the
+   * closest location with a SpatialIndex (built on first use).
+   *
+   * @param input The line the user entered
+   * @return long The location ID
+   */
+  public static long readLocationId(String input) {
+    int comma = input.indexOf(',');
+    if (comma < 0) {
+      return Long.parseLong(input.strip());
+    }
+    if (compactGraph == null) {
+      compactGraph = graph.compact();
+    }
+    if (spatialIndex == null) {
+      spatialIndex = new SpatialIndex(compactGraph);
+    }
+    double lat = Double.parseDouble(input.substring(0, comma).strip());
+    double lon = Double.parseDouble(input.substring(comma + 1).strip());
+    int nearest = spatialIndex.nearest(lat, lon);
+    if (nearest < 0)
+      return 0;
+    System.out.printf("(closest location %d)", compactGraph.id(nearest));
+    return compactGraph.id(nearest);
+  }
+
+
+  /**
+   * Loads the arc flags saved next to the graph file, or computes 32 cells if there are none or they were
+   * computed for fewer speeds.
+   *
+   * @param filename The graph file
+   * @param graph The network loaded from that file
+   * @param speeding The number of times speeding is allowed
+   * @return ArcFlags The arc flags for the network
+   */
+  public static ArcFlags readArcFlags(String filename, CompactRoadNetwork graph, int speeding) {
+    Path file = Path.of(filename + ".arcflags");
+    if (Files.exists(file)) {
+      try {
+        ArcFlags flags = ArcFlags.load(file, graph);
+        if (flags.maxSpeeding() >= speeding) return flags;
+      } catch (IOException e) {
+        System.err.println("Ignoring " + file + " (" + e.getMessage() + ")");
+      }
+    }
+    return ArcFlags.compute(graph, 32, speeding);
+  }
+
+
+  /**
+   * Loads the landmarks saved next to the graph file, or picks new ones if there are none.
+   *
+   * @param filename The graph file
+   * @param graph The network loaded from that file
+   * @return Landmarks The landmarks for the network
+   */
+  public static Landmarks readLandmarks(String filename, CompactRoadNetwork graph) {
+    Path file = Path.of(filename + ".landmarks");
+    if (Files.exists(file)) {
+      try {
+        return Landmarks.load(file, graph);
+      } catch (IOException e) {
+        System.err.println("Ignoring " + file + " (" + e.getMessage() + ")");
+      }
+    }
+    return Landmarks.farthest(graph, 16);
   }
 
 
@@ -77,9 +327,43 @@ public class Main {
       System.err.println("Bad filename: " + filename);
       System.exit(1);
     }
+    graph = parseGraph(is);
+  }
+
+
+  /**
+   * Reads a text graph straight into a CompactRoadNetwork: with the ParallelGraphLoader when the name is a
+   * file on disk, otherwise from the classpath like readGraph.
+   *
+   * @param filename The text graph
+   * @return CompactRoadNetwork The network
+   */
+  public static CompactRoadNetwork readCompactGraph(String filename) {
+    Path file = Path.of(filename);
+    if (Files.isRegularFile(file)) {
+      try {
+        return ParallelGraphLoader.load(file);
+      } catch (IOException e) {
+        System.err.println("Bad filename: " + filename + " (" + e.getMessage() + ")");
+        System.exit(1);
+      }
+    }
+    readGraph(filename);
+    return graph.compact();
+  }
+
+
+  /**
+   * Parses a graph in the pipe-delimited text format ("location|id|lat|lon" and "road|a|b|speed|name" lines).
+   * Every road line is added in both directions.
+   *
+   * @param is The text to read
+   * @return RoadNetwork The graph that was read
+   */
+  public static RoadNetwork parseGraph(InputStream is) {
     Scanner scan = new Scanner(is);
 
-    graph = new RoadNetwork();
+    RoadNetwork graph = new RoadNetwork();
 
     while (scan.hasNextLine()) {
       String line = scan.nextLine();
@@ -103,6 +387,7 @@ public class Main {
       }
     }
     scan.close();
+    return graph;
   }
 
 
@@ -0,0 +1,527 @@
+import com.sun.management.GarbageCollectionNotificationInfo;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryUsage;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.DoubleBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractCollection;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.RandomAccess;
+import javax.management.NotificationEmitter;
+import javax.management.openmbean.CompositeData;
+
+/**
+ * The OffHeapRoadNetwork class is a read-only road network whose data stays outside the Java heap. It maps
+ * every section of a binary graph file (see GraphFile) as its own read-only buffer: the ids and coordinates
+ * of the locations, the CSR offsets and targets, the speed limits, name ids and lengths of the roads, and
+ * the UTF-8 name table. Nothing is copied onto the heap, so the garbage collector never sees the graph, the
+ * operating system pages it in and out as it is used, and a graph larger than the heap can still be
+ * searched. Mapping the same file again (another region, another process) shares the pages.
+ *
+ * It implements RoadGraph (getLocation, getAdjacentRoads, getMaxSpeedLimit and so on), so the map-based
+ * SearchAStar runs on it unchanged, and the dense index accessors of CompactRoadNetwork. The
+ * Location and Road records are made on demand and are short lived. Road names are decoded on first use
+ * and kept, there being far fewer names than roads. Locations are looked up by a binary search over the
+ * ids, which the text and binary loaders write in ascending order. Any other order gets a sorted index in
+ * a temporary mapped file, so it stays off the heap too.
+ *
+ * The buffers are NIO mapped buffers rather than java.lang.foreign MemorySegments, which are still an
+ * incubator API on the Java 17 this project builds with. Each section is mapped on its own, so only a
+ * single section (8 bytes per location or road) is bound by the 2 GB limit of a buffer.
+ *
+ * Comparing the garbage collection of the heap and off-heap graphs (run each mode in its own JVM, with the
+ * same -Xmx):
+ * java OffHeapRoadNetwork <binary graph> [map|compact|offheap] [regions] [queries]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class OffHeapRoadNetwork implements RoadGraph {
+  private final int numLocations, numRoads, numNames;
+  // Per location (dense index)
+  private final LongBuffer ids;
+  private final DoubleBuffer latitudes;
+  private final DoubleBuffer longitudes;
+  // CSR adjacency: roads of location i are [offsets[i], offsets[i+1])
+  private final IntBuffer offsets;
+  private final IntBuffer targets;
+  // Per road (dense index)
+  private final IntBuffer speedLimits;
+  private final IntBuffer nameIds;
+  private final DoubleBuffer miles;
+  // Name table: name i is nameBytes[nameOffsets[i], nameOffsets[i+1])
+  private final IntBuffer nameOffsets;
+  private final ByteBuffer nameBytes;
+  private final String[] names; // decoded names, filled in on first use
+  private final int maxSpeedLimit;
+  private final double maxMiles;
+  // Dense indices in id order, null when the ids are already ascending
+  private final IntBuffer sortedIndex;
+  private final long mappedBytes;
+  private final long fingerprint; // as written by GraphFile, CompactRoadNetwork.fingerprint of the same file
+
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: java OffHeapRoadNetwork <binary graph> [map|compact|offheap] [regions] [queries]");
+      System.exit(1);
+    }
+    Path file = Path.of(args[0]);
+    String mode = args.length > 1 ? args[1] : "offheap";
+    int regions = args.length > 2 ? Integer.parseInt(args[2]) : 4;
+    int queries = args.length > 3 ? Integer.parseInt(args[3]) : 50;
+    GcLog gc = new GcLog();
+
+    // Load one copy of the graph per region and keep them all
+    long time = System.nanoTime();
+    List<Object> loaded = new ArrayList<>();
+    for (int r = 0; r < regions; r++) {
+      switch (mode) {
+        case "map" -> loaded.add(toRoadNetwork(GraphFile.load(file)));
+        case "compact" -> loaded.add(GraphFile.load(file));
+        case "offheap" -> loaded.add(map(file));
+        default -> throw new IllegalArgumentException("Unknown mode " + mode + ", use map, compact or offheap.");
+      }
+    }
+    long loadNanos = System.nanoTime() - time;
+    System.out.printf("%s: %d regions of %s\n", mode, regions, file.getFileName());
+    gc.report("load", loadNanos);
+    MemoryUsage heap = ManagementFactory.getMemoryMXBean().getHeapMemoryUsage();
+    System.out.printf("  heap used %.1f MB of %.1f MB max", heap.getUsed() / 1e6, heap.getMax() / 1e6);
+    if (mode.equals("offheap")) {
+      System.out.printf(", %.1f MB mapped", regions * ((OffHeapRoadNetwork) loaded.get(0)).mappedBytes() / 1e6);
+    }
+    System.out.println();
+
+    // The same seeded queries on every region
+    OffHeapRoadNetwork index = map(file);
+    Random rand = new Random(372);
+    long[][] pairs = new long[queries][];
+    for (int q = 0; q < queries; q++) {
+      pairs[q] = new long[] { index.id(rand.nextInt(index.numLocations())), index.id(rand.nextInt(index.numLocations())) };
+    }
+    index = null;
+    gc.reset();
+    time = System.nanoTime();
+    double total = 0;
+    for (Object region : loaded) {
+      if (region instanceof CompactRoadNetwork compact) {
+        SearchAStar search = new SearchAStar(compact, new SearchSpace(compact.numLocations(), 2), false);
+        for (long[] pair : pairs) {
+          Node route = search.search(pair[0], pair[1], 2);
+          if (route != null) total += route.g_cost();
+        }
+      } else {
+        RoadGraph graph = (RoadGraph) region;
+        for (long[] pair : pairs) {
+          SearchAStar search = new SearchAStar(graph, graph.getLocation(pair[0]), graph.getLocation(pair[1]), 2, false);
+          Node route = search.startSearch();
+          if (route != null) total += route.g_cost();
+        }
+      }
+    }
+    gc.report("queries", System.nanoTime() - time);
+    System.out.printf("  total travel time %.1f s\n", total);
+  }
+
+
+  // A map-based copy of a compact network, the way the text loader builds it
+  private static RoadNetwork toRoadNetwork(CompactRoadNetwork compact) {
+    RoadNetwork graph = new RoadNetwork();
+    for (int i = 0; i < compact.numLocations(); i++) {
+      graph.addLocation(compact.toLocation(i));
+    }
+    for (int i = 0; i < compact.numLocations(); i++) {
+      for (int road = compact.firstRoad(i); road < compact.endRoad(i); road++) {
+        graph.addRoad(compact.toRoad(i, road));
+      }
+    }
+    return graph;
+  }
+
+
+  /**
+   * Maps a binary graph file.
+   *
+   * @param file The path of a file written by GraphFile
+   * @return OffHeapRoadNetwork The network, backed by the file
+   * @throws IOException If the file can't be read or isn't a binary graph file
+   */
+  public static OffHeapRoadNetwork map(Path file) throws IOException {
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      return new OffHeapRoadNetwork(file, channel);
+    }
+  }
+
+
+  private OffHeapRoadNetwork(Path file, FileChannel channel) throws IOException {
+    if (channel.size() < GraphFile.HEADER_BYTES) throw new IOException(file + " is not a binary graph file.");
+    ByteBuffer header = section(channel, 0, GraphFile.HEADER_BYTES);
+    if (header.getInt() != GraphFile.MAGIC) throw new IOException(file + " is not a binary graph file.");
+    int version = header.getInt();
+    if (version != GraphFile.VERSION) throw new IOException(file + " has unsupported version " + version + ".");
+    int n = numLocations = header.getInt();
+    int m = numRoads = header.getInt();
+    int k = numNames = header.getInt();
+    int textBytes = header.getInt();
+    fingerprint = header.getLong();
+    GraphFile.checkSize(file, channel.size(), n, m, k, textBytes);
+
+    long at = GraphFile.HEADER_BYTES;
+    ids = section(channel, at, (long) n * Long.BYTES).asLongBuffer();
+    at += (long) n * Long.BYTES;
+    latitudes = section(channel, at, (long) n * Double.BYTES).asDoubleBuffer();
+    at += (long) n * Double.BYTES;
+    longitudes = section(channel, at, (long) n * Double.BYTES).asDoubleBuffer();
+    at += (long) n * Double.BYTES;
+    offsets = section(channel, at, (long) (n + 1) * Integer.BYTES).asIntBuffer();
+    at += (long) (n + 1) * Integer.BYTES;
+    targets = section(channel, at, (long) m * Integer.BYTES).asIntBuffer();
+    at += (long) m * Integer.BYTES;
+    speedLimits = section(channel, at, (long) m * Integer.BYTES).asIntBuffer();
+    at += (long) m * Integer.BYTES;
+    nameIds = section(channel, at, (long) m * Integer.BYTES).asIntBuffer();
+    at += (long) m * Integer.BYTES;
+    miles = section(channel, at, (long) m * Double.BYTES).asDoubleBuffer();
+    at += (long) m * Double.BYTES;
+    nameOffsets = section(channel, at, (long) (k + 1) * Integer.BYTES).asIntBuffer();
+    at += (long) (k + 1) * Integer.BYTES;
+    nameBytes = section(channel, at, textBytes);
+    at += textBytes;
+    names = new String[k];
+
+    int fastest = 0;
+    double longest = 0;
+    for (int e = 0; e < m; e++) {
+      fastest = Math.max(fastest, speedLimits.get(e));
+      longest = Math.max(longest, miles.get(e));
+    }
+    maxSpeedLimit = fastest;
+    maxMiles = longest;
+
+    boolean ascending = true;
+    for (int i = 1; i < n && ascending; i++) {
+      ascending = ids.get(i - 1) < ids.get(i);
+    }
+    sortedIndex = ascending ? null : sortIndex();
+    mappedBytes = at + (ascending ? 0 : (long) n * Integer.BYTES);
+  }
+
+
+  // Maps one read-only little-endian section of the file
+  private static ByteBuffer section(FileChannel channel, long position, long bytes) throws IOException {
+    if (bytes > Integer.MAX_VALUE) throw new IOException("A graph section of " + bytes + " bytes is too large to map.");
+    return channel.map(FileChannel.MapMode.READ_ONLY, position, bytes).order(ByteOrder.LITTLE_ENDIAN);
+  }
+
+
+  // The dense indices sorted by id (heapsort), in a temporary mapped file
+  private IntBuffer sortIndex() throws IOException {
+    Path file = Files.createTempFile("locations-", ".idx");
+    file.toFile().deleteOnExit();
+    IntBuffer index;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+      index = channel.map(FileChannel.MapMode.READ_WRITE, 0, (long) numLocations * Integer.BYTES)
+                     .order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+    int n = numLocations;
+    for (int i = 0; i < n; i++) index.put(i, i);
+    for (int i = n / 2 - 1; i >= 0; i--) siftDown(index, i, n);
+    for (int last = n - 1; last > 0; last--) {
+      int top = index.get(0);
+      index.put(0, index.get(last));
+      index.put(last, top);
+      siftDown(index, 0, last);
+    }
+    for (int i = 1; i < n; i++) {
+      if (ids.get(index.get(i - 1)) == ids.get(index.get(i)))
+        throw new IllegalArgumentException("Location " + ids.get(index.get(i)) + " appears twice.");
+    }
+    return index;
+  }
+
+
+  private void siftDown(IntBuffer index, int i, int size) {
+    int item = index.get(i);
+    long key = ids.get(item);
+    while (2 * i + 1 < size) {
+      int child = 2 * i + 1;
+      if (child + 1 < size && ids.get(index.get(child + 1)) > ids.get(index.get(child))) child++;
+      if (ids.get(index.get(child)) <= key) break;
+      index.put(i, index.get(child));
+      i = child;
+    }
+    index.put(i, item);
+  }
+
+
+  public int numLocations() { return numLocations; }
+
+  public int numRoads() { return numRoads; }
+
+  public int numNames() { return numNames; }
+
+  public int maxSpeedLimit() { return maxSpeedLimit; }
+
+  public double maxMiles() { return maxMiles; }
+
+  public long mappedBytes() { return mappedBytes; }
+
+  public long fingerprint() { return fingerprint; }
+
+
+  /**
+   * The dense index of a location id, a binary search over the mapped ids.
+   *
+   * @param id The original location id
+   * @return int The dense index of that location
+   */
+  public int indexOf(long id) {
+    int low = 0, high = numLocations - 1;
+    while (low <= high) {
+      int mid = (low + high) >>> 1;
+      int location = sortedIndex == null ? mid : sortedIndex.get(mid);
+      long at = ids.get(location);
+      if (at < id) {
+        low = mid + 1;
+      } else if (at > id) {
+        high = mid - 1;
+      } else {
+        return location;
+      }
+    }
+    throw new IllegalArgumentException("Location " + id + " doesn't exist in graph.");
+  }
+
+  public long id(int location) { return ids.get(location); }
+
+  public double latitude(int location) { return latitudes.get(location); }
+
+  public double longitude(int location) { return longitudes.get(location); }
+
+  public int firstRoad(int location) { return offsets.get(location); }
+
+  public int endRoad(int location) { return offsets.get(location + 1); }
+
+  public int target(int road) { return targets.get(road); }
+
+  public int speedLimit(int road) { return speedLimits.get(road); }
+
+  public int nameId(int road) { return nameIds.get(road); }
+
+  public double miles(int road) { return miles.get(road); }
+
+  // Same arithmetic as CompactRoadNetwork so both see identical costs
+  public double travelTime(int road) { return miles.get(road) / speedLimits.get(road) * 60 * 60; }
+
+  public double speedingTime(int road) { return miles.get(road) / (speedLimits.get(road) * 2) * 60 * 60; }
+
+  public String roadName(int road) { return name(nameIds.get(road)); }
+
+
+  /**
+   * A road name, decoded from the name table the first time it is asked for.
+   *
+   * @param nameId The index into the name table
+   * @return String The name
+   */
+  public String name(int nameId) {
+    String name = names[nameId];
+    if (name == null) {
+      int from = nameOffsets.get(nameId);
+      byte[] bytes = new byte[nameOffsets.get(nameId + 1) - from];
+      nameBytes.get(from, bytes);
+      name = new String(bytes, StandardCharsets.UTF_8);
+      names[nameId] = name; // a race only decodes the same name twice
+    }
+    return name;
+  }
+
+
+  /**
+   * Makes the Location record of a dense index.
+   *
+   * @param location The dense index
+   * @return Location The record with the original id
+   */
+  public Location toLocation(int location) {
+    return new Location(ids.get(location), latitudes.get(location), longitudes.get(location));
+  }
+
+
+  /**
+   * Makes the Road record of a dense road index.
+   *
+   * @param from The dense index of the location the road leaves from
+   * @param road The dense road index
+   * @return Road The record with original location ids
+   */
+  public Road toRoad(int from, int road) {
+    return new Road(ids.get(from), ids.get(targets.get(road)), speedLimits.get(road), roadName(road));
+  }
+
+
+  @Override
+  public Location getLocation(long id) {
+    return toLocation(indexOf(id));
+  }
+
+  @Override
+  public List<Road> getAdjacentRoads(Location loc) {
+    return getAdjacentRoads(loc.id());
+  }
+
+  @Override
+  public List<Road> getAdjacentRoads(long id) {
+    return new Adjacent(indexOf(id));
+  }
+
+  @Override
+  public int getMaxSpeedLimit() {
+    return maxSpeedLimit;
+  }
+
+  @Override
+  public double getMaxRoadMiles() {
+    return maxMiles;
+  }
+
+
+  /**
+   * Every location, made as it is iterated over.
+   */
+  @Override
+  public Collection<Location> getLocations() {
+    return new AbstractCollection<>() {
+      @Override
+      public Iterator<Location> iterator() {
+        return new Iterator<>() {
+          int next;
+
+          @Override
+          public boolean hasNext() { return next < numLocations; }
+
+          @Override
+          public Location next() {
+            if (next >= numLocations) throw new NoSuchElementException();
+            return toLocation(next++);
+          }
+        };
+      }
+
+      @Override
+      public int size() { return numLocations; }
+    };
+  }
+
+
+  /**
+   * Copies the network onto the heap.
+   */
+  @Override
+  public CompactRoadNetwork compact() {
+    long[] idArray = new long[numLocations];
+    double[] lat = new double[numLocations];
+    double[] lon = new double[numLocations];
+    int[] offsetArray = new int[numLocations + 1];
+    int[] targetArray = new int[numRoads];
+    int[] speedArray = new int[numRoads];
+    int[] nameIdArray = new int[numRoads];
+    double[] mileArray = new double[numRoads];
+    String[] nameArray = new String[numNames];
+    ids.get(0, idArray);
+    latitudes.get(0, lat);
+    longitudes.get(0, lon);
+    offsets.get(0, offsetArray);
+    targets.get(0, targetArray);
+    speedLimits.get(0, speedArray);
+    nameIds.get(0, nameIdArray);
+    miles.get(0, mileArray);
+    for (int i = 0; i < numNames; i++) {
+      nameArray[i] = name(i);
+    }
+    return new CompactRoadNetwork(idArray, lat, lon, offsetArray, targetArray, speedArray, nameIdArray, nameArray,
+                                  mileArray);
+  }
+
+
+  /**
+   * The roads leaving one location, made as they are read.
+   */
+  private final class Adjacent extends AbstractList<Road> implements RandomAccess {
+    private final int from, first, size;
+
+    Adjacent(int from) {
+      this.from = from;
+      first = offsets.get(from);
+      size = offsets.get(from + 1) - first;
+    }
+
+    @Override
+    public Road get(int i) {
+      if (i < 0 || i >= size) throw new IndexOutOfBoundsException(i);
+      return toRoad(from, first + i);
+    }
+
+    @Override
+    public int size() { return size; }
+  }
+
+
+  /**
+   * Collects the stop-the-world collections of every collector from their notifications: how many, their
+   * total and their longest pause. Concurrent cycles don't stop the application and are left out.
+   */
+  private static final class GcLog {
+    private long count, totalMillis, maxMillis;
+
+    GcLog() {
+      for (GarbageCollectorMXBean bean : ManagementFactory.getGarbageCollectorMXBeans()) {
+        ((NotificationEmitter) bean).addNotificationListener((notification, handback) -> {
+          if (!notification.getType().equals(GarbageCollectionNotificationInfo.GARBAGE_COLLECTION_NOTIFICATION))
+            return;
+          GarbageCollectionNotificationInfo info =
+              GarbageCollectionNotificationInfo.from((CompositeData) notification.getUserData());
+          if (info.getGcName().contains("Concurrent") || info.getGcAction().contains("concurrent")) return;
+          long millis = info.getGcInfo().getDuration();
+          synchronized (this) {
+            count++;
+            totalMillis += millis;
+            maxMillis = Math.max(maxMillis, millis);
+          }
+        }, null, null);
+      }
+    }
+
+    synchronized void reset() {
+      count = totalMillis = maxMillis = 0;
+    }
+
+    void report(String phase, long nanos) {
+      try {
+        Thread.sleep(100); // notifications arrive on another thread
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      synchronized (this) {
+        System.out.printf("  %-8s %9.1f ms, %4d GC pauses, %7d ms paused, longest %5d ms\n", phase, nanos / 1e6,
+                          count, totalMillis, maxMillis);
+      }
+    }
+  }
+}
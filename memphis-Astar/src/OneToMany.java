@@ -0,0 +1,302 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The OneToMany class answers fleet queries from one depot with a single search tree: the travel time to
+ * many destinations at once (travelTimes), and every location reachable within a time bound (isochrone).
+ * It runs Dijkstra over the (location, speeds left) states of the compact SearchAStar from (depot, speeding),
+ * so the speeding budget is honoured the same way. States are settled in order of travel time, so the first
+ * state of a location to be settled gives its travel time. A state reached with no more speeds left and no
+ * less time than another state of the same location is dominated and never expanded. The search stops as
+ * soon as every destination is settled, or when the next state is past the time bound.
+ * All the per-state data lives in a SearchSpace, so one OneToMany answers any number of queries. After a
+ * query, route rebuilds the path to any location it settled.
+ *
+ * Comparing one tree with a SearchAStar per destination:
+ * java OneToMany [graph file] [destinations] [speeding] [isochrone seconds]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class OneToMany {
+  private final CompactRoadNetwork graph;
+  private SearchSpace space;
+  // Destinations of the current query: targetStamp[location] == stamp until the location is settled
+  private final int[] targetStamp;
+  private int stamp;
+  // Current query
+  private int states;
+  int settledStates; // states settled by the last query
+
+  /**
+   * The locations reachable within a time bound.
+   *
+   * @param ids The original location ids, in order of travel time
+   * @param seconds The travel time to each
+   */
+  public record Isochrone(long[] ids, double[] seconds) {
+    public int size() { return ids.length; }
+  }
+
+
+  public static void main(String[] args) throws IOException {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    int count = args.length > 1 ? Integer.parseInt(args[1]) : 200;
+    int speeding = args.length > 2 ? Integer.parseInt(args[2]) : 2;
+    double bound = args.length > 3 ? Double.parseDouble(args[3]) : 600;
+    CompactRoadNetwork graph = filename.endsWith(".bin") ? GraphFile.load(Path.of(filename))
+                               : Main.readCompactGraph(filename);
+    Random rand = new Random(372);
+    long depot = graph.id(rand.nextInt(graph.numLocations()));
+    long[] targets = new long[count];
+    for (int i = 0; i < count; i++) {
+      targets[i] = graph.id(rand.nextInt(graph.numLocations()));
+    }
+
+    OneToMany tree = new OneToMany(graph, new SearchSpace(graph.numLocations(), speeding));
+    SearchAStar search = new SearchAStar(graph, new SearchSpace(graph.numLocations(), speeding), false);
+    for (int round = 0; round < 3; round++) { // the first two rounds warm up
+      long time = System.nanoTime();
+      double[] times = tree.travelTimes(depot, targets, speeding);
+      long treeNanos = System.nanoTime() - time;
+
+      long visited = 0;
+      int mismatches = 0;
+      time = System.nanoTime();
+      for (int i = 0; i < count; i++) {
+        Node route = search.search(depot, targets[i], speeding);
+        visited += search.totalNodeVisited;
+        double expected = route == null ? Double.POSITIVE_INFINITY : route.g_cost();
+        if (expected != times[i] && Math.abs(expected - times[i]) > 1e-6) mismatches++;
+      }
+      long searchNanos = System.nanoTime() - time;
+      if (round == 2) {
+        System.out.printf("Depot %d, %d destinations, speeding %d\n", depot, count, speeding);
+        System.out.printf("  one tree          %10d states settled %10.1f ms\n", tree.settledStates, treeNanos / 1e6);
+        System.out.printf("  %4d A* searches   %10d states settled %10.1f ms  (%.1fx)\n", count, visited,
+                          searchNanos / 1e6, (double) searchNanos / treeNanos);
+        System.out.println(mismatches == 0 ? "  every travel time matches A*" : "  " + mismatches + " travel times differ from A*!");
+      }
+    }
+
+    long time = System.nanoTime();
+    Isochrone reachable = tree.isochrone(depot, speeding, bound);
+    System.out.printf("\nIsochrone of %.0f s: %d locations, %d states settled in %.1f ms\n", bound, reachable.size(),
+                      tree.settledStates, (System.nanoTime() - time) / 1e6);
+  }
+
+
+  /**
+   * Sets up one-to-many queries over a map-based network.
+   */
+  public OneToMany(RoadGraph graph, int maxSpeeding) {
+    this(graph.compact(), new SearchSpace(graph.getLocations().size(), maxSpeeding));
+  }
+
+
+  /**
+   * Sets up one-to-many queries that reuse the given SearchSpace.
+   *
+   * @param graph The network
+   * @param space Scratch memory sized for the graph, only used by this OneToMany
+   */
+  public OneToMany(CompactRoadNetwork graph, SearchSpace space) {
+    if (space.numLocations != graph.numLocations())
+      throw new IllegalArgumentException("Search space is sized for another graph.");
+    this.graph = graph;
+    this.space = space;
+    targetStamp = new int[graph.numLocations()];
+  }
+
+
+  /**
+   * The travel time from the depot to every destination.
+   *
+   * @param depot The original id of the starting location
+   * @param destinations The original ids of the destinations, repeats are fine
+   * @param speeding The number of times speeding is allowed
+   * @return double[] The travel time in seconds to each destination, infinity where it can't be reached
+   */
+  public double[] travelTimes(long depot, long[] destinations, int speeding) {
+    return travelTimes(depot, destinations, speeding, Double.POSITIVE_INFINITY);
+  }
+
+
+  /**
+   * The travel time from the depot to every destination that is at most maxSeconds away.
+   *
+   * @param maxSeconds The time bound
+   * @return double[] The travel time in seconds to each destination, infinity where it is further than the
+   *                  bound or can't be reached
+   */
+  public double[] travelTimes(long depot, long[] destinations, int speeding, double maxSeconds) {
+    int[] locations = new int[destinations.length];
+    nextStamp();
+    int remaining = 0;
+    for (int i = 0; i < destinations.length; i++) {
+      locations[i] = graph.indexOf(destinations[i]);
+      if (targetStamp[locations[i]] != stamp) {
+        targetStamp[locations[i]] = stamp;
+        remaining++;
+      }
+    }
+    run(graph.indexOf(depot), speeding, maxSeconds, remaining, null);
+
+    double[] times = new double[destinations.length];
+    for (int i = 0; i < destinations.length; i++) {
+      times[i] = time(locations[i]);
+    }
+    return times;
+  }
+
+
+  /**
+   * Every location the depot can reach within maxSeconds.
+   *
+   * @param depot The original id of the starting location
+   * @param speeding The number of times speeding is allowed
+   * @param maxSeconds The time bound
+   * @return Isochrone The reachable locations and their travel times, nearest first
+   */
+  public Isochrone isochrone(long depot, int speeding, double maxSeconds) {
+    nextStamp();
+    IsochroneBuilder reached = new IsochroneBuilder();
+    run(graph.indexOf(depot), speeding, maxSeconds, -1, reached);
+    return new Isochrone(Arrays.copyOf(reached.ids, reached.size), Arrays.copyOf(reached.seconds, reached.size));
+  }
+
+
+  /**
+   * The route to a location the last query settled.
+   *
+   * @param location The original id of the location
+   * @return Node The route as a Node chain from the depot, or null if the last query didn't settle it
+   */
+  public Node route(long location) {
+    int at = graph.indexOf(location);
+    int best = -1;
+    for (int s = at * states; s < (at + 1) * states; s++) {
+      if (space.isClosed(s) && (best < 0 || space.g[s] < space.g[best])) best = s;
+    }
+    if (best < 0) return null;
+    int length = 0;
+    for (int s = best; s >= 0; s = space.parentState[s]) length++;
+    int[] path = new int[length];
+    for (int s = best, i = length - 1; s >= 0; s = space.parentState[s], i--) path[i] = s;
+    Node node = null;
+    for (int s : path) {
+      Road road = node == null ? null : graph.toRoad(space.parentState[s] / states, space.parentRoad[s]);
+      node = new Node(node, graph.toLocation(s / states), s % states, road, space.g[s], 0.0, space.g[s]);
+    }
+    return node;
+  }
+
+
+  // The travel time of a location from the last query, infinity if none of its states was settled
+  private double time(int location) {
+    double best = Double.POSITIVE_INFINITY;
+    for (int s = location * states; s < (location + 1) * states; s++) {
+      if (space.isClosed(s)) best = Math.min(best, space.g[s]);
+    }
+    return best;
+  }
+
+
+  private void nextStamp() {
+    if (++stamp == Integer.MAX_VALUE) {
+      Arrays.fill(targetStamp, 0);
+      stamp = 1;
+    }
+  }
+
+
+  /**
+   * Dijkstra from (start, speeding) until the frontier is past maxSeconds or, when remaining >= 0, until
+   * that many destinations (the locations stamped with the current stamp) are settled.
+   */
+  private void run(int start, int speeding, double maxSeconds, int remaining, IsochroneBuilder reached) {
+    if (speeding < 0) throw new IllegalArgumentException("Speeding can't be negative.");
+    if (!space.fits(graph, speeding)) {
+      space = new SearchSpace(graph.numLocations(), speeding);
+    }
+    space.reset();
+    IndexedMinHeap open = space.frontier;
+    double[] g = space.g;
+    states = speeding + 1;
+    settledStates = 0;
+
+    int startState = start * states + speeding;
+    space.reach(startState, 0.0, -1, -1);
+    open.add(startState, 0.0);
+    while (!open.isEmpty() && remaining != 0) {
+      if (open.peekPriority() > maxSeconds) break;
+      int state = open.remove();
+      int from = state / states;
+      int spd = state - from * states;
+      double parentG = g[state];
+      if (isDominated(from, spd, parentG)) continue; // left open, nothing can reach it faster anymore
+      space.close(state);
+      settledStates++;
+      if (targetStamp[from] == stamp) {
+        targetStamp[from] = 0;
+        remaining--;
+      }
+      if (reached != null && isFirstSettled(from, spd)) {
+        reached.add(graph.id(from), parentG);
+      }
+      for (int i = 0; i < (spd > 0 ? 2 : 1); i++) {
+        for (int road = graph.firstRoad(from), last = graph.endRoad(from); road < last; road++) {
+          int to = graph.target(road);
+          int childState = to * states + spd - i;
+          double childG = parentG + (i == 0 ? graph.travelTime(road) : graph.speedingTime(road));
+          if (childG < g[childState] && !space.isClosed(childState) && !isDominated(to, spd - i, childG)) {
+            space.reach(childState, childG, state, road);
+            open.addOrDecrease(childState, childG);
+          }
+        }
+      }
+    }
+  }
+
+
+  // Whether some state of the location has more speeds left and no more time (as in SearchAStar)
+  private boolean isDominated(int location, int speedsLeft, double gCost) {
+    double[] g = space.g;
+    int base = location * states;
+    for (int s = speedsLeft + 1; s < states; s++) {
+      if (g[base + s] <= gCost) return true;
+    }
+    return false;
+  }
+
+
+  // Whether no other state of the location was settled before this one
+  private boolean isFirstSettled(int location, int speedsLeft) {
+    int base = location * states;
+    for (int s = 0; s < states; s++) {
+      if (s != speedsLeft && space.isClosed(base + s)) return false;
+    }
+    return true;
+  }
+
+
+  /**
+   * The growing result of an isochrone query.
+   */
+  private static final class IsochroneBuilder {
+    long[] ids = new long[256];
+    double[] seconds = new double[256];
+    int size;
+
+    void add(long id, double time) {
+      if (size == ids.length) {
+        ids = Arrays.copyOf(ids, size * 2);
+        seconds = Arrays.copyOf(seconds, size * 2);
+      }
+      ids[size] = id;
+      seconds[size++] = time;
+    }
+  }
+}
@@ -0,0 +1,515 @@
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.stream.IntStream;
+
+/**
+ * The ParallelGraphLoader class reads the pipe-delimited text graph straight into a CompactRoadNetwork on
+ * all cores, for road files too big for Main.parseGraph (one thread, a Scanner, a regex split and a few
+ * objects per line). The file is cut into line-aligned chunks, each chunk is memory-mapped and parsed on its
+ * own thread by a hand-written parser that reads the numbers digit by digit out of the mapped bytes, and
+ * the records go into growable primitive arrays per chunk. A road name becomes a String only the first time
+ * a chunk sees it. The graph is then built in two passes, so a road line may come before the locations it
+ * joins: first the locations of every chunk are numbered by ascending id, then the roads of every chunk
+ * are resolved to those numbers in parallel and laid out in CSR order. The result is the same network as
+ * Main.parseGraph(...).compact() (the same locations, roads in the same order, the same lengths), only the
+ * numbering of the road names may differ.
+ *
+ * Its main compares both loaders on a file: java ParallelGraphLoader <text graph> [runs]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class ParallelGraphLoader {
+  static final long MAX_CHUNK_BYTES = 64L << 20; // a chunk is mapped on its own, so it must stay far under 2 GB
+  static final int CHUNKS_PER_THREAD = 4;        // more chunks than threads so an uneven chunk doesn't stall the rest
+  private static final double[] POWERS_OF_TEN = new double[23]; // every one exact as a double
+  static {
+    POWERS_OF_TEN[0] = 1;
+    for (int i = 1; i < POWERS_OF_TEN.length; i++) {
+      POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: java ParallelGraphLoader <text graph> [runs]");
+      System.exit(1);
+    }
+    Path file = Path.of(args[0]);
+    int runs = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+    System.out.printf("%s: %.1f MB, %d threads\n", file, Files.size(file) / 1e6,
+                      ForkJoinPool.commonPool().getParallelism());
+
+    CompactRoadNetwork expected = null, loaded = null;
+    for (int loader = 0; loader < 2; loader++) {
+      double best = Double.MAX_VALUE, total = 0;
+      long peak = 0;
+      for (int run = 0; run < runs; run++) {
+        if (loader == 0) expected = null; // drop the last run's network before measuring
+        loaded = null;
+        System.gc();
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+          pool.resetPeakUsage();
+        }
+        long before = heapUsed();
+        long time = System.nanoTime();
+        if (loader == 0) {
+          try (InputStream in = Files.newInputStream(file)) {
+            expected = Main.parseGraph(in).compact();
+          }
+        } else {
+          loaded = load(file);
+        }
+        double millis = (System.nanoTime() - time) / 1e6;
+        best = Math.min(best, millis);
+        total += millis;
+        peak = Math.max(peak, peakHeapUsed() - before);
+      }
+      System.out.printf("%-34s best %9.1f ms  mean %9.1f ms  peak heap %8.1f MB\n",
+                        loader == 0 ? "Main.parseGraph + compact()" : "ParallelGraphLoader.load", best,
+                        total / runs, peak / 1e6);
+    }
+    String difference = difference(expected, loaded);
+    System.out.println(difference == null
+                       ? String.format("Same network: %d locations, %d roads", loaded.numLocations(), loaded.numRoads())
+                       : "Networks differ: " + difference);
+  }
+
+  private ParallelGraphLoader() {}
+
+
+  // Heap in use now, and the most the heap pools held since their peaks were reset
+  private static long heapUsed() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) used += pool.getUsage().getUsed();
+    }
+    return used;
+  }
+
+  private static long peakHeapUsed() {
+    long used = 0;
+    for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+      if (pool.getType() == MemoryType.HEAP) used += pool.getPeakUsage().getUsed();
+    }
+    return used;
+  }
+
+
+  /**
+   * The first way two networks differ, comparing road names by text.
+   *
+   * @return String A description of the difference, or null if they are the same
+   */
+  static String difference(CompactRoadNetwork a, CompactRoadNetwork b) {
+    if (a.numLocations() != b.numLocations()) return "locations " + a.numLocations() + " vs " + b.numLocations();
+    if (a.numRoads() != b.numRoads()) return "roads " + a.numRoads() + " vs " + b.numRoads();
+    for (int i = 0; i < a.numLocations(); i++) {
+      if (a.id(i) != b.id(i) || a.latitude(i) != b.latitude(i) || a.longitude(i) != b.longitude(i)
+          || a.firstRoad(i) != b.firstRoad(i)) {
+        return "location " + i + " (" + a.id(i) + ")";
+      }
+    }
+    for (int e = 0; e < a.numRoads(); e++) {
+      if (a.target(e) != b.target(e) || a.speedLimit(e) != b.speedLimit(e) || a.miles(e) != b.miles(e)
+          || !a.roadName(e).equals(b.roadName(e))) {
+        return "road " + e;
+      }
+    }
+    return null;
+  }
+
+
+  /**
+   * Loads a text graph with one chunk per MAX_CHUNK_BYTES, and at least CHUNKS_PER_THREAD per thread.
+   *
+   * @param file The text graph
+   * @return CompactRoadNetwork The network
+   * @throws IOException If the file can't be read
+   * @throws IllegalArgumentException If a line is malformed, an id repeats, or a road joins an unknown location
+   */
+  public static CompactRoadNetwork load(Path file) throws IOException {
+    long size = Files.size(file);
+    long chunks = Math.max((long) ForkJoinPool.commonPool().getParallelism() * CHUNKS_PER_THREAD,
+                           (size + MAX_CHUNK_BYTES - 1) / MAX_CHUNK_BYTES);
+    return load(file, (int) Math.max(1, Math.min(chunks, size / 4096 + 1)));
+  }
+
+
+  /**
+   * Loads a text graph cut into the given number of chunks.
+   *
+   * @param file The text graph
+   * @param chunkCount The number of chunks (each must stay under 2 GB)
+   * @return CompactRoadNetwork The network
+   * @throws IOException If the file can't be read
+   */
+  public static CompactRoadNetwork load(Path file, int chunkCount) throws IOException {
+    Chunk[] chunks;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+      long[] bounds = lineBounds(channel, chunkCount);
+      chunks = new Chunk[chunkCount];
+      for (int c = 0; c < chunkCount; c++) {
+        if (bounds[c + 1] - bounds[c] > Integer.MAX_VALUE)
+          throw new IOException(file + " has too few chunks for its size.");
+        chunks[c] = new Chunk(channel.map(FileChannel.MapMode.READ_ONLY, bounds[c], bounds[c + 1] - bounds[c]),
+                              bounds[c]);
+      }
+      IntStream.range(0, chunkCount).parallel().forEach(c -> chunks[c].parse());
+    }
+
+    // Pass 1: the locations, numbered by ascending id
+    int n = 0;
+    for (Chunk chunk : chunks) {
+      n += chunk.locations;
+    }
+    long[] ids = new long[n];
+    int at = 0;
+    for (Chunk chunk : chunks) {
+      System.arraycopy(chunk.ids, 0, ids, at, chunk.locations);
+      at += chunk.locations;
+    }
+    Arrays.parallelSort(ids);
+    for (int i = 1; i < n; i++) {
+      if (ids[i] == ids[i - 1]) throw new IllegalArgumentException("Location " + ids[i] + " is in the graph twice.");
+    }
+    double[] lat = new double[n];
+    double[] lon = new double[n];
+    IntStream.range(0, chunkCount).parallel().forEach(c -> chunks[c].placeLocations(ids, lat, lon));
+
+    // Pass 2: the roads, each line in both directions in the order of the file
+    IntStream.range(0, chunkCount).parallel().forEach(c -> chunks[c].resolveRoads(ids));
+    Map<String, Integer> nameTable = new HashMap<>();
+    List<String> names = new ArrayList<>();
+    int[] offsets = new int[n + 1];
+    for (Chunk chunk : chunks) {
+      chunk.globalNames = new int[chunk.names.size()];
+      for (int i = 0; i < chunk.globalNames.length; i++) {
+        String name = chunk.names.get(i);
+        Integer id = nameTable.get(name);
+        if (id == null) {
+          id = names.size();
+          nameTable.put(name, id);
+          names.add(name);
+        }
+        chunk.globalNames[i] = id;
+      }
+      for (int r = 0; r < chunk.roads; r++) {
+        offsets[chunk.from[r] + 1]++;
+        offsets[chunk.to[r] + 1]++;
+      }
+    }
+    for (int i = 0; i < n; i++) {
+      offsets[i + 1] += offsets[i];
+    }
+    int m = offsets[n];
+    int[] targets = new int[m];
+    int[] speeds = new int[m];
+    int[] nameIds = new int[m];
+    int[] next = Arrays.copyOf(offsets, n);
+    for (Chunk chunk : chunks) {
+      for (int r = 0; r < chunk.roads; r++) {
+        int a = chunk.from[r], b = chunk.to[r], name = chunk.globalNames[chunk.nameIds[r]];
+        int e = next[a]++;
+        targets[e] = b;
+        speeds[e] = chunk.speeds[r];
+        nameIds[e] = name;
+        e = next[b]++;
+        targets[e] = a;
+        speeds[e] = chunk.speeds[r];
+        nameIds[e] = name;
+      }
+    }
+
+    // The lengths take a few trigonometric calls per road, so they are measured here in parallel
+    double[] miles = new double[m];
+    IntStream.range(0, n).parallel().forEach(i -> {
+      for (int e = offsets[i]; e < offsets[i + 1]; e++) {
+        int to = targets[e];
+        miles[e] = Geometry.getDistanceInMiles(lat[i], lon[i], lat[to], lon[to]);
+      }
+    });
+    return new CompactRoadNetwork(ids, lat, lon, offsets, targets, speeds, nameIds, names.toArray(new String[0]),
+                                  miles);
+  }
+
+
+  /**
+   * Cuts the file into chunkCount pieces of about the same size, each ending just after a line break (or at
+   * the end of the file).
+   *
+   * @return long[] chunkCount+1 byte positions
+   */
+  private static long[] lineBounds(FileChannel channel, int chunkCount) throws IOException {
+    long size = channel.size();
+    long[] bounds = new long[chunkCount + 1];
+    ByteBuffer probe = ByteBuffer.allocate(4096);
+    for (int c = 1; c < chunkCount; c++) {
+      long pos = Math.max(bounds[c - 1], size / chunkCount * c);
+      search:
+      while (pos < size) {
+        probe.clear();
+        int read = channel.read(probe, pos);
+        if (read <= 0) break;
+        for (int i = 0; i < read; i++) {
+          if (probe.get(i) == '\n') {
+            pos += i + 1;
+            break search;
+          }
+        }
+        pos += read;
+      }
+      bounds[c] = Math.min(pos, size);
+    }
+    bounds[chunkCount] = size;
+    return bounds;
+  }
+
+
+  /**
+   * One line-aligned piece of the file and the records parsed out of it.
+   */
+  private static final class Chunk {
+    private final MappedByteBuffer buf;
+    private final long fileOffset;
+    private int pos;
+    // location lines
+    int locations;
+    long[] ids;
+    double[] lats, lons;
+    // road lines, with the ids replaced by dense indices in pass 2
+    int roads;
+    long[] fromIds, toIds;
+    int[] from, to, speeds, nameIds, globalNames;
+    // names seen in this chunk: open addressing over the byte ranges, slot holds the name id + 1
+    final List<String> names = new ArrayList<>();
+    int[] nameSlots = new int[64];
+    int[] nameStarts = new int[32], nameLengths = new int[32], nameHashes = new int[32];
+
+    Chunk(MappedByteBuffer buf, long fileOffset) {
+      this.buf = buf;
+      this.fileOffset = fileOffset;
+      int lines = Math.max(16, buf.limit() / 48); // a road line is around 50 bytes
+      ids = new long[lines / 8];
+      lats = new double[lines / 8];
+      lons = new double[lines / 8];
+      fromIds = new long[lines];
+      toIds = new long[lines];
+      speeds = new int[lines];
+      nameIds = new int[lines];
+    }
+
+    void parse() {
+      int limit = buf.limit();
+      while (pos < limit) {
+        int lineStart = pos;
+        try {
+          if (startsWith("location|")) {
+            pos += 9;
+            long id = parseLong();
+            skipBar();
+            double lat = parseDouble();
+            skipBar();
+            double lon = parseDouble();
+            addLocation(id, lat, lon);
+          } else if (startsWith("road|")) {
+            pos += 5;
+            long a = parseLong();
+            skipBar();
+            long b = parseLong();
+            skipBar();
+            long speed = parseLong();
+            skipBar();
+            int nameStart = pos;
+            while (pos < limit && buf.get(pos) != '|' && buf.get(pos) != '\n' && buf.get(pos) != '\r') pos++;
+            addRoad(a, b, (int) speed, nameId(nameStart, pos - nameStart));
+          }
+        } catch (IllegalArgumentException e) {
+          throw new IllegalArgumentException("Bad line at byte " + (fileOffset + lineStart) + ": " + e.getMessage());
+        }
+        while (pos < limit && buf.get(pos) != '\n') pos++; // the rest of the line is ignored, like parseGraph
+        pos++;
+      }
+    }
+
+    private boolean startsWith(String prefix) {
+      if (pos + prefix.length() > buf.limit()) return false;
+      for (int i = 0; i < prefix.length(); i++) {
+        if (buf.get(pos + i) != prefix.charAt(i)) return false;
+      }
+      return true;
+    }
+
+    private void skipBar() {
+      if (pos >= buf.limit() || buf.get(pos) != '|') throw new IllegalArgumentException("expected |");
+      pos++;
+    }
+
+    private long parseLong() {
+      boolean negative = pos < buf.limit() && buf.get(pos) == '-';
+      if (negative) pos++;
+      int start = pos;
+      long value = 0;
+      while (pos < buf.limit()) {
+        int digit = buf.get(pos) - '0';
+        if (digit < 0 || digit > 9) break;
+        if (value > (Long.MAX_VALUE - digit) / 10) throw new IllegalArgumentException("number too large");
+        value = value * 10 + digit;
+        pos++;
+      }
+      if (pos == start) throw new IllegalArgumentException("expected a number");
+      return negative ? -value : value;
+    }
+
+    /**
+     * A decimal number as "-ddd.ddd". With at most 15 significant digits and 22 decimals both the digits
+     * and the power of ten are exact doubles, so one division rounds the same way Double.parseDouble does.
+     * Anything else (exponents, more digits) goes through Double.parseDouble.
+     */
+    private double parseDouble() {
+      int start = pos;
+      int limit = buf.limit();
+      boolean negative = pos < limit && buf.get(pos) == '-';
+      if (negative || (pos < limit && buf.get(pos) == '+')) pos++;
+      long digits = 0;
+      int count = 0, decimals = 0;
+      boolean point = false;
+      for (; pos < limit; pos++) {
+        byte c = buf.get(pos);
+        if (c >= '0' && c <= '9') {
+          digits = digits * 10 + (c - '0');
+          if (digits != 0) count++;
+          if (point) decimals++;
+          if (count > 15) return slowDouble(start);
+        } else if (c == '.' && !point) {
+          point = true;
+        } else if (c == 'e' || c == 'E') {
+          return slowDouble(start);
+        } else {
+          break;
+        }
+      }
+      if (pos == start || decimals >= POWERS_OF_TEN.length) return slowDouble(start);
+      double value = digits / POWERS_OF_TEN[decimals];
+      return negative ? -value : value;
+    }
+
+    private double slowDouble(int start) {
+      pos = start;
+      while (pos < buf.limit() && buf.get(pos) != '|' && buf.get(pos) != '\n' && buf.get(pos) != '\r') pos++;
+      byte[] text = new byte[pos - start];
+      buf.get(start, text);
+      return Double.parseDouble(new String(text, StandardCharsets.US_ASCII).strip());
+    }
+
+    private void addLocation(long id, double lat, double lon) {
+      if (locations == ids.length) {
+        ids = Arrays.copyOf(ids, locations * 2);
+        lats = Arrays.copyOf(lats, locations * 2);
+        lons = Arrays.copyOf(lons, locations * 2);
+      }
+      ids[locations] = id;
+      lats[locations] = lat;
+      lons[locations] = lon;
+      locations++;
+    }
+
+    private void addRoad(long a, long b, int speed, int nameId) {
+      if (roads == fromIds.length) {
+        fromIds = Arrays.copyOf(fromIds, roads * 2);
+        toIds = Arrays.copyOf(toIds, roads * 2);
+        speeds = Arrays.copyOf(speeds, roads * 2);
+        nameIds = Arrays.copyOf(nameIds, roads * 2);
+      }
+      fromIds[roads] = a;
+      toIds[roads] = b;
+      speeds[roads] = speed;
+      nameIds[roads] = nameId;
+      roads++;
+    }
+
+    // The chunk's id of the name in the given bytes, decoding it only the first time
+    private int nameId(int start, int length) {
+      int hash = 0;
+      for (int i = 0; i < length; i++) {
+        hash = 31 * hash + buf.get(start + i);
+      }
+      int mask = nameSlots.length - 1;
+      for (int slot = hash & mask; ; slot = (slot + 1) & mask) {
+        int id = nameSlots[slot] - 1;
+        if (id < 0) {
+          id = names.size();
+          nameSlots[slot] = id + 1;
+          byte[] text = new byte[length];
+          buf.get(start, text);
+          names.add(new String(text, StandardCharsets.UTF_8));
+          if (id == nameStarts.length) {
+            nameStarts = Arrays.copyOf(nameStarts, id * 2);
+            nameLengths = Arrays.copyOf(nameLengths, id * 2);
+            nameHashes = Arrays.copyOf(nameHashes, id * 2);
+          }
+          nameStarts[id] = start;
+          nameLengths[id] = length;
+          nameHashes[id] = hash;
+          if (2 * names.size() > nameSlots.length) growNames();
+          return id;
+        }
+        if (nameHashes[id] == hash && sameBytes(nameStarts[id], start, length, nameLengths[id])) return id;
+      }
+    }
+
+    private boolean sameBytes(int a, int b, int length, int otherLength) {
+      if (length != otherLength) return false;
+      for (int i = 0; i < length; i++) {
+        if (buf.get(a + i) != buf.get(b + i)) return false;
+      }
+      return true;
+    }
+
+    private void growNames() {
+      nameSlots = new int[nameSlots.length * 2];
+      int mask = nameSlots.length - 1;
+      for (int id = 0; id < names.size(); id++) {
+        int slot = nameHashes[id] & mask;
+        while (nameSlots[slot] != 0) slot = (slot + 1) & mask;
+        nameSlots[slot] = id + 1;
+      }
+    }
+
+    void placeLocations(long[] sortedIds, double[] lat, double[] lon) {
+      for (int i = 0; i < locations; i++) {
+        int at = Arrays.binarySearch(sortedIds, ids[i]);
+        lat[at] = lats[i];
+        lon[at] = lons[i];
+      }
+    }
+
+    void resolveRoads(long[] sortedIds) {
+      from = new int[roads];
+      to = new int[roads];
+      for (int r = 0; r < roads; r++) {
+        from[r] = Arrays.binarySearch(sortedIds, fromIds[r]);
+        to[r] = Arrays.binarySearch(sortedIds, toIds[r]);
+        if (from[r] < 0 || to[r] < 0)
+          throw new IllegalArgumentException("Road " + fromIds[r] + "|" + toIds[r] + " joins a location that isn't in the graph.");
+      }
+      fromIds = toIds = null;
+    }
+  }
+}
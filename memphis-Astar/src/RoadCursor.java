@@ -0,0 +1,46 @@
+/**
+ * The RoadCursor interface walks the roads leaving one location at a time, the only way the compact A* of
+ * SearchAStar reads the adjacency of a DenseRoadGraph. A cursor is reused for any number of locations:
+ * start moves it to a location and every next then moves it to the following road, so a layout that has to
+ * decode its roads (CompressedRoadNetwork) decodes each one once and nothing is allocated.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public interface RoadCursor {
+
+  /**
+   * Moves to the roads of a location, next() then moves to the first one.
+   *
+   * @param location The dense index of the location
+   */
+  void start(int location);
+
+  /**
+   * Moves to the next road.
+   *
+   * @return boolean false when there are no more roads
+   */
+  boolean next();
+
+  /**
+   * The handle of the current road, which the search keeps as the parent road of a state and hands back to
+   * DenseRoadGraph.toRoad (the dense road index of a CompactRoadNetwork).
+   */
+  int road();
+
+  /**
+   * The dense index of the location the current road ends at.
+   */
+  int target();
+
+  /**
+   * Seconds to drive the current road at the speed limit.
+   */
+  double travelTime();
+
+  /**
+   * Seconds to drive the current road at twice the speed limit.
+   */
+  double speedingTime();
+}
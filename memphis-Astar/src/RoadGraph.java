@@ -0,0 +1,48 @@
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * The RoadGraph interface is the read-only view of a road network that the map-based search needs: looking
+ * up locations by id, the roads leaving a location and the bounds the heuristic uses. RoadNetwork, which
+ * the text loader builds road by road, and OffHeapRoadNetwork, which answers from a mapped binary graph
+ * file, both implement it, so SearchAStar runs on either without the read-only one having mutators.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public interface RoadGraph {
+
+  /**
+   * The location with an id.
+   *
+   * @throws IllegalArgumentException If the graph has no location with the id
+   */
+  Location getLocation(long id);
+
+  /**
+   * The roads leaving a location.
+   *
+   * @throws IllegalArgumentException If the location isn't in the graph
+   */
+  List<Road> getAdjacentRoads(Location loc);
+
+  default List<Road> getAdjacentRoads(long id) {
+    return getAdjacentRoads(getLocation(id));
+  }
+
+  int getMaxSpeedLimit();
+
+  /**
+   * The length of the longest road in miles.
+   */
+  double getMaxRoadMiles();
+
+  Collection<Location> getLocations();
+
+  /**
+   * A CSR copy of the graph for the dense index searches.
+   */
+  default CompactRoadNetwork compact() {
+    return CompactRoadNetwork.from(this);
+  }
+}
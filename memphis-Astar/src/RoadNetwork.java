@@ -1,11 +1,14 @@
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
-public class RoadNetwork {
+public class RoadNetwork implements RoadGraph {
     private Map<Long, Location> locations;
     private Map<Long, List<Road>> roads;
+    private int maxSpeedLimit;
+    private double maxRoadMiles = -1; // computed on first use, -1 when unknown
 
     public RoadNetwork() {
         locations = new HashMap<>();
@@ -19,21 +22,45 @@ public class RoadNetwork {
 
     public void addRoad(Road road) {
         roads.get(road.startId()).add(road);
+        maxSpeedLimit = Math.max(maxSpeedLimit, road.speedLimit());
+        maxRoadMiles = -1;
     }
 
+    @Override
     public Location getLocation(long id) {
         Location loc = locations.get(id);
         if (loc == null) throw new IllegalArgumentException("Location " + id + " doesn't exist in graph.");
         return loc;
     }
 
+    @Override
     public List<Road> getAdjacentRoads(Location loc) {
         List<Road> r = roads.get(loc.id());
         if (r == null) throw new IllegalArgumentException("Location " + loc + " doesn't exist in graph.");
         return r;
     }
 
-    public List<Road> getAdjacentRoads(long id) {
-        return getAdjacentRoads(getLocation(id));
+    @Override
+    public int getMaxSpeedLimit() {
+        return maxSpeedLimit;
+    }
+
+    @Override
+    public double getMaxRoadMiles() {
+        if (maxRoadMiles < 0) {
+            double longest = 0;
+            for (List<Road> adjacent : roads.values()) {
+                for (Road road : adjacent) {
+                    longest = Math.max(longest, Geometry.getDistanceInMiles(road, this));
+                }
+            }
+            maxRoadMiles = longest;
+        }
+        return maxRoadMiles;
+    }
+
+    @Override
+    public Collection<Location> getLocations() {
+        return locations.values();
     }
 }
@@ -0,0 +1,273 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The RouteCache class keeps the most recently used routes so hot (start, end, speeding) queries don't
+ * run the search again. A route is stored compactly as its total g-cost and its road codes (road * 2, plus 1
+ * when it was taken speeding, the same codes ContractionHierarchy unpacks to), and is only rebuilt as a
+ * Node chain when asked. A query whose end can't be reached is cached too, as the UNREACHABLE route
+ * (infinite g-cost, no roads), so repeating it doesn't search the whole graph again. The cache is bounded by the total number of roads it holds (every entry also
+ * counts one for its key), and once it is over that size the least recently used routes are evicted.
+ * All the operations lock the cache, a miss is computed outside of the lock, so two threads missing on the
+ * same query at once both search and the second put just replaces the first.
+ *
+ * A cache can be saved to a warm-start file and loaded on boot. The file is one route per line, least
+ * recently used first: "start,end,speeding,g-cost,code code ..." (g-cost "Infinity" and no codes when the
+ * end can't be reached), after a "# graph fingerprint" header line
+ * (CompactRoadNetwork.fingerprint in hex). The road codes are dense road indices, so a file saved on another
+ * graph or on the same graph renumbered is refused.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class RouteCache {
+  static final int CHECK_ROADS = 1000; // the size of the cache main checks
+
+  private final CompactRoadNetwork graph;
+  private final long maxSize;
+  private long size;
+  private final LinkedHashMap<Key, Route> routes = new LinkedHashMap<>(16, 0.75f, true); // access order
+  private long hits, misses, evictions;
+
+  /**
+   * The key of a cached route.
+   */
+  record Key(long start, long end, int speeding) {}
+
+  /**
+   * A cached route.
+   *
+   * @param gCost The travel time in seconds
+   * @param roadCodes The roads from start to end, road * 2 (+ 1 when speeding)
+   */
+  public record Route(double gCost, int[] roadCodes) {
+    public boolean reachable() { return gCost != Double.POSITIVE_INFINITY; }
+  }
+
+  /**
+   * The cached result of a query whose end can't be reached.
+   */
+  public static final Route UNREACHABLE = new Route(Double.POSITIVE_INFINITY, new int[0]);
+
+
+  /**
+   * Checks that the cache stays within its size with a mix of searched and unreachable routes, which all
+   * share UNREACHABLE.
+   *
+   * Usage: java RouteCache <binary graph> [queries]
+   */
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: java RouteCache <binary graph> [queries]");
+      System.exit(1);
+    }
+    CompactRoadNetwork graph = GraphFile.load(Path.of(args[0]));
+    int queries = args.length > 1 ? Integer.parseInt(args[1]) : 2000;
+    RouteCache cache = new RouteCache(graph, CHECK_ROADS);
+    SearchAStar search = new SearchAStar(graph, new SearchSpace(graph.numLocations(), 1), false);
+    Random rand = new Random(372);
+    long largest = 0;
+    for (int q = 0; q < queries; q++) {
+      long start = graph.id(rand.nextInt(graph.numLocations()));
+      long end = graph.id(rand.nextInt(graph.numLocations()));
+      if (q % 2 == 0) {
+        cache.route(start, end, rand.nextInt(2), search);
+      } else {
+        // After any put but of a route bigger than the whole cache, the cache is within its size
+        cache.put(start, end, 0, UNREACHABLE);
+        largest = Math.max(largest, cache.size());
+      }
+    }
+    System.out.println(cache);
+    if (largest > CHECK_ROADS) {
+      System.out.printf("The cache grew to %d roads, more than its %d.\n", largest, CHECK_ROADS);
+      System.exit(1);
+    }
+  }
+
+
+  /**
+   * Makes an empty cache.
+   *
+   * @param graph The network the routes are on
+   * @param maxSize The most roads (plus one per route) the cache holds
+   */
+  public RouteCache(CompactRoadNetwork graph, long maxSize) {
+    if (maxSize < 1) throw new IllegalArgumentException("A cache needs room for at least one route.");
+    this.graph = graph;
+    this.maxSize = maxSize;
+  }
+
+
+  /**
+   * The cached route of a query, which becomes the most recently used one.
+   *
+   * @return Route The route, or null on a miss
+   */
+  public synchronized Route get(long start, long end, int speeding) {
+    Route route = routes.get(new Key(start, end, speeding));
+    if (route == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return route;
+  }
+
+
+  /**
+   * Caches the route of a query, evicting the least recently used routes while the cache is too big.
+   */
+  public synchronized void put(long start, long end, int speeding, Route route) {
+    Key key = new Key(start, end, speeding);
+    Route old = routes.put(key, route);
+    if (old != null) size -= weight(old);
+    size += weight(route);
+    // Stops at the key just put, not at its route: every unreachable query shares UNREACHABLE
+    Iterator<Map.Entry<Key, Route>> eldest = routes.entrySet().iterator();
+    while (size > maxSize && eldest.hasNext()) {
+      Map.Entry<Key, Route> evicted = eldest.next();
+      if (evicted.getKey().equals(key)) break; // a single route bigger than the cache still stays until the next put
+      size -= weight(evicted.getValue());
+      eldest.remove();
+      evictions++;
+    }
+  }
+
+
+  private static long weight(Route route) { return route.roadCodes().length + 1; }
+
+
+  /**
+   * The route of a query, from the cache or else from the given search (which is then cached).
+   *
+   * @param search A compact search owned by the calling thread
+   * @return Node The goal node with links back to the start, or null if the end can't be reached
+   */
+  public Node route(long start, long end, int speeding, SearchAStar search) {
+    Route route = get(start, end, speeding);
+    if (route == null) {
+      int goal = search.searchStates(graph.indexOf(start), graph.indexOf(end), speeding);
+      route = goal < 0 ? UNREACHABLE : new Route(search.space.g[goal], search.roadCodes(goal));
+      put(start, end, speeding, route);
+    }
+    return route.reachable() ? toNode(start, speeding, route) : null;
+  }
+
+
+  /**
+   * Rebuilds a cached route as the Node chain Main prints (not for UNREACHABLE).
+   */
+  public Node toNode(long start, int speeding, Route route) {
+    int at = graph.indexOf(start);
+    Node node = new Node(graph.toLocation(at), speeding, 0.0, 0.0, 0.0);
+    int speedsLeft = speeding;
+    double g = 0;
+    for (int code : route.roadCodes()) {
+      int road = code >> 1;
+      boolean speedingOnRoad = (code & 1) == 1;
+      g += speedingOnRoad ? graph.speedingTime(road) : graph.travelTime(road);
+      if (speedingOnRoad) speedsLeft--;
+      node = new Node(node, graph.toLocation(graph.target(road)), speedsLeft, graph.toRoad(at, road), g, 0.0, g);
+      at = graph.target(road);
+    }
+    return node;
+  }
+
+
+  public synchronized int routes() { return routes.size(); }
+
+  public synchronized long size() { return size; }
+
+  public synchronized long hits() { return hits; }
+
+  public synchronized long misses() { return misses; }
+
+  public synchronized long evictions() { return evictions; }
+
+  @Override
+  public synchronized String toString() {
+    return String.format("cache: %d routes, %d of %d roads, %d hits, %d misses (%.1f%% hit rate), %d evictions",
+                         routes.size(), size, maxSize, hits, misses, 100.0 * hits / Math.max(1, hits + misses),
+                         evictions);
+  }
+
+
+  /**
+   * Writes every cached route to a warm-start file, least recently used first so loading it back keeps the
+   * same order.
+   *
+   * @param file The path to write
+   * @throws IOException If the file can't be written
+   */
+  public void save(Path file) throws IOException {
+    List<Map.Entry<Key, Route>> entries;
+    synchronized (this) {
+      entries = new ArrayList<>(routes.entrySet());
+    }
+    try (BufferedWriter out = Files.newBufferedWriter(file)) {
+      out.write(header());
+      out.newLine();
+      StringBuilder line = new StringBuilder();
+      for (Map.Entry<Key, Route> entry : entries) {
+        Key key = entry.getKey();
+        line.setLength(0);
+        line.append(key.start()).append(',').append(key.end()).append(',').append(key.speeding()).append(',')
+            .append(entry.getValue().gCost()).append(',');
+        for (int code : entry.getValue().roadCodes()) {
+          line.append(code).append(' ');
+        }
+        out.write(line.toString().strip());
+        out.newLine();
+      }
+    }
+  }
+
+
+  private String header() {
+    return "# graph " + Long.toHexString(graph.fingerprint());
+  }
+
+
+  /**
+   * Preloads the routes of a warm-start file. Loading doesn't count as hits or misses.
+   *
+   * @param file The file written by save
+   * @throws IOException If the file can't be read or was written for another graph
+   */
+  public void load(Path file) throws IOException {
+    try (BufferedReader in = Files.newBufferedReader(file)) {
+      String header = in.readLine();
+      if (header == null || !header.equals(header()))
+        throw new IOException(file + " was saved for another graph or numbering.");
+      String line;
+      while ((line = in.readLine()) != null) {
+        if (line.isBlank()) continue;
+        String[] pieces = line.split(",", 5);
+        try {
+          String codes = pieces[4].strip();
+          int[] roadCodes = codes.isEmpty() ? new int[0]
+                            : Arrays.stream(codes.split(" ")).mapToInt(Integer::parseInt).toArray();
+          for (int code : roadCodes) {
+            if (code < 0 || code >> 1 >= graph.numRoads()) throw new IOException("Bad road in " + file + ": " + line);
+          }
+          double gCost = Double.parseDouble(pieces[3]);
+          put(Long.parseLong(pieces[0]), Long.parseLong(pieces[1]), Integer.parseInt(pieces[2]),
+              gCost == Double.POSITIVE_INFINITY ? UNREACHABLE : new Route(gCost, roadCodes));
+        } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+          throw new IOException("Bad line in " + file + ": " + line);
+        }
+      }
+    }
+  }
+}
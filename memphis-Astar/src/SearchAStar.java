@@ -7,36 +7,125 @@ import java.util.Map;
  * constructor will set up a search tree with one element (the starting node). When startSearch is
  * run, it will build the search tree. It has a accessible node which represent the best optimal
  * goal state the algorithm found. The heuristic will be the time to traverse the Euclidean distance
- * at the twice the speed of the highest speed limit from starting to ending points. It implements a
- * priority queue.
+ * from starting to ending points at the highest speed limit in the graph, where only the part that the
+ * speeds left could cover (each road is at most as long as the longest road) is taken at twice that speed.
+ * A state is a location and the speeds left there, and the frontier is an IndexedMinHeap over dense ids
+ * given to the states in the order they are reached, so a better node for a state still on the frontier
+ * lowers its priority instead of being pushed again.
+ * The search can also run on a DenseRoadGraph (a CompactRoadNetwork, or the CompressedRoadNetwork), in
+ * which case locations are dense indices, the roads of a location are read through a RoadCursor and the
+ * Location/Road records are only rebuilt for the returned route. Landmarks, arc flags, travel time
+ * profiles and chord distances are tied to dense road indices, so they need a CompactRoadNetwork. In that
+ * mode a state is a (location, speeds left) pair with the dense id location * (speeding + 1) + speedsLeft,
+ * and the frontier is an IndexedMinHeap over those ids, so a better path to a state on the frontier
+ * lowers its priority instead of pushing a duplicate. All the per-state data (g-cost, parent state, parent
+ * road, closed bit) lives in a SearchSpace, so a SearchAStar built on one can answer any number of queries
+ * with search() without allocating until the route is rebuilt as a Node chain at the end.
+ * With dominance pruning on, the compact search is label-setting over (g, speeds left) per location: a
+ * label is dropped when the same location was already reached with at least as many speeds left and no
+ * more time, since anything it could still do, the other label can do as fast.
+ * With TravelTimeProfiles set, the compact search leaves at a departure time and costs every road at the
+ * time of day it is entered.
+ * Both modes fill in a SearchMetrics set with setMetrics (expansions, pushes, heap operations, phase times
+ * and so on), the structured counterpart of the troubleshot trace.
  *
  * @author Diego Lopez
  * @version 1.0 09-19-2023
  */
 public class SearchAStar {
   // Search elements
-  PriQueue<Node, Double> frontier = new PriQueue<Node, Double>(true);
-  Map<Location, Node> reached= new HashMap<>();
-  RoadNetwork graph;
-  Location end;
+  IndexedMinHeap open;             // map mode frontier over the ids in reachedIds
+  PriQueue<Node, Double> frontier; // the old map mode frontier, only set to benchmark against it
+  Map<State, Integer> reachedIds;  // map mode: dense id of every state reached, in reaching order
+  List<Node> reached;              // map mode: best node of each reached id
+  RoadGraph graph;
+  Location start, end;
   Node currentN;
+  // Compact mode, dense is null when searching a RoadGraph, compact only set for a CompactRoadNetwork
+  DenseRoadGraph dense;
+  RoadCursor roads;
+  CompactRoadNetwork compact;
+  SearchSpace space;
+  int states;   // states per location (speeding + 1)
+  int startIndex, startSpeeding, endIndex;
+  boolean dominance;
+  // Heuristic bounds taken from the graph
+  int maxSpeed;
+  double maxRoadMiles;
+  boolean legacyHeuristic;
+  boolean fastGeometry; // compact mode: straight-line miles from the precomputed chords
+  Landmarks landmarks; // ALT bounds for the compact mode, null when not used
+  ArcFlags arcFlags;   // road flags for the compact mode, null when not used
+  TravelTimeProfiles profiles; // time-dependent road times for the compact mode, null for static times
+  double departure;    // seconds after midnight the compact search leaves at, only used with profiles
+  ArcFlags queryFlags; // the arc flags the current query prunes with, null when it takes every road
+  int endCell;         // the arc flag cell of the end of the current query
   // Tracking process
   Boolean trb;
   int totalNodeVisited;
+  int peakFrontier;
+  int prunedLabels;
+  SearchMetrics metrics; // per-query counters, null when not collected
+
+  // A map mode state, the location and the speeds left there
+  record State(Location s, int speedsLeft) {}
 
   // Constructor
-  public SearchAStar(RoadNetwork graph, Location start, Location end, int speeding, Boolean troubleshot) {
+  public SearchAStar(RoadGraph graph, Location start, Location end, int speeding, Boolean troubleshot) {
+    this(graph, start, end, speeding, troubleshot, false);
+  }
+
+  // Constructor that can keep the old PriQueue frontier (duplicate pushes, no decrease-key), for FrontierBenchmark
+  SearchAStar(RoadGraph graph, Location start, Location end, int speeding, Boolean troubleshot, boolean priQueue) {
     this.graph = graph;
+    this.start = start;
     this.end = end;
+    this.startSpeeding = speeding;
     this.trb = troubleshot;
+    if (priQueue) {
+      frontier = new PriQueue<Node, Double>(true);
+    } else {
+      open = new IndexedMinHeap(graph.getLocations().size() * (speeding + 1));
+    }
+    reachedIds = new HashMap<>();
+    reached = new ArrayList<>();
+    maxSpeed = graph.getMaxSpeedLimit();
+    maxRoadMiles = graph.getMaxRoadMiles();
     // Start of Search Tree
-    double hCost = heuristic(start);
+    double hCost = heuristic(start, speeding);
     currentN = new Node(start, speeding, 0.0, hCost, hCost);
-    frontier.add(currentN, currentN.f_cost());
-    reached.put(start, currentN);
+    reachedIds.put(new State(start, speeding), 0);
+    reached.add(currentN);
+    if (priQueue) {
+      frontier.add(currentN, currentN.f_cost());
+    } else {
+      open.add(0, currentN.f_cost());
+    }
     totalNodeVisited = 0;
   }
 
+  // Constructor for the compact mode, start and end are the original location ids
+  public SearchAStar(CompactRoadNetwork graph, long start, long end, int speeding, Boolean troubleshot) {
+    this(graph, new SearchSpace(graph.numLocations(), speeding), troubleshot);
+    this.startIndex = graph.indexOf(start);
+    this.startSpeeding = speeding;
+    this.endIndex = graph.indexOf(end);
+    this.end = graph.toLocation(endIndex);
+  }
+
+  // Constructor for a reusable compact search, every query is run with search()
+  public SearchAStar(DenseRoadGraph graph, SearchSpace space, Boolean troubleshot) {
+    if (space.numLocations != graph.numLocations())
+      throw new IllegalArgumentException("Search space is sized for another graph.");
+    this.dense = graph;
+    this.roads = graph.cursor();
+    this.compact = graph instanceof CompactRoadNetwork c ? c : null;
+    this.space = space;
+    this.trb = troubleshot;
+    maxSpeed = graph.maxSpeedLimit();
+    maxRoadMiles = graph.maxMiles();
+  }
+
 
   /**
    * This will run an actual A* search on the data.
@@ -44,25 +133,501 @@ public class SearchAStar {
    * @return Node The goal state node that has links back to the node that was traverse in the search tree.
    */
   public Node startSearch() {
+    if (dense != null) {
+      int goal = searchStates(startIndex, endIndex, startSpeeding);
+      currentN = goal < 0 ? null : toNode(goal);
+      return currentN;
+    }
 
-    while (!frontier.isEmpty()) {
-      currentN = frontier.remove();
+    SearchMetrics m = metrics;
+    boolean timed = m != null && m.timed;
+    long begin = 0;
+    if (m != null) {
+      m.reset("map", start.id(), end.id(), startSpeeding);
+      begin = System.nanoTime();
+      m.heapOps++; // the start node the constructor added
+      m.pushes++;
+    }
+    while (frontier != null ? !frontier.isEmpty() : !open.isEmpty()) {
+      if (frontier != null) {
+        currentN = frontier.remove();
+        if (m != null && reached.get(reachedIds.get(new State(currentN.s(), currentN.speeding()))) != currentN) m.stalePops++;
+      } else {
+        currentN = reached.get(open.remove());
+      }
       totalNodeVisited++;
+      if (m != null) m.heapOps++;
       troubleshot("Visiting", currentN);
-      if (isGoal(currentN)) {return currentN;}
-      for (Node child: expand(currentN)) {
-        if (!reached.containsKey(child.s()) || (child.f_cost() < reached.get(child.s()).f_cost()) ) {
-          reached.put(child.s(), child);
-          frontier.add(child, child.f_cost());
+      if (isGoal(currentN)) {
+        if (m != null) finishMetrics(begin, currentN);
+        return currentN;
+      }
+      long expandBegin = timed ? System.nanoTime() : 0;
+      List<Node> children = expand(currentN);
+      if (timed) m.expandNanos += System.nanoTime() - expandBegin;
+      for (Node child: children) {
+        State state = new State(child.s(), child.speeding());
+        Integer id = reachedIds.get(state);
+        if (id == null || child.f_cost() < reached.get(id).f_cost()) {
+          if (id == null) {
+            id = reached.size();
+            reachedIds.put(state, id);
+            reached.add(child);
+          } else {
+            reached.set(id, child);
+          }
+          // A better node for a location still on the heap lowers its priority instead of being pushed again
+          boolean pushed = true;
+          if (frontier != null) {
+            frontier.add(child, child.f_cost());
+          } else {
+            pushed = open.addOrDecrease(id, child.f_cost());
+          }
+          peakFrontier = Math.max(peakFrontier, frontier != null ? frontier.size() : open.size());
+          if (m != null) {
+            if (pushed) {
+              m.pushes++;
+            } else {
+              m.decreaseKeys++;
+            }
+            m.heapOps++;
+          }
           troubleshot("Adding", child);
-        } else {troubleshot("Skipping", child);}
+        } else {
+          if (m != null) m.skippedChildren++;
+          troubleshot("Skipping", child);
+        }
       }
     }
 
+    if (m != null) finishMetrics(begin, null);
     return null;
   }
 
 
+  // Fills in the per-query totals and the route once a search ends
+  private void finishMetrics(long begin, Node goal) {
+    metrics.totalNanos = System.nanoTime() - begin;
+    metrics.expansions = totalNodeVisited;
+    metrics.peakFrontier = peakFrontier;
+    metrics.prunedLabels = prunedLabels;
+    if (goal != null) {
+      metrics.travelSeconds = goal.g_cost();
+      for (Node n = goal; n.previous() != null; n = n.previous()) {
+        metrics.pathRoads++;
+      }
+    }
+  }
+
+
+  // The compact counterpart of finishMetrics, the route is read from the SearchSpace
+  private void finishMetrics(long begin, int goal) {
+    metrics.totalNanos = System.nanoTime() - begin;
+    metrics.expansions = totalNodeVisited;
+    metrics.peakFrontier = peakFrontier;
+    metrics.prunedLabels = prunedLabels;
+    if (goal >= 0) {
+      metrics.travelSeconds = space.g[goal];
+      for (int s = goal; space.parentState[s] >= 0; s = space.parentState[s]) {
+        metrics.pathRoads++;
+      }
+    }
+  }
+
+
+  /**
+   * Collects SearchMetrics for every query this search runs from now on. The metrics are reset when a
+   * query starts and complete when it returns, so read them before the next query.
+   *
+   * @param metrics The metrics to fill in, or null to stop collecting (the default)
+   */
+  public void setMetrics(SearchMetrics metrics) {
+    this.metrics = metrics;
+  }
+
+
+  /**
+   * Goes back to the original heuristic that always assumes 130 mph (speeding on a 65 mph road), for
+   * comparing the number of nodes visited.
+   *
+   * @param on true to use the fixed 130 mph bound
+   */
+  public void setLegacyHeuristic(boolean on) {
+    legacyHeuristic = on;
+  }
+
+
+  /**
+   * Makes the compact mode measure the straight line to the end with CompactRoadNetwork.chordMiles, from
+   * points on the unit sphere computed when the network was built, instead of getDistanceInMiles with its
+   * six trigonometric calls. The chord is a little shorter than the arc, so the bound stays admissible and
+   * consistent.
+   *
+   * @param on true to use the chord
+   */
+  public void setFastGeometry(boolean on) {
+    if (on) requireCompact("Chord distances");
+    fastGeometry = on;
+  }
+
+
+  /**
+   * Makes the compact mode use the ALT heuristic: the larger of the landmark bound and the straight-line bound.
+   *
+   * @param landmarks Landmarks preprocessed on this graph, or null to go back to the straight-line bound
+   */
+  public void setLandmarks(Landmarks landmarks) {
+    if (landmarks != null && requireCompact("Landmarks").fingerprint() != landmarks.fingerprint())
+      throw new IllegalArgumentException("The landmarks were computed for another graph or numbering.");
+    this.landmarks = landmarks;
+  }
+
+
+  /**
+   * Makes the compact mode skip every road whose arc flag for the cell of the end is clear. Queries that
+   * speed more often than the flags were computed for are searched without them.
+   *
+   * @param arcFlags Arc flags computed on this graph, or null to take every road
+   */
+  public void setArcFlags(ArcFlags arcFlags) {
+    if (arcFlags != null && requireCompact("Arc flags").fingerprint() != arcFlags.fingerprint())
+      throw new IllegalArgumentException("The arc flags were computed for another graph or numbering.");
+    this.arcFlags = arcFlags;
+  }
+
+
+  /**
+   * Makes the compact mode time-dependent: every road costs its profiled travel time at the moment it is
+   * entered, the departure time plus the g-cost of the state it leaves from. The g-cost is then the time
+   * since departure, and with FIFO profiles that never go below the static times the search still finds the
+   * earliest arrival with the static heuristics. Arc flags are ignored, they only hold for static times.
+   *
+   * @param profiles Profiles for the roads of this graph, or null to go back to static travel times
+   */
+  public void setTravelTimeProfiles(TravelTimeProfiles profiles) {
+    if (profiles != null && !profiles.belongsTo(requireCompact("Travel time profiles")))
+      throw new IllegalArgumentException("The profiles were made for another graph.");
+    this.profiles = profiles;
+  }
+
+
+  /**
+   * Sets the departure time of the time-dependent compact search.
+   *
+   * @param seconds Seconds after midnight
+   */
+  public void setDeparture(double seconds) {
+    departure = seconds;
+  }
+
+
+  // The CompactRoadNetwork a feature tied to dense road indices needs
+  private CompactRoadNetwork requireCompact(String feature) {
+    if (compact == null) throw new IllegalArgumentException(feature + " need a CompactRoadNetwork search.");
+    return compact;
+  }
+
+
+  /**
+   * Turns Pareto dominance pruning over (g, speeds left) on or off for the compact mode.
+   *
+   * @param on true to prune dominated labels
+   */
+  public void setDominancePruning(boolean on) {
+    dominance = on;
+  }
+
+
+  /**
+   * Runs one query on the compact network, reusing this search's SearchSpace.
+   *
+   * @param start The original id of the starting location
+   * @param end The original id of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @return Node The goal state rebuilt as a Node chain, or null if the end can't be reached.
+   */
+  public Node search(long start, long end, int speeding) {
+    int goal = searchStates(dense.indexOf(start), dense.indexOf(end), speeding);
+    currentN = goal < 0 ? null : toNode(goal);
+    return currentN;
+  }
+
+
+  /**
+   * Runs one time-dependent query on the compact network (see setTravelTimeProfiles).
+   *
+   * @param start The original id of the starting location
+   * @param end The original id of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @param departure Seconds after midnight to leave at
+   * @return Node The goal state rebuilt as a Node chain (g-costs are seconds since departure), or null if the
+   *         end can't be reached.
+   */
+  public Node search(long start, long end, int speeding, double departure) {
+    this.departure = departure;
+    return search(start, end, speeding);
+  }
+
+
+  /**
+   * The same A* loop as startSearch but over the DenseRoadGraph. Children are generated by the RoadCursor
+   * (straight from the CSR arrays of a CompactRoadNetwork), road costs are the travel times it gives, each
+   * road is read once for both the speeding and the non-speeding child, and the g-cost, parent and
+   * closed bit of each (location, speeds left) state are kept in the SearchSpace arrays indexed by the state
+   * id, so there are no map lookups and nothing is allocated. A child that improves a state already on the
+   * frontier updates it in place with decreaseKey.
+   *
+   * @param start The dense index of the starting location
+   * @param end The dense index of the ending location
+   * @param speeding The number of times speeding is allowed
+   * @return int The goal state id (its path is in the SearchSpace), or -1 if the end can't be reached.
+   */
+  public int searchStates(int start, int end, int speeding) {
+    if (speeding < 0 || speeding > space.maxSpeeding)
+      throw new IllegalArgumentException("Search space only allows speeding up to " + space.maxSpeeding + " times.");
+    space.reset();
+    IndexedMinHeap open = space.frontier;
+    double[] g = space.g;
+    endIndex = end;
+    states = speeding + 1;
+    totalNodeVisited = 0;
+    peakFrontier = 1;
+    prunedLabels = 0;
+    SearchMetrics m = metrics;
+    boolean timed = m != null && m.timed;
+    queryFlags = arcFlags != null && profiles == null && speeding <= arcFlags.maxSpeeding() ? arcFlags : null;
+    endCell = queryFlags == null ? -1 : queryFlags.cell(end);
+    long begin = 0;
+    if (m != null) {
+      m.reset("compact", dense.id(start), dense.id(end), speeding);
+      begin = System.nanoTime();
+      m.heapOps++;
+      m.pushes++;
+    }
+
+    int startState = start * states + speeding;
+    space.reach(startState, 0.0, -1, -1);
+    open.add(startState, heuristic(start, speeding));
+
+    while (!open.isEmpty()) {
+      int state = open.remove();
+      if (m != null) m.heapOps++;
+      space.close(state);
+      int from = state / states;
+      int spd = state - from * states;
+      double parentG = g[state];
+      // A label that became dominated while it waited on the frontier isn't worth expanding
+      if (dominance && isDominated(from, spd, parentG)) {
+        prunedLabels++;
+        continue;
+      }
+      totalNodeVisited++;
+      if (trb) {troubleshot("Visiting", toNode(state));}
+      if (from == end) {
+        if (m != null) finishMetrics(begin, state);
+        return state;
+      }
+      long expandBegin = timed ? System.nanoTime() : 0;
+      expandState(state);
+      if (timed) m.expandNanos += System.nanoTime() - expandBegin;
+      peakFrontier = Math.max(peakFrontier, open.size());
+    }
+
+    if (m != null) finishMetrics(begin, -1);
+    return -1;
+  }
+
+
+  /**
+   * Expands a settled state of the compact search: every road out of its location is taken at the speed
+   * limit and, with speeds left, speeding. A child that improves its state is reached, pushed or lowered on
+   * the frontier with its g-cost plus heuristic, and handed to reached. searchStates and both directions of
+   * BidirectionalAStar expand through here.
+   *
+   * @param state The state that was just settled
+   */
+  void expandState(int state) {
+    IndexedMinHeap open = space.frontier;
+    double[] g = space.g;
+    SearchMetrics m = metrics;
+    boolean timed = m != null && m.timed;
+    TravelTimeProfiles tdp = profiles;
+    ArcFlags flags = queryFlags;
+    int from = state / states;
+    int spd = state - from * states;
+    double parentG = g[state];
+    int active = 1;
+    if (spd > 0) {
+      active = 2;
+    }
+    RoadCursor cursor = roads;
+    cursor.start(from);
+    while (cursor.next()) {
+      int road = cursor.road();
+      if (flags != null && !flags.allows(road, endCell)) continue;
+      int to = cursor.target();
+      for (int i = 0; i < active; i++) {
+        int childState = to * states + spd - i;
+        double roadTime = i == 0 ? cursor.travelTime() : cursor.speedingTime();
+        if (tdp != null) roadTime = tdp.travelTime(road, roadTime, departure + parentG);
+        double child_Gcost = parentG + roadTime;
+        if (dominance && child_Gcost < g[childState] && isDominated(to, spd - i, child_Gcost)) {
+          prunedLabels++;
+          if (trb) {troubleshot("Skipping", childNode(state, road, to, spd - i, child_Gcost));}
+        } else if (!space.isClosed(childState) && child_Gcost < g[childState]) {
+          space.reach(childState, child_Gcost, state, road);
+          double hCost;
+          if (timed) {
+            long heuristicBegin = System.nanoTime();
+            hCost = heuristic(to, spd - i);
+            m.heuristicNanos += System.nanoTime() - heuristicBegin;
+          } else {
+            hCost = heuristic(to, spd - i);
+          }
+          boolean added = open.addOrDecrease(childState, child_Gcost + hCost);
+          if (m != null) {
+            m.heapOps++;
+            if (added) {
+              m.pushes++;
+            } else {
+              m.decreaseKeys++;
+            }
+          }
+          reached(childState);
+          if (trb) {troubleshot("Adding", toNode(childState));}
+        } else {
+          if (m != null) m.skippedChildren++;
+          if (trb) {troubleshot("Skipping", childNode(state, road, to, spd - i, child_Gcost));}
+        }
+      }
+    }
+  }
+
+
+  /**
+   * Called for every state expandState reaches or improves, after it is on the frontier. Does nothing here,
+   * BidirectionalAStar meets the other direction in it.
+   *
+   * @param state The state whose g-cost just dropped
+   */
+  void reached(int state) {
+  }
+
+
+  /**
+   * Whether some label at the same location has more speeds left and a g-cost that is no higher.
+   *
+   * @param location The dense index of the location
+   * @param speedsLeft The speeds left of the label in question
+   * @param gCost The g-cost of the label in question
+   * @return boolean true if the label is dominated
+   */
+  private boolean isDominated(int location, int speedsLeft, double gCost) {
+    double[] g = space.g;
+    int base = location * states;
+    for (int s = speedsLeft + 1; s < states; s++) {
+      if (g[base + s] <= gCost) return true;
+    }
+    return false;
+  }
+
+
+  /**
+   * The heuristic of the compact mode, same bound as heuristic(Location, int).
+   *
+   * @param s The dense index of the location
+   * @param speedsLeft The number of times speeding is still allowed
+   * @return double The Time it took to each.
+   */
+  public double heuristic(int s, int speedsLeft) {
+    double miles = fastGeometry ? compact.chordMiles(s, endIndex)
+                   : Geometry.getDistanceInMiles(dense.latitude(s), dense.longitude(s),
+                                                 dense.latitude(endIndex), dense.longitude(endIndex));
+    double h = timeBound(miles, speedsLeft);
+    if (landmarks != null) {
+      h = Math.max(h, landmarks.bound(s, endIndex, speedsLeft));
+    }
+    return h;
+  }
+
+
+  /**
+   * The least time needed to cover the given straight-line distance. Nothing is faster than the highest
+   * speed limit, and speeding (at twice that) can cover at most speedsLeft roads, so at most
+   * speedsLeft * maxRoadMiles of the distance. With no speeds left this is the plain distance at the highest
+   * speed limit. Both the speeding and the non-speeding bound only shrink along a road by at most that road's
+   * time, so the heuristic stays consistent.
+   *
+   * @param miles The straight-line distance to the end
+   * @param speedsLeft The number of times speeding is still allowed
+   * @return double The lower bound in seconds
+   */
+  double timeBound(double miles, int speedsLeft) {
+    if (legacyHeuristic) {
+      return miles / 130 * 60 * 60; // highest speed is 65. If speeding 130.
+    }
+    double fast = Math.min(miles, speedsLeft * maxRoadMiles);
+    return (fast / (2 * maxSpeed) + (miles - fast) / maxSpeed) * 60 * 60;
+  }
+
+
+  /**
+   * Rebuilds the Node chain that Main prints by following the parent states in the SearchSpace.
+   *
+   * @param state The last state of the path
+   * @return Node The matching node with links back to the starting node
+   */
+  public Node toNode(int state) {
+    int length = 0;
+    for (int s = state; s >= 0; s = space.parentState[s]) {
+      length++;
+    }
+    int[] path = new int[length];
+    for (int s = state, i = length - 1; s >= 0; s = space.parentState[s], i--) {
+      path[i] = s;
+    }
+    Node node = null;
+    for (int s : path) {
+      int location = s / states;
+      Road road = null;
+      if (node != null) {
+        road = dense.toRoad(space.parentState[s] / states, space.parentRoad[s]);
+      }
+      double hCost = heuristic(location, s % states);
+      node = new Node(node, dense.toLocation(location), s % states, road, space.g[s], hCost, space.g[s] + hCost);
+    }
+    return node;
+  }
+
+
+  /**
+   * The roads of the path to a state, each as road * 2, plus 1 when it was taken speeding.
+   *
+   * @param state The last state of the path
+   * @return int[] The road codes from the start to the state
+   */
+  public int[] roadCodes(int state) {
+    int length = 0;
+    for (int s = state; space.parentState[s] >= 0; s = space.parentState[s]) {
+      length++;
+    }
+    int[] codes = new int[length];
+    for (int s = state, i = length - 1; i >= 0; s = space.parentState[s], i--) {
+      int parent = space.parentState[s];
+      codes[i] = space.parentRoad[s] * 2 + (parent % states != s % states ? 1 : 0);
+    }
+    return codes;
+  }
+
+
+  // Node for a child that isn't stored in the SearchSpace (only used for the "Skipping" debug output)
+  private Node childNode(int parentState, int road, int to, int speeding, double gCost) {
+    double hCost = heuristic(to, speeding);
+    return new Node(toNode(parentState), dense.toLocation(to), speeding,
+                    dense.toRoad(parentState / states, road), gCost, hCost, gCost + hCost);
+  }
+
+
   /**
    * This method will expand the node into it children and return all of them as a list of nodes.
    *
@@ -80,8 +645,18 @@ public class SearchAStar {
     for (int i = 0; i < active; i++) {
       for (Road path : actions(parent.s())) {
         Location child_s = result(path);
-        double child_Gcost = parent.g_cost() + actionCost(path, i);
-        double child_Hcost = heuristic(child_s);
+        double child_Gcost, child_Hcost;
+        if (metrics != null && metrics.timed) {
+          long begin = System.nanoTime();
+          child_Gcost = parent.g_cost() + actionCost(path, i);
+          long middle = System.nanoTime();
+          child_Hcost = heuristic(child_s, spd-i);
+          metrics.costNanos += middle - begin;
+          metrics.heuristicNanos += System.nanoTime() - middle;
+        } else {
+          child_Gcost = parent.g_cost() + actionCost(path, i);
+          child_Hcost = heuristic(child_s, spd-i);
+        }
         double child_Fcost = child_Gcost + child_Hcost;
         Node child = new Node(parent, child_s, spd-i, path, child_Gcost, child_Hcost, child_Fcost);
         children.add(child);
@@ -131,15 +706,15 @@ public class SearchAStar {
 
 
   /**
-   * The time it would take to traverse the Euclidean distance at the twice the speed of the highest speed limit
-   * from starting to ending points
+   * The time it would take to traverse the Euclidean distance from starting to ending points at the highest
+   * speed limit in the graph, speeding for as much of it as the speeds left allow (see timeBound).
    *
    * @param s The given location
+   * @param speedsLeft The number of times speeding is still allowed
    * @return double The Time it took to each.
    */
-  public double heuristic(Location s) {
-    double time = Geometry.predictTimeInSecFromLocations(s, end, graph, 130); // highest speed is 65. If speeding 130.
-    return time;
+  public double heuristic(Location s, int speedsLeft) {
+    return timeBound(Geometry.getDistanceInMiles(s, end), speedsLeft);
   }
 
 
@@ -190,4 +765,5 @@ public class SearchAStar {
       }
     }
   }
+
 }
@@ -0,0 +1,170 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The SearchMetrics class counts what one SearchAStar query did, as a structured alternative to the
+ * troubleshot trace. A search only fills it in when one is set with SearchAStar.setMetrics, otherwise the
+ * search loops skip it behind a null check, so it costs nothing when disabled. The counters are primitive
+ * and reset at the start of every query, so a worker keeps one and writes it out after each query:
+ *   expansions        states (or nodes) taken off the frontier and expanded
+ *   pushes            children added to the frontier
+ *   decrease_keys     children that lowered the priority of a state already on the frontier (both modes)
+ *   stale_pops        nodes popped after a better node for their state was added (only the PriQueue frontier
+ *                     FrontierBenchmark keeps for map mode, still expanded)
+ *   skipped_children  children not added because their location or state was already reached as cheaply
+ *   pruned_labels     labels dropped by dominance pruning
+ *   heap_ops          frontier adds, removes and decrease-keys
+ *   peak_frontier     largest frontier size
+ *   path_roads / travel_seconds  the route found (travel_seconds is null when the end can't be reached)
+ * Timing is off unless asked for in the constructor, since it calls System.nanoTime around every expansion
+ * and heuristic. total_ns is the whole query, expand_ns the time generating children (which includes the
+ * heuristic and cost time), heuristic_ns the heuristic calls, and cost_ns the road costs (map mode only, the
+ * compact mode reads them from an array).
+ *
+ * A query is written as one JSON object per line with toJson, and main aggregates such files:
+ * java SearchMetrics <metrics file> ...
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class SearchMetrics {
+  final boolean timed;
+  // The query
+  String mode;
+  long start, end;
+  int speeding;
+  // Counters
+  long expansions, pushes, decreaseKeys, stalePops, skippedChildren, prunedLabels, heapOps;
+  int peakFrontier;
+  // Timing in nanoseconds
+  long totalNanos, expandNanos, heuristicNanos, costNanos;
+  // The route
+  int pathRoads;
+  double travelSeconds;
+
+  /**
+   * Makes metrics that only count.
+   */
+  public SearchMetrics() {
+    this(false);
+  }
+
+  /**
+   * Makes metrics, timing the phases of the search too when asked.
+   *
+   * @param timed true to time the expansions, heuristic and costs
+   */
+  public SearchMetrics(boolean timed) {
+    this.timed = timed;
+  }
+
+  public static void main(String[] args) throws IOException {
+    if (args.length == 0) {
+      System.err.println("Usage: java SearchMetrics <metrics file> ...");
+      System.exit(1);
+    }
+    Pattern field = Pattern.compile("\"(\\w+)\":(-?[0-9.eE+-]+)");
+    Map<String, double[]> totals = new LinkedHashMap<>(); // sum, max
+    long queries = 0, found = 0;
+    for (String file : args) {
+      try (BufferedReader in = Files.newBufferedReader(Path.of(file))) {
+        String line;
+        while ((line = in.readLine()) != null) {
+          if (line.isBlank()) continue;
+          queries++;
+          if (!line.contains("\"travel_seconds\":null")) found++;
+          Matcher m = field.matcher(line);
+          while (m.find()) {
+            String name = m.group(1);
+            if (name.equals("start") || name.equals("end")) continue;
+            double value = Double.parseDouble(m.group(2));
+            double[] total = totals.computeIfAbsent(name, k -> new double[] { 0, Double.NEGATIVE_INFINITY });
+            total[0] += value;
+            total[1] = Math.max(total[1], value);
+          }
+        }
+      }
+    }
+    System.out.printf("%d queries, %d routes found\n", queries, found);
+    System.out.printf("%-18s %16s %14s %14s\n", "metric", "total", "mean", "max");
+    for (Map.Entry<String, double[]> entry : totals.entrySet()) {
+      double[] total = entry.getValue();
+      System.out.printf("%-18s %16.0f %14.2f %14.0f\n", entry.getKey(), total[0], total[0] / Math.max(1, queries),
+                        total[1]);
+    }
+  }
+
+
+  /**
+   * Clears every counter for a new query.
+   *
+   * @param mode "map" or "compact"
+   * @param start The original id of the starting location
+   * @param end The original id of the ending location
+   * @param speeding The number of times speeding is allowed
+   */
+  void reset(String mode, long start, long end, int speeding) {
+    this.mode = mode;
+    this.start = start;
+    this.end = end;
+    this.speeding = speeding;
+    expansions = pushes = decreaseKeys = stalePops = skippedChildren = prunedLabels = heapOps = 0;
+    peakFrontier = 0;
+    totalNanos = expandNanos = heuristicNanos = costNanos = 0;
+    pathRoads = 0;
+    travelSeconds = Double.NaN;
+  }
+
+
+  public long expansions() { return expansions; }
+
+  public long pushes() { return pushes; }
+
+  public long heapOps() { return heapOps; }
+
+  public int peakFrontier() { return peakFrontier; }
+
+  public int pathRoads() { return pathRoads; }
+
+  public double travelSeconds() { return travelSeconds; }
+
+
+  /**
+   * The metrics of the last query as one line of JSON.
+   *
+   * @return String The JSON object, without a line break
+   */
+  public String toJson() {
+    StringBuilder json = new StringBuilder(400);
+    json.append("{\"mode\":\"").append(mode).append('"')
+        .append(",\"start\":").append(start)
+        .append(",\"end\":").append(end)
+        .append(",\"speeding\":").append(speeding)
+        .append(",\"travel_seconds\":").append(Double.isNaN(travelSeconds) ? "null" : Double.toString(travelSeconds))
+        .append(",\"path_roads\":").append(pathRoads)
+        .append(",\"expansions\":").append(expansions)
+        .append(",\"pushes\":").append(pushes)
+        .append(",\"decrease_keys\":").append(decreaseKeys)
+        .append(",\"stale_pops\":").append(stalePops)
+        .append(",\"skipped_children\":").append(skippedChildren)
+        .append(",\"pruned_labels\":").append(prunedLabels)
+        .append(",\"heap_ops\":").append(heapOps)
+        .append(",\"peak_frontier\":").append(peakFrontier)
+        .append(",\"total_ns\":").append(totalNanos);
+    if (timed) {
+      json.append(",\"expand_ns\":").append(expandNanos)
+          .append(",\"heuristic_ns\":").append(heuristicNanos)
+          .append(",\"cost_ns\":").append(costNanos);
+    }
+    return json.append('}').toString();
+  }
+
+  @Override
+  public String toString() { return toJson(); }
+}
@@ -0,0 +1,105 @@
+import java.util.Arrays;
+
+/**
+ * The SearchSpace class is the scratch memory of the compact A* search. It holds, for every state id
+ * (location * (speeding + 1) + speedsLeft), the best g-cost found, the parent state and the road taken from
+ * it, and whether the state has been closed. The arrays are allocated once for a graph and a largest
+ * speeding budget, and reset() only clears the states the last query touched, so a SearchSpace can be
+ * reused by any number of queries without allocating.
+ * A SearchSpace must only be used by one search at a time.
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class SearchSpace {
+  final int numLocations;
+  final int maxSpeeding;
+  final double[] g;         // best g-cost, infinity if the state hasn't been reached
+  final int[] parentState;  // -1 for the starting state
+  final int[] parentRoad;   // road from the parent state, -1 for the starting state
+  final long[] closed;      // one bit per state
+  final IndexedMinHeap frontier;
+  // States whose g was set by the current query, so reset doesn't sweep the whole space
+  private final int[] touched;
+  private int touchedCount;
+
+
+  /**
+   * Allocates the scratch memory for queries with a speeding budget of at most maxSpeeding.
+   *
+   * @param numLocations The number of locations in the graph
+   * @param maxSpeeding The largest speeding budget a query will use
+   */
+  public SearchSpace(int numLocations, int maxSpeeding) {
+    this.numLocations = numLocations;
+    this.maxSpeeding = maxSpeeding;
+    int capacity = Math.multiplyExact(numLocations, maxSpeeding + 1);
+    g = new double[capacity];
+    parentState = new int[capacity];
+    parentRoad = new int[capacity];
+    closed = new long[(capacity + 63) >>> 6];
+    touched = new int[capacity];
+    frontier = new IndexedMinHeap(capacity);
+    Arrays.fill(g, Double.POSITIVE_INFINITY);
+  }
+
+
+  /**
+   * Whether a query on the given graph and speeding budget fits in this space.
+   */
+  public boolean fits(CompactRoadNetwork graph, int speeding) {
+    return graph.numLocations() == numLocations && speeding <= maxSpeeding;
+  }
+
+
+  /**
+   * Records a (better) path to a state.
+   *
+   * @param state The state id
+   * @param cost Its g-cost
+   * @param parent The parent state id
+   * @param road The road taken from the parent
+   */
+  void reach(int state, double cost, int parent, int road) {
+    if (g[state] == Double.POSITIVE_INFINITY) {
+      touched[touchedCount++] = state;
+    }
+    g[state] = cost;
+    parentState[state] = parent;
+    parentRoad[state] = road;
+  }
+
+  boolean isClosed(int state) { return (closed[state >>> 6] & (1L << state)) != 0; }
+
+  void close(int state) { closed[state >>> 6] |= 1L << state; }
+
+  /**
+   * The number of states the current query has reached.
+   */
+  public int reachedStates() { return touchedCount; }
+
+
+  /**
+   * Clears the closed bit of every reached state but keeps its g-cost and parent, so an anytime search
+   * can expand the states again with a smaller heuristic weight.
+   */
+  void reopenAll() {
+    for (int i = 0; i < touchedCount; i++) {
+      closed[touched[i] >>> 6] = 0;
+    }
+  }
+
+
+  /**
+   * Clears everything the last query wrote so the next one starts from an empty space.
+   */
+  public void reset() {
+    for (int i = 0; i < touchedCount; i++) {
+      int state = touched[i];
+      g[state] = Double.POSITIVE_INFINITY;
+      closed[state >>> 6] = 0;
+    }
+    touchedCount = 0;
+    frontier.clear();
+  }
+}
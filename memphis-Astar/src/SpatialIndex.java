@@ -0,0 +1,312 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * The SpatialIndex class snaps raw latitude/longitude to the locations of a CompactRoadNetwork. It is a
+ * uniform grid over the bounding box of the locations with about CELL_SIZE locations per cell, stored like
+ * the network itself: cell offsets into one array of location indices sorted by cell, with the points on
+ * the unit sphere copied next to them in the same order so a cell is scanned without jumping around the
+ * network's arrays. Cells are ruled out with Geometry.getDistanceLowerBoundInMiles, and points are compared
+ * by their chord to the query (Geometry.getChordInMiles), which orders them the same as the distance
+ * on the surface but needs no trigonometry.
+ * Radii are in great-circle miles.
+ *
+ * Nearest-k searches visit rings of cells around the query's cell and stop once the kth best distance
+ * is below the bound of everything outside the rings. Radius searches only visit the cells the radius can
+ * reach. The index never changes once built, so any number of threads can query it.
+ *
+ * Checking against a linear scan and timing lookups: java SpatialIndex <graph file> [lookups]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class SpatialIndex {
+  static final int CELL_SIZE = 2;
+
+  private final CompactRoadNetwork graph;
+  private final double minLat, minLon, cellLat, cellLon; // cellLat/cellLon: size of a cell in degrees
+  private final int rows, cols;
+  private final double cosMaxLat; // cosine of the largest absolute latitude in the box
+  private final int[] cellOffsets;
+  private final int[] cellLocations;
+  private final double[] cellUnitVectors; // x, y, z of the ith location in cell order at 3i
+
+  public static void main(String[] args) throws IOException {
+    if (args.length < 1) {
+      System.err.println("Usage: java SpatialIndex <graph file> [lookups]");
+      System.exit(1);
+    }
+    int lookups = args.length > 1 ? Integer.parseInt(args[1]) : 2_000_000;
+    CompactRoadNetwork graph;
+    if (args[0].endsWith(".bin")) {
+      graph = GraphFile.load(Path.of(args[0]));
+    } else {
+      Main.readGraph(args[0]);
+      graph = Main.graph.compact();
+    }
+
+    long time = System.nanoTime();
+    SpatialIndex index = new SpatialIndex(graph);
+    System.out.printf("Indexed %d locations in %d x %d cells in %.1f ms\n", graph.numLocations(), index.rows,
+                      index.cols, (System.nanoTime() - time) / 1e6);
+
+    // Random points over the box plus a margin around it
+    Random rand = new Random(372);
+    int points = 4096;
+    double[] lats = new double[points];
+    double[] lons = new double[points];
+    double latSpan = index.rows * index.cellLat;
+    double lonSpan = index.cols * index.cellLon;
+    for (int i = 0; i < points; i++) {
+      lats[i] = index.minLat - 0.1 * latSpan + rand.nextDouble() * 1.2 * latSpan;
+      lons[i] = index.minLon - 0.1 * lonSpan + rand.nextDouble() * 1.2 * lonSpan;
+    }
+
+    int wrong = 0;
+    for (int i = 0; i < 1000; i++) {
+      double best = Double.POSITIVE_INFINITY;
+      for (int v = 0; v < graph.numLocations(); v++) {
+        best = Math.min(best, Geometry.getDistanceInMiles(lats[i], lons[i], graph.latitude(v), graph.longitude(v)));
+      }
+      int found = index.nearest(lats[i], lons[i]);
+      if (Math.abs(index.distance(found, lats[i], lons[i]) - best) > 1e-6) wrong++;
+      int[] five = index.nearest(lats[i], lons[i], 5);
+      int[] within = index.within(lats[i], lons[i], 0.5);
+      int expected = 0;
+      for (int v = 0; v < graph.numLocations(); v++) {
+        if (Geometry.getDistanceInMiles(lats[i], lons[i], graph.latitude(v), graph.longitude(v)) <= 0.5) expected++;
+      }
+      if (five.length != Math.min(5, graph.numLocations()) || five[0] != found || within.length != expected) wrong++;
+    }
+    System.out.printf("1000 points checked against a linear scan: %d wrong\n", wrong);
+
+    for (int round = 0; round < 2; round++) { // the first round warms up
+      long sum = 0;
+      time = System.nanoTime();
+      for (int i = 0; i < lookups; i++) {
+        sum += index.nearest(lats[i & (points - 1)], lons[i & (points - 1)]);
+      }
+      long nearestNanos = System.nanoTime() - time;
+      time = System.nanoTime();
+      for (int i = 0; i < lookups / 4; i++) {
+        sum += index.nearest(lats[i & (points - 1)], lons[i & (points - 1)], 5).length;
+      }
+      long knnNanos = System.nanoTime() - time;
+      time = System.nanoTime();
+      for (int i = 0; i < lookups / 4; i++) {
+        sum += index.within(lats[i & (points - 1)], lons[i & (points - 1)], 0.25).length;
+      }
+      long radiusNanos = System.nanoTime() - time;
+      if (round == 1) {
+        System.out.printf("nearest:    %10.0f lookups/sec\n", lookups / (nearestNanos / 1e9));
+        System.out.printf("nearest 5:  %10.0f lookups/sec\n", lookups / 4 / (knnNanos / 1e9));
+        System.out.printf("within 1/4: %10.0f lookups/sec  (checksum %d)\n", lookups / 4 / (radiusNanos / 1e9), sum);
+      }
+    }
+  }
+
+
+  /**
+   * Builds the grid over every location of the network.
+   *
+   * @param graph The network
+   */
+  public SpatialIndex(CompactRoadNetwork graph) {
+    this.graph = graph;
+    int n = graph.numLocations();
+    double lat0 = Double.POSITIVE_INFINITY, lat1 = Double.NEGATIVE_INFINITY;
+    double lon0 = Double.POSITIVE_INFINITY, lon1 = Double.NEGATIVE_INFINITY;
+    for (int v = 0; v < n; v++) {
+      lat0 = Math.min(lat0, graph.latitude(v));
+      lat1 = Math.max(lat1, graph.latitude(v));
+      lon0 = Math.min(lon0, graph.longitude(v));
+      lon1 = Math.max(lon1, graph.longitude(v));
+    }
+    if (n == 0) {
+      lat0 = lat1 = lon0 = lon1 = 0;
+    }
+    minLat = lat0;
+    minLon = lon0;
+    cosMaxLat = Math.cos(Math.toRadians(Math.max(Math.abs(lat0), Math.abs(lat1))));
+
+    // Roughly square cells (in miles) with about CELL_SIZE locations each
+    double height = Math.max(lat1 - lat0, 1e-9);
+    double width = Math.max((lon1 - lon0) * cosMaxLat, 1e-9);
+    int cells = Math.max(1, n / CELL_SIZE);
+    rows = (int) Math.max(1, Math.min(cells, Math.round(Math.sqrt(cells * height / width))));
+    cols = Math.max(1, cells / rows);
+    cellLat = height / rows * (1 + 1e-12);
+    cellLon = Math.max(lon1 - lon0, 1e-9) / cols * (1 + 1e-12);
+
+    cellOffsets = new int[rows * cols + 1];
+    int[] cellOf = new int[n];
+    for (int v = 0; v < n; v++) {
+      cellOf[v] = row(graph.latitude(v)) * cols + col(graph.longitude(v));
+      cellOffsets[cellOf[v] + 1]++;
+    }
+    for (int c = 0; c < rows * cols; c++) {
+      cellOffsets[c + 1] += cellOffsets[c];
+    }
+    int[] next = Arrays.copyOf(cellOffsets, rows * cols);
+    cellLocations = new int[n];
+    cellUnitVectors = new double[3 * n];
+    for (int v = 0; v < n; v++) {
+      int i = next[cellOf[v]]++;
+      cellLocations[i] = v;
+      Geometry.toUnitVector(graph.latitude(v), graph.longitude(v), cellUnitVectors, 3 * i);
+    }
+  }
+
+
+  private int row(double lat) { return Math.max(0, Math.min(rows - 1, (int) Math.floor((lat - minLat) / cellLat))); }
+
+  private int col(double lon) { return Math.max(0, Math.min(cols - 1, (int) Math.floor((lon - minLon) / cellLon))); }
+
+  private double distance(int location, double lat, double lon) {
+    return Geometry.getDistanceInMiles(lat, lon, graph.latitude(location), graph.longitude(location));
+  }
+
+
+  /**
+   * The location closest to a point.
+   *
+   * @param lat The latitude of the point
+   * @param lon The longitude of the point
+   * @return int The dense index of the closest location, -1 if the network is empty
+   */
+  public int nearest(double lat, double lon) {
+    int[] best = { -1 };
+    double[] bestChord = { Double.POSITIVE_INFINITY };
+    search(lat, lon, 1, best, bestChord);
+    return best[0];
+  }
+
+
+  /**
+   * The k locations closest to a point.
+   *
+   * @param lat The latitude of the point
+   * @param lon The longitude of the point
+   * @param k How many locations
+   * @return int[] The dense indices of the k closest locations (fewer if the network is smaller), closest first
+   */
+  public int[] nearest(double lat, double lon, int k) {
+    int[] best = new int[Math.min(k, graph.numLocations())];
+    double[] bestChord = new double[best.length];
+    Arrays.fill(best, -1);
+    Arrays.fill(bestChord, Double.POSITIVE_INFINITY);
+    if (best.length > 0) {
+      search(lat, lon, best.length, best, bestChord);
+    }
+    return best;
+  }
+
+
+  /**
+   * The ring search. best and bestChord hold the k closest so far, sorted, and are filled in place.
+   */
+  private void search(double lat, double lon, int k, int[] best, double[] bestChord) {
+    double[] point = new double[3];
+    Geometry.toUnitVector(lat, lon, point, 0);
+    double cos = Math.min(cosMaxLat, Math.sqrt(point[0] * point[0] + point[1] * point[1])); // cos(lat)
+    int r0 = row(lat), c0 = col(lon);
+    int maxRing = Math.max(Math.max(r0, rows - 1 - r0), Math.max(c0, cols - 1 - c0));
+    for (int ring = 0; ring <= maxRing; ring++) {
+      for (int r = r0 - ring; r <= r0 + ring; r++) {
+        if (r < 0 || r >= rows) continue;
+        boolean edgeRow = r == r0 - ring || r == r0 + ring;
+        // Inner rows of the ring only have their two end cells
+        int step = edgeRow ? 1 : 2 * ring;
+        for (int c = c0 - ring; c <= c0 + ring; c += Math.max(step, 1)) {
+          if (c < 0 || c >= cols) continue;
+          if (toChord(cellBound(lat, lon, r, c, cos)) >= bestChord[k - 1]) continue;
+          scanCell(r * cols + c, point, k, best, bestChord);
+        }
+      }
+      // Everything outside the rings is at least as far as the nearest side of the rings' box
+      if (bestChord[k - 1] <= toChord(outsideBound(lat, lon, r0, c0, ring, cos))) return;
+    }
+  }
+
+
+  private void scanCell(int cell, double[] point, int k, int[] best, double[] bestChord) {
+    for (int i = cellOffsets[cell]; i < cellOffsets[cell + 1]; i++) {
+      double d = Geometry.getChordInMiles(point[0], point[1], point[2], cellUnitVectors[3 * i],
+                                          cellUnitVectors[3 * i + 1], cellUnitVectors[3 * i + 2]);
+      if (d >= bestChord[k - 1]) continue;
+      // Insert into the sorted best list
+      int j = k - 1;
+      while (j > 0 && bestChord[j - 1] > d) {
+        bestChord[j] = bestChord[j - 1];
+        best[j] = best[j - 1];
+        j--;
+      }
+      bestChord[j] = d;
+      best[j] = cellLocations[i];
+    }
+  }
+
+
+  // A lower bound on the chord of an arc: 2R sin(a / 2R) >= a - a^3 / (24 R^2)
+  private static double toChord(double arcMiles) {
+    if (arcMiles == Double.POSITIVE_INFINITY) return arcMiles;
+    return Math.max(0, arcMiles - arcMiles * arcMiles * arcMiles / (24 * 3960.0 * 3960.0));
+  }
+
+
+  // Lower bound from the point to any point of a cell
+  private double cellBound(double lat, double lon, int r, int c, double cos) {
+    double south = minLat + r * cellLat, west = minLon + c * cellLon;
+    double dLat = lat < south ? south - lat : Math.max(0, lat - (south + cellLat));
+    double dLon = lon < west ? west - lon : Math.max(0, lon - (west + cellLon));
+    return Geometry.getDistanceLowerBoundInMiles(dLat, dLon, cos);
+  }
+
+
+  // Lower bound from the point to any cell outside the rings, infinity when the rings cover the grid
+  private double outsideBound(double lat, double lon, int r0, int c0, int ring, double cos) {
+    double bound = Double.POSITIVE_INFINITY;
+    if (r0 - ring > 0) bound = Math.min(bound, Geometry.getDistanceLowerBoundInMiles(lat - (minLat + (r0 - ring) * cellLat), 0, cos));
+    if (r0 + ring < rows - 1) bound = Math.min(bound, Geometry.getDistanceLowerBoundInMiles(minLat + (r0 + ring + 1) * cellLat - lat, 0, cos));
+    if (c0 - ring > 0) bound = Math.min(bound, Geometry.getDistanceLowerBoundInMiles(0, lon - (minLon + (c0 - ring) * cellLon), cos));
+    if (c0 + ring < cols - 1) bound = Math.min(bound, Geometry.getDistanceLowerBoundInMiles(0, minLon + (c0 + ring + 1) * cellLon - lon, cos));
+    return bound;
+  }
+
+
+  /**
+   * Every location within a distance of a point.
+   *
+   * @param lat The latitude of the point
+   * @param lon The longitude of the point
+   * @param miles The radius
+   * @return int[] The dense indices of the locations at most miles away, in no particular order
+   */
+  public int[] within(double lat, double lon, double miles) {
+    // Cells the radius can reach: latitude along a meridian, longitude on the widest parallel of the band
+    double dLat = Math.toDegrees((miles + 1e-4) / 3960.0);
+    double cos = Math.min(cosMaxLat, Math.cos(Math.toRadians(Math.min(90, Math.abs(lat) + dLat))));
+    double sinHalf = (miles + 1e-4) / (2 * 3960.0 * cos);
+    double dLon = sinHalf >= 1 ? 360 : Math.toDegrees(2 * Math.asin(sinHalf));
+    int rowLow = row(lat - dLat), rowHigh = row(lat + dLat);
+    int colLow = col(lon - dLon), colHigh = col(lon + dLon);
+
+    double[] point = new double[3];
+    Geometry.toUnitVector(lat, lon, point, 0);
+    double chord = 2 * 3960.0 * Math.sin(Math.min(Math.PI / 2, miles / (2 * 3960.0)));
+    int[] found = new int[16];
+    int count = 0;
+    for (int r = rowLow; r <= rowHigh; r++) {
+      for (int i = cellOffsets[r * cols + colLow]; i < cellOffsets[r * cols + colHigh + 1]; i++) {
+        if (Geometry.getChordInMiles(point[0], point[1], point[2], cellUnitVectors[3 * i], cellUnitVectors[3 * i + 1],
+                                     cellUnitVectors[3 * i + 2]) <= chord) {
+          if (count == found.length) found = Arrays.copyOf(found, count * 2);
+          found[count++] = cellLocations[i];
+        }
+      }
+    }
+    return Arrays.copyOf(found, count);
+  }
+}
@@ -0,0 +1,294 @@
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * The TravelTimeProfiles class gives the roads of a CompactRoadNetwork travel times that depend on the time
+ * of day. A profile is a piecewise-linear function over the day (it repeats every 24 hours): breakpoints at
+ * whole seconds after midnight, each with a factor the road's static travel time is multiplied by, and a
+ * straight line between consecutive breakpoints (and from the last one around midnight to the first). A
+ * road without a profile keeps its static travel time at every hour.
+ *
+ * Profiles are relative to the static time, so the same rush-hour shape is stored once however many roads
+ * use it: identical profiles are deduplicated when they are added, and all of them share two primitive
+ * arrays (breakpoint times and factors) plus one profile index per road.
+ * Two rules keep the time-dependent search exact:
+ *   factors are at least 1   profiles only slow roads down, so the static heuristics (straight line,
+ *                            landmarks) remain lower bounds and stay consistent
+ *   FIFO                     leaving later never means arriving earlier, i.e. the travel time never drops
+ *                            faster than the clock moves on (slope at least -1), checked per road when a
+ *                            profile is assigned
+ * With both, the A* of SearchAStar that evaluates every road at the time it is entered (departure plus the
+ * g-cost of the state it leaves from) finds the earliest arrival. Speeding halves the profiled time just
+ * like the static one.
+ *
+ * Comparing time-dependent queries with static ones:
+ * java TravelTimeProfiles [graph file] [queries per class]
+ *
+ * @author Diego Lopez
+ * @version 1.0 09-19-2023
+ */
+public final class TravelTimeProfiles {
+  static final int DAY = 24 * 60 * 60;
+
+  private final CompactRoadNetwork graph;
+  private final int[] profileOf; // profile index of each road, -1 for a static road
+  // Breakpoints of profile p are [offsets[p], offsets[p + 1]) of times and factors
+  private int[] offsets = new int[9];
+  private int[] times = new int[64];
+  private float[] factors = new float[64];
+  private int numProfiles;
+  private final Map<Shape, Integer> shapes = new HashMap<>();
+
+  // Key of the deduplication map
+  private record Shape(int[] times, float[] factors) {
+    @Override
+    public boolean equals(Object o) {
+      return o instanceof Shape other && Arrays.equals(times, other.times) && Arrays.equals(factors, other.factors);
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * Arrays.hashCode(times) + Arrays.hashCode(factors);
+    }
+  }
+
+
+  public static void main(String[] args) throws IOException {
+    String filename = args.length > 0 ? args[0] : "memphis-medium.txt";
+    int perClass = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+    CompactRoadNetwork graph = filename.endsWith(".bin") ? GraphFile.load(Path.of(filename))
+                               : Main.readCompactGraph(filename);
+    TravelTimeProfiles profiles = rushHour(graph, 42);
+    int profiled = 0;
+    for (int road = 0; road < graph.numRoads(); road++) {
+      if (profiles.profile(road) >= 0) profiled++;
+    }
+    System.out.printf("%s: %d roads, %d with a profile, %d distinct profiles, %d breakpoints, %.2f bytes per road\n",
+                      filename, graph.numRoads(), profiled, profiles.numProfiles(), profiles.offsets[profiles.numProfiles],
+                      profiles.memoryBytes() / (double) graph.numRoads());
+
+    int[][][] queries = Benchmarks.querySet(graph, perClass);
+    SearchAStar fixed = new SearchAStar(graph, new SearchSpace(graph.numLocations(), 2), false);
+    SearchAStar timed = new SearchAStar(graph, new SearchSpace(graph.numLocations(), 2), false);
+    timed.setTravelTimeProfiles(profiles);
+    double[] departures = { 3 * 3600, 8 * 3600, 17.5 * 3600 };
+    String[] labels = { "03:00", "08:00", "17:30" };
+
+    System.out.printf("\n%-8s %-8s %14s %14s %14s\n", "class", "depart", "static s", "profiled s", "states ratio");
+    for (int c = 0; c < queries.length; c++) {
+      for (int d = 0; d < departures.length; d++) {
+        double staticSeconds = 0, profiledSeconds = 0;
+        long staticStates = 0, profiledStates = 0;
+        for (int[] pair : queries[c]) {
+          Node a = fixed.search(graph.id(pair[0]), graph.id(pair[1]), 2);
+          staticStates += fixed.totalNodeVisited;
+          Node b = timed.search(graph.id(pair[0]), graph.id(pair[1]), 2, departures[d]);
+          profiledStates += timed.totalNodeVisited;
+          if (a != null && b != null) {
+            staticSeconds += a.g_cost();
+            profiledSeconds += b.g_cost();
+          }
+        }
+        System.out.printf("%-8s %-8s %14.1f %14.1f %14.2f\n", Benchmarks.CLASSES[c], labels[d],
+                          staticSeconds / perClass, profiledSeconds / perClass, profiledStates / (double) staticStates);
+      }
+    }
+
+    System.out.printf("\n%-32s %5s %12s %12s  %s\n", "Benchmark", "Cnt", "Score", "Error", "Units");
+    for (int c = 0; c < queries.length; c++) {
+      int[][] pairs = queries[c];
+      Benchmarks.bench("search.static." + Benchmarks.CLASSES[c], "ms/op", 1e6, pairs.length, () -> {
+        for (int[] pair : pairs) {
+          Node route = fixed.search(graph.id(pair[0]), graph.id(pair[1]), 2);
+          Benchmarks.sink = route == null ? -1 : route.g_cost();
+        }
+      });
+      // At 03:00 every factor is 1, so the difference to static is the cost of evaluating the profiles
+      for (int d = 0; d < 2; d++) {
+        double departure = departures[d];
+        Benchmarks.bench("search.profiled." + Benchmarks.CLASSES[c] + "." + labels[d].replace(":", ""), "ms/op", 1e6,
+                         pairs.length, () -> {
+          for (int[] pair : pairs) {
+            Node route = timed.search(graph.id(pair[0]), graph.id(pair[1]), 2, departure);
+            Benchmarks.sink = route == null ? -1 : route.g_cost();
+          }
+        });
+      }
+    }
+  }
+
+
+  /**
+   * Starts with every road of the network static.
+   *
+   * @param graph The network the road indices refer to
+   */
+  public TravelTimeProfiles(CompactRoadNetwork graph) {
+    this.graph = graph;
+    profileOf = new int[graph.numRoads()];
+    Arrays.fill(profileOf, -1);
+  }
+
+
+  /**
+   * Synthetic rush hours: arterials (speed limit of 45 or more) slow down by 40% to 120% around 8:00 and
+   * 17:30, and a third of the other streets by 20%. The peaks come in steps of 20%, so a whole city
+   * needs only a handful of profiles. A road too long to slow down that fast without breaking FIFO stays
+   * static.
+   *
+   * @param graph The network
+   * @param seed Seed of the peak of every road
+   * @return TravelTimeProfiles The profiles
+   */
+  public static TravelTimeProfiles rushHour(CompactRoadNetwork graph, long seed) {
+    TravelTimeProfiles profiles = new TravelTimeProfiles(graph);
+    Random rand = new Random(seed);
+    int[] hours = { 0, 6 * 3600 + 1800, 8 * 3600, 9 * 3600 + 1800, 16 * 3600, 17 * 3600 + 1800, 19 * 3600 };
+    int[] byPeak = new int[5];
+    for (int p = 0; p < byPeak.length; p++) {
+      double peak = 1.4 + 0.2 * p;
+      byPeak[p] = profiles.add(hours, new double[] { 1, 1, peak, 1, 1, peak, 1 });
+    }
+    int street = profiles.add(hours, new double[] { 1, 1, 1.2, 1, 1, 1.2, 1 });
+    for (int road = 0; road < graph.numRoads(); road++) {
+      int profile;
+      if (graph.speedLimit(road) >= 45) {
+        profile = byPeak[rand.nextInt(byPeak.length)];
+      } else {
+        profile = rand.nextInt(3) == 0 ? street : -1;
+      }
+      if (profile >= 0 && profiles.isFifo(road, profile)) profiles.assign(road, profile);
+    }
+    return profiles;
+  }
+
+
+  /**
+   * Adds a profile, or finds the identical one added before.
+   *
+   * @param seconds The breakpoints in seconds after midnight, ascending, from 0 to less than a day
+   * @param factors The factor of the static travel time at each breakpoint, at least 1
+   * @return int The index of the profile
+   */
+  public int add(int[] seconds, double[] factors) {
+    int k = seconds.length;
+    if (k == 0 || factors.length != k) throw new IllegalArgumentException("A profile needs one factor per breakpoint.");
+    float[] stored = new float[k];
+    for (int i = 0; i < k; i++) {
+      if (seconds[i] < 0 || seconds[i] >= DAY || (i > 0 && seconds[i] <= seconds[i - 1]))
+        throw new IllegalArgumentException("Breakpoints must be ascending seconds within one day.");
+      if (!(factors[i] >= 1) || Double.isInfinite(factors[i]))
+        throw new IllegalArgumentException("Profiles can only slow roads down, factor " + factors[i] + " is below 1.");
+      stored[i] = (float) factors[i];
+    }
+    Shape shape = new Shape(seconds.clone(), stored);
+    Integer known = shapes.get(shape);
+    if (known != null) return known;
+
+    int p = numProfiles++;
+    if (numProfiles + 1 > offsets.length) offsets = Arrays.copyOf(offsets, offsets.length * 2);
+    int at = offsets[p];
+    if (at + k > times.length) {
+      int capacity = Math.max(times.length * 2, at + k);
+      times = Arrays.copyOf(times, capacity);
+      this.factors = Arrays.copyOf(this.factors, capacity);
+    }
+    System.arraycopy(seconds, 0, times, at, k);
+    System.arraycopy(stored, 0, this.factors, at, k);
+    offsets[p + 1] = at + k;
+    shapes.put(shape, p);
+    return p;
+  }
+
+
+  /**
+   * Whether a road keeps FIFO under a profile: its travel time never drops faster than one second per second.
+   *
+   * @param road The dense road index
+   * @param profile The profile index
+   * @return boolean true if the profile can be assigned to the road
+   */
+  public boolean isFifo(int road, int profile) {
+    double seconds = graph.travelTime(road);
+    int first = offsets[profile], last = offsets[profile + 1] - 1;
+    for (int i = first; i <= last; i++) {
+      int j = i == last ? first : i + 1;
+      int span = i == last ? times[first] + DAY - times[last] : times[j] - times[i];
+      if (seconds * (factors[j] - factors[i]) < -span) return false;
+    }
+    return true;
+  }
+
+
+  /**
+   * Gives a road a profile.
+   *
+   * @param road The dense road index
+   * @param profile The profile index, or -1 to make the road static again
+   */
+  public void assign(int road, int profile) {
+    if (profile >= numProfiles) throw new IllegalArgumentException("Profile " + profile + " doesn't exist.");
+    if (profile >= 0 && !isFifo(road, profile))
+      throw new IllegalArgumentException("Profile " + profile + " breaks FIFO on road " + road + ".");
+    profileOf[road] = profile;
+  }
+
+
+  public int profile(int road) { return profileOf[road]; }
+
+  public int numProfiles() { return numProfiles; }
+
+  boolean belongsTo(CompactRoadNetwork network) { return graph == network; }
+
+
+  /**
+   * The bytes held by the road indices and the shared breakpoint arrays.
+   */
+  public long memoryBytes() {
+    return 4L * profileOf.length + 4L * (numProfiles + 1) + 8L * offsets[numProfiles];
+  }
+
+
+  /**
+   * The travel time of a road entered at a given time.
+   *
+   * @param road The dense road index
+   * @param staticSeconds The road's static time (CompactRoadNetwork.travelTime or speedingTime)
+   * @param at The time the road is entered, in seconds after midnight of the first day
+   * @return double The travel time in seconds
+   */
+  public double travelTime(int road, double staticSeconds, double at) {
+    int profile = profileOf[road];
+    return profile < 0 ? staticSeconds : staticSeconds * factor(profile, at);
+  }
+
+
+  /**
+   * The factor of a profile at a time, interpolated between the breakpoints around it.
+   *
+   * @param profile The profile index
+   * @param at Seconds after midnight, any day
+   * @return double The factor
+   */
+  public double factor(int profile, double at) {
+    double t = at % DAY;
+    if (t < 0) t += DAY;
+    int first = offsets[profile], last = offsets[profile + 1] - 1;
+    int i;
+    if (t < times[first]) { // before the first breakpoint, on the segment around midnight
+      t += DAY;
+      i = last;
+    } else {
+      i = first;
+      while (i < last && times[i + 1] <= t) i++;
+    }
+    if (i == first && i == last) return factors[i];
+    int j = i == last ? first : i + 1;
+    double end = i == last ? times[first] + DAY : times[j];
+    return factors[i] + (factors[j] - factors[i]) * (t - times[i]) / (end - times[i]);
+  }
+}